@@ -18,8 +18,10 @@ package com.android.contacts.common;
 
 import android.content.Context;
 
-import java.util.Iterator;
+import com.google.common.collect.Maps;
+
 import java.util.List;
+import java.util.Map;
 
 /**
  * Class used for collapsing data items into groups of similar items. The data items that should be
@@ -35,8 +37,8 @@ public final class Collapser {
     private Collapser() {}
 
     /*
-     * The Collapser uses an n^2 algorithm so we don't want it to run on
-     * lists beyond a certain size. This specifies the maximum size to collapse.
+     * Items without a collapse key are compared pairwise, which is n^2, so don't compare more
+     * pairs than a list of this size has.
      */
     private static final int MAX_LISTSIZE_TO_COLLAPSE = 20;
 
@@ -50,27 +52,107 @@ public final class Collapser {
 
     }
 
+    /*
+     * Collapsible data types whose items can be grouped by a key instead of being compared
+     * pairwise. Items with different keys must not be collapsible with each other. Items with
+     * equal keys are still asked {@link Collapsible#shouldCollapseWith} to decide which of
+     * them is kept, and are compared pairwise if neither accepts the other.
+     */
+    public interface KeyedCollapsible<T> extends Collapsible<T> {
+        /**
+         * Returns the normalized key of this item, or null if it can only be compared pairwise.
+         */
+        public String getCollapseKey(Context context);
+    }
+
     /**
      * Collapses a list of Collapsible items into a list of collapsed items. Items are collapsed
      * if {@link Collapsible#shouldCollapseWith(Object)} returns true, and are collapsed
      * through the {@Link Collapsible#collapseWith(Object)} function implemented by the data item.
      *
+     * <p>Items with a {@link KeyedCollapsible#getCollapseKey(Context)} are grouped by their key
+     * in a single pass, so lists of any size are collapsed. Items without a key are compared
+     * with every other item, which is skipped on long lists.
+     *
      * @param list List of Objects of type <T extends Collapsible<T>> to be collapsed.
      */
     public static <T extends Collapsible<T>> void collapseList(List<T> list, Context context) {
 
-        int listSize = list.size();
-        // The algorithm below is n^2 so don't run on long lists
-        if (listSize > MAX_LISTSIZE_TO_COLLAPSE) {
+        final int listSize = list.size();
+        if (listSize < 2) {
             return;
         }
 
+        // Collapse the items with a key into the preferred item with the same key
+        final Map<String, Integer> groups = Maps.newHashMapWithExpectedSize(listSize);
+        boolean[] keyed = null;
+        int unkeyedCount = 0;
+        for (int i = 0; i < listSize; i++) {
+            final T item = list.get(i);
+            if (item == null) {
+                continue;
+            }
+            final String key = item instanceof KeyedCollapsible
+                    ? ((KeyedCollapsible<?>) item).getCollapseKey(context) : null;
+            if (key == null) {
+                unkeyedCount++;
+                continue;
+            }
+            if (keyed == null) {
+                keyed = new boolean[listSize];
+            }
+            final Integer groupIndex = groups.get(key);
+            if (groupIndex == null) {
+                groups.put(key, i);
+                keyed[i] = true;
+                continue;
+            }
+            final T group = list.get(groupIndex);
+            if (group.shouldCollapseWith(item, context)) {
+                group.collapseWith(item);
+                list.set(i, null);
+            } else if (item.shouldCollapseWith(group, context)) {
+                item.collapseWith(group);
+                list.set(groupIndex, null);
+                groups.put(key, i);
+                keyed[i] = true;
+            } else {
+                // Leave it to the pairwise comparison
+                unkeyedCount++;
+            }
+        }
+
+        // Compare the items without a key with all other items. The algorithm below is n^2 so
+        // don't run it with too many of them
+        if (unkeyedCount > 0 && (long) unkeyedCount * listSize
+                <= MAX_LISTSIZE_TO_COLLAPSE * MAX_LISTSIZE_TO_COLLAPSE) {
+            collapsePairwise(list, keyed, context);
+        }
+
+        // Remove the null items
+        int size = 0;
+        for (int i = 0; i < listSize; i++) {
+            final T item = list.get(i);
+            if (item != null) {
+                list.set(size++, item);
+            }
+        }
+        list.subList(size, listSize).clear();
+    }
+
+    /**
+     * Collapses the items of the given list pairwise, setting the collapsed items to null.
+     * Pairs of items that both have a key were already collapsed and are skipped.
+     */
+    private static <T extends Collapsible<T>> void collapsePairwise(List<T> list,
+            boolean[] keyed, Context context) {
+        final int listSize = list.size();
         for (int i = 0; i < listSize; i++) {
             T iItem = list.get(i);
             if (iItem != null) {
                 for (int j = i + 1; j < listSize; j++) {
                     T jItem = list.get(j);
-                    if (jItem != null) {
+                    if (jItem != null && (keyed == null || !keyed[i] || !keyed[j])) {
                         if (iItem.shouldCollapseWith(jItem, context)) {
                             iItem.collapseWith(jItem);
                             list.set(j, null);
@@ -83,14 +165,5 @@ public final class Collapser {
                 }
             }
         }
-
-        // Remove the null items
-        Iterator<T> itr = list.iterator();
-        while (itr.hasNext()) {
-            if (itr.next() == null) {
-                itr.remove();
-            }
-        }
-
     }
 }
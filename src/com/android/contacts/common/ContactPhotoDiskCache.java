@@ -0,0 +1,434 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Size-bounded, journaled on-disk cache of compressed contact photo bytes.  This is the second
+ * level behind the in-memory holder cache of {@link ContactPhotoManager}, so that photos
+ * survive a process restart without going back to the provider or the network.
+ * <p>
+ * Every entry is stored in its own file and carries a version: for photo ids this is
+ * {@link android.provider.ContactsContract.Data#DATA_VERSION} of the photo row, for URIs it is
+ * the time the photo was downloaded.  The journal records puts and removals so that the index
+ * can be rebuilt on startup without reading any photo.  Entries are evicted in LRU order once
+ * the total size goes over the limit.
+ * <p>
+ * All methods do disk I/O and must not be called from the UI thread.
+ */
+final class ContactPhotoDiskCache {
+    private static final String TAG = "ContactPhotoDiskCache";
+
+    /** Bump when the format of the journal or of the entry files changes. */
+    private static final int FORMAT_VERSION = 1;
+
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+    private static final String ENTRY_FILE_SUFFIX = ".photo";
+    private static final String ENTRY_FILE_TMP_SUFFIX = ".tmp";
+
+    /** Prefix of the keys of photos stored by id. */
+    public static final String PHOTO_ID_KEY_PREFIX = "id";
+
+    /** Prefix of the keys of photos stored by URI. */
+    public static final String URI_KEY_PREFIX = "uri";
+
+    private static final String OP_PUT = "P";
+    private static final String OP_REMOVE = "R";
+
+    /** Number of journal lines that do not describe a live entry before we compact it. */
+    private static final int MAX_REDUNDANT_JOURNAL_LINES = 1000;
+
+    private static final int BUFFER_SIZE = 1024 * 16;
+
+    private static final class Entry {
+        final String key;
+        final long version;
+        final long length;
+
+        Entry(String key, long version, long length) {
+            this.key = key;
+            this.version = version;
+            this.length = length;
+        }
+    }
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    /** Index of all entries on disk, in access order. */
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(0, 0.75f, true);
+
+    private long mSize;
+    private int mRedundantJournalLines;
+    private Writer mJournalWriter;
+    private boolean mOpened;
+
+    public ContactPhotoDiskCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    public static String keyForPhotoId(long photoId) {
+        return PHOTO_ID_KEY_PREFIX + photoId;
+    }
+
+    public static String keyForUri(Uri uri) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final byte[] hash = digest.digest(uri.toString().getBytes());
+            final StringBuilder sb = new StringBuilder(URI_KEY_PREFIX);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return URI_KEY_PREFIX + Integer.toHexString(uri.toString().hashCode());
+        }
+    }
+
+    /**
+     * Whether there is an entry for the given key, regardless of its version.
+     */
+    public synchronized boolean contains(String key) {
+        ensureOpened();
+        return mEntries.containsKey(key);
+    }
+
+    /**
+     * Returns the version stored with the given key, or -1 if there is no such entry.
+     */
+    public synchronized long getVersion(String key) {
+        ensureOpened();
+        final Entry entry = mEntries.get(key);
+        return entry == null ? -1 : entry.version;
+    }
+
+    /**
+     * Returns the bytes stored for the given key, provided they were stored with the
+     * given version. An entry with a different version is out of date and is removed.
+     */
+    public synchronized byte[] get(String key, long version) {
+        ensureOpened();
+        final Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.version != version) {
+            remove(key);
+            return null;
+        }
+        final File file = getEntryFile(key);
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            final byte[] bytes = new byte[(int) entry.length];
+            int offset = 0;
+            while (offset < bytes.length) {
+                final int read = is.read(bytes, offset, bytes.length - offset);
+                if (read == -1) {
+                    throw new IOException("Truncated cache entry " + file);
+                }
+                offset += read;
+            }
+            return bytes;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read cache entry " + key, e);
+            remove(key);
+            return null;
+        } finally {
+            closeQuietly(is);
+        }
+    }
+
+    /**
+     * Stores the given bytes under the given key and version, replacing any previous entry.
+     */
+    public synchronized void put(String key, long version, byte[] bytes) {
+        ensureOpened();
+        if (bytes == null || bytes.length == 0 || bytes.length > mMaxBytes) {
+            remove(key);
+            return;
+        }
+        final File tmpFile = new File(mDirectory, key + ENTRY_FILE_TMP_SUFFIX);
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(tmpFile);
+            os.write(bytes);
+            os.close();
+            os = null;
+            if (!tmpFile.renameTo(getEntryFile(key))) {
+                throw new IOException("Cannot rename " + tmpFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write cache entry " + key, e);
+            tmpFile.delete();
+            remove(key);
+            return;
+        } finally {
+            closeQuietly(os);
+        }
+
+        final Entry previous = mEntries.put(key, new Entry(key, version, bytes.length));
+        if (previous != null) {
+            mSize -= previous.length;
+            mRedundantJournalLines++;
+        }
+        mSize += bytes.length;
+        appendToJournal(OP_PUT + ' ' + key + ' ' + version + ' ' + bytes.length);
+        trimToSize();
+    }
+
+    public synchronized void remove(String key) {
+        ensureOpened();
+        final Entry entry = mEntries.remove(key);
+        if (entry == null) {
+            return;
+        }
+        getEntryFile(key).delete();
+        mSize -= entry.length;
+        mRedundantJournalLines += 2;
+        appendToJournal(OP_REMOVE + ' ' + key);
+    }
+
+    /**
+     * Removes the entries whose version is lower than {@code minVersion} and whose key starts
+     * with {@code keyPrefix}.
+     */
+    public synchronized void removeOlderThan(String keyPrefix, long minVersion) {
+        ensureOpened();
+        final Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if (entry.key.startsWith(keyPrefix) && entry.version < minVersion) {
+                iterator.remove();
+                getEntryFile(entry.key).delete();
+                mSize -= entry.length;
+                mRedundantJournalLines += 2;
+                appendToJournal(OP_REMOVE + ' ' + entry.key);
+            }
+        }
+        flushJournal();
+    }
+
+    /**
+     * Removes every entry from the cache.
+     */
+    public synchronized void clear() {
+        closeJournal();
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mEntries.clear();
+        mSize = 0;
+        mRedundantJournalLines = 0;
+        mOpened = false;
+    }
+
+    /**
+     * Writes buffered journal lines out to disk.
+     */
+    public synchronized void flushJournal() {
+        if (mJournalWriter == null) {
+            return;
+        }
+        try {
+            mJournalWriter.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot flush journal", e);
+            closeJournal();
+        }
+    }
+
+    private File getEntryFile(String key) {
+        return new File(mDirectory, key + ENTRY_FILE_SUFFIX);
+    }
+
+    private void trimToSize() {
+        final Iterator<Entry> iterator = mEntries.values().iterator();
+        while (mSize > mMaxBytes && iterator.hasNext()) {
+            final Entry eldest = iterator.next();
+            iterator.remove();
+            getEntryFile(eldest.key).delete();
+            mSize -= eldest.length;
+            mRedundantJournalLines += 2;
+            appendToJournal(OP_REMOVE + ' ' + eldest.key);
+        }
+        if (mRedundantJournalLines >= MAX_REDUNDANT_JOURNAL_LINES
+                && mRedundantJournalLines >= mEntries.size()) {
+            rebuildJournal();
+        }
+    }
+
+    /**
+     * Reads the journal, if any, and drops everything that does not match it.
+     */
+    private void ensureOpened() {
+        if (mOpened) {
+            return;
+        }
+        mOpened = true;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Cannot create " + mDirectory);
+            return;
+        }
+
+        final File journal = new File(mDirectory, JOURNAL_FILE);
+        BufferedReader reader = null;
+        boolean valid = false;
+        try {
+            if (journal.exists()) {
+                reader = new BufferedReader(new FileReader(journal), BUFFER_SIZE);
+                valid = String.valueOf(FORMAT_VERSION).equals(reader.readLine());
+                String line;
+                while (valid && (line = reader.readLine()) != null) {
+                    readJournalLine(line);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Cannot read journal, starting over", e);
+            valid = false;
+        } finally {
+            closeQuietly(reader);
+        }
+
+        if (!valid) {
+            mEntries.clear();
+        }
+
+        // Drop entries whose file went missing, and files no entry refers to.
+        mSize = 0;
+        final Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if (getEntryFile(entry.key).length() != entry.length) {
+                iterator.remove();
+            } else {
+                mSize += entry.length;
+            }
+        }
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                if (name.equals(JOURNAL_FILE)) {
+                    continue;
+                }
+                if (!name.endsWith(ENTRY_FILE_SUFFIX) || !mEntries.containsKey(
+                        name.substring(0, name.length() - ENTRY_FILE_SUFFIX.length()))) {
+                    file.delete();
+                }
+            }
+        }
+        rebuildJournal();
+        trimToSize();
+    }
+
+    private void readJournalLine(String line) {
+        final String[] parts = line.split(" ");
+        if (OP_PUT.equals(parts[0]) && parts.length == 4) {
+            mEntries.put(parts[1],
+                    new Entry(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+        } else if (OP_REMOVE.equals(parts[0]) && parts.length == 2) {
+            mEntries.remove(parts[1]);
+        } else {
+            throw new NumberFormatException("Corrupt journal line: " + line);
+        }
+    }
+
+    /**
+     * Writes a new journal that contains only the live entries, in LRU order.
+     */
+    private void rebuildJournal() {
+        closeJournal();
+        final File tmp = new File(mDirectory, JOURNAL_FILE_TMP);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(tmp), BUFFER_SIZE);
+            writer.write(String.valueOf(FORMAT_VERSION));
+            writer.write('\n');
+            for (Entry entry : mEntries.values()) {
+                writer.write(OP_PUT + ' ' + entry.key + ' ' + entry.version + ' '
+                        + entry.length + '\n');
+            }
+            writer.close();
+            writer = null;
+            if (!tmp.renameTo(new File(mDirectory, JOURNAL_FILE))) {
+                throw new IOException("Cannot rename " + tmp);
+            }
+            mJournalWriter = new BufferedWriter(
+                    new FileWriter(new File(mDirectory, JOURNAL_FILE), true), BUFFER_SIZE);
+            mRedundantJournalLines = 0;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write journal", e);
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    private void appendToJournal(String line) {
+        if (mJournalWriter == null) {
+            return;
+        }
+        try {
+            mJournalWriter.write(line);
+            mJournalWriter.write('\n');
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot append to journal", e);
+            closeJournal();
+        }
+    }
+
+    private void closeJournal() {
+        closeQuietly(mJournalWriter);
+        mJournalWriter = null;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -20,12 +20,12 @@ import android.accounts.Account;
 import android.app.ActivityManager;
 import android.content.ComponentCallbacks2;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.Context;
 import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
@@ -42,6 +42,8 @@ import android.os.Handler;
 import android.os.Handler.Callback;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Contacts.Photo;
@@ -50,8 +52,10 @@ import android.provider.ContactsContract.Directory;
 import android.support.v4.graphics.drawable.RoundedBitmapDrawable;
 import android.support.v4.graphics.drawable.RoundedBitmapDrawableFactory;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
 import android.util.Log;
 import android.util.LruCache;
+import android.util.SparseArray;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
@@ -65,21 +69,32 @@ import com.android.contacts.commonbind.util.UserAgentGenerator;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.Reference;
 import java.lang.ref.SoftReference;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Asynchronously loads contact photos and maintains a cache of photos.
@@ -619,6 +634,14 @@ public abstract class ContactPhotoManager implements ComponentCallbacks2 {
      */
     public abstract void preloadPhotosInBackground();
 
+    /**
+     * Hints that rows showing the thumbnails with the given photo ids are about to become
+     * visible, so that the thumbnails can be loaded and decoded before they are requested.
+     * Newer hints replace older ones that have not been acted upon yet.
+     */
+    public void prefetchThumbnails(List<Long> photoIds) {
+    }
+
     // ComponentCallbacks2
     @Override
     public void onConfigurationChanged(Configuration newConfig) {
@@ -637,6 +660,22 @@ public abstract class ContactPhotoManager implements ComponentCallbacks2 {
 
 class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private static final String LOADER_THREAD_NAME = "ContactPhotoLoader";
+    private static final String DECODER_THREAD_NAME = "ContactPhotoDecoder";
+
+    /** Upper bound for the number of decoder threads picked automatically. */
+    private static final int MAX_AUTO_DECODE_THREADS = 4;
+
+    /** How long an idle decoder thread is kept alive before it is torn down. */
+    private static final int DECODE_THREAD_KEEP_ALIVE_SECONDS = 5;
+
+    /** Decode priority of a photo requested by a view that is currently attached. */
+    private static final int DECODE_PRIORITY_VISIBLE = 0;
+
+    /** Decode priority of a photo requested by a detached (scrap) view. */
+    private static final int DECODE_PRIORITY_OFFSCREEN = 1;
+
+    /** Decode priority of a photo that no view has asked for yet. */
+    private static final int DECODE_PRIORITY_PRELOAD = 2;
 
     private static final int FADE_TRANSITION_DURATION = 200;
 
@@ -654,7 +693,24 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
 
-    private static final String[] COLUMNS = new String[] { Photo._ID, Photo.PHOTO };
+    private static final String[] COLUMNS = new String[] {
+            Photo._ID, Photo.PHOTO, Photo.DATA_VERSION };
+
+    private static final String[] VERSION_COLUMNS = new String[] {
+            Photo._ID, Photo.DATA_VERSION };
+
+    /** Data rows of the profile, which are not found through {@link Data#CONTENT_URI}. */
+    private static final Uri PROFILE_DATA_URI =
+            Uri.withAppendedPath(ContactsContract.Profile.CONTENT_URI, "data");
+
+    /** Name of the directory under the app cache dir that holds {@link #mDiskCache}. */
+    private static final String DISK_CACHE_DIR = "contact_photos";
+
+    /** Size of {@link #mDiskCache}. */
+    private static final int DISK_CACHE_SIZE = 10 * 1024 * 1024;
+
+    /** How long a downloaded photo is served from {@link #mDiskCache}. */
+    private static final long DISK_CACHE_URI_MAX_AGE_MILLIS = DateUtils.DAY_IN_MILLIS;
 
     /**
      * Dummy object used to indicate that a bitmap for a given key could not be stored in the
@@ -663,7 +719,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private static final BitmapHolder BITMAP_UNAVAILABLE;
 
     static {
-        BITMAP_UNAVAILABLE = new BitmapHolder(new byte[0], 0);
+        BITMAP_UNAVAILABLE = new BitmapHolder(new byte[0], 0, 0);
         BITMAP_UNAVAILABLE.bitmapRef = new SoftReference<Bitmap>(null);
     }
 
@@ -672,17 +728,165 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     private static class BitmapHolder {
         final byte[] bytes;
+        final int originalWidth;
+        final int originalHeight;
         final int originalSmallerExtent;
 
         volatile boolean fresh;
+        /** Whether a {@link DecodeTask} for this holder is queued or running. */
+        volatile boolean decodeScheduled;
+
+        /**
+         * Bitmaps too big for {@link #mBitmapCache} are only kept here, for the one sample size
+         * that was decoded last.
+         */
         Bitmap bitmap;
         Reference<Bitmap> bitmapRef;
         int decodedSampleSize;
 
-        public BitmapHolder(byte[] bytes, int originalSmallerExtent) {
+        public BitmapHolder(byte[] bytes, int originalWidth, int originalHeight) {
             this.bytes = bytes;
             this.fresh = true;
-            this.originalSmallerExtent = originalSmallerExtent;
+            this.originalWidth = originalWidth;
+            this.originalHeight = originalHeight;
+            this.originalSmallerExtent = Math.min(originalWidth, originalHeight);
+        }
+    }
+
+    /**
+     * Key of {@link #mBitmapCache}: one decoded size bucket of one photo.  The bucket is the
+     * sample size the photo is decoded with, so all extents that need the same sample size
+     * share one bitmap.
+     */
+    private static final class BitmapKey {
+        final Object photoKey;
+        final int sampleSize;
+
+        BitmapKey(Object photoKey, int sampleSize) {
+            this.photoKey = photoKey;
+            this.sampleSize = sampleSize;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * photoKey.hashCode() + sampleSize;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof BitmapKey)) return false;
+            final BitmapKey that = (BitmapKey) obj;
+            return sampleSize == that.sampleSize && photoKey.equals(that.photoKey);
+        }
+    }
+
+    /**
+     * Value of {@link #mBitmapCache}.  Remembers whether the bitmap was ever handed to a view:
+     * only bitmaps that were not can safely be decoded into again once they are evicted.
+     */
+    private static final class DecodedBitmap {
+        final Bitmap bitmap;
+        private boolean mDisplayed;
+        private boolean mRecycled;
+
+        DecodedBitmap(Bitmap bitmap, boolean displayed) {
+            this.bitmap = bitmap;
+            mDisplayed = displayed;
+        }
+
+        /** Returns false if the bitmap already went to the reuse pool. */
+        synchronized boolean markDisplayed() {
+            if (mRecycled) {
+                return false;
+            }
+            mDisplayed = true;
+            return true;
+        }
+
+        /** Returns true if the bitmap was never displayed and may now be reused. */
+        synchronized boolean markRecycled() {
+            if (mDisplayed) {
+                return false;
+            }
+            mRecycled = true;
+            return true;
+        }
+    }
+
+    /**
+     * Mutable bitmaps that are no longer referenced and can be decoded into through
+     * {@link BitmapFactory.Options#inBitmap}, kept in one bucket per sample size.
+     */
+    private static final class BitmapPool {
+        private final SparseArray<ArrayDeque<Bitmap>> mBuckets =
+                new SparseArray<ArrayDeque<Bitmap>>();
+        private final int mMaxBytes;
+        private int mBytes;
+
+        BitmapPool(int maxBytes) {
+            mMaxBytes = maxBytes;
+        }
+
+        synchronized void put(int sampleSize, Bitmap bitmap) {
+            if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()
+                    || bitmap.getConfig() != Bitmap.Config.ARGB_8888
+                    || bitmap.getAllocationByteCount() > mMaxBytes) {
+                return;
+            }
+            ArrayDeque<Bitmap> bucket = mBuckets.get(sampleSize);
+            if (bucket == null) {
+                bucket = new ArrayDeque<Bitmap>();
+                mBuckets.put(sampleSize, bucket);
+            }
+            bucket.addLast(bitmap);
+            mBytes += bitmap.getAllocationByteCount();
+            while (mBytes > mMaxBytes) {
+                // Drop from the fullest bucket first.
+                ArrayDeque<Bitmap> fullest = null;
+                for (int i = 0; i < mBuckets.size(); i++) {
+                    final ArrayDeque<Bitmap> candidate = mBuckets.valueAt(i);
+                    if (fullest == null || candidate.size() > fullest.size()) {
+                        fullest = candidate;
+                    }
+                }
+                mBytes -= fullest.removeFirst().getAllocationByteCount();
+            }
+        }
+
+        /**
+         * Returns a bitmap that can hold at least {@code byteCount} bytes, preferring the
+         * bucket of the given sample size, or null if there is none.
+         */
+        synchronized Bitmap get(int sampleSize, int byteCount) {
+            Bitmap bitmap = take(mBuckets.get(sampleSize), byteCount);
+            for (int i = 0; bitmap == null && i < mBuckets.size(); i++) {
+                bitmap = take(mBuckets.valueAt(i), byteCount);
+            }
+            if (bitmap != null) {
+                mBytes -= bitmap.getAllocationByteCount();
+            }
+            return bitmap;
+        }
+
+        private static Bitmap take(ArrayDeque<Bitmap> bucket, int byteCount) {
+            if (bucket == null) {
+                return null;
+            }
+            final Iterator<Bitmap> iterator = bucket.iterator();
+            while (iterator.hasNext()) {
+                final Bitmap bitmap = iterator.next();
+                if (bitmap.getAllocationByteCount() >= byteCount) {
+                    iterator.remove();
+                    return bitmap;
+                }
+            }
+            return null;
+        }
+
+        synchronized void clear() {
+            mBuckets.clear();
+            mBytes = 0;
         }
     }
 
@@ -709,8 +913,24 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      * Level 2 LRU cache for bitmaps. This is a smaller cache that holds
      * the most recently used bitmaps to save time on decoding
      * them from bytes (the bytes are stored in {@link #mBitmapHolderCache}.
+     * A photo shown at several sizes has one entry per sample size.
      */
-    private final LruCache<Object, Bitmap> mBitmapCache;
+    private final LruCache<BitmapKey, DecodedBitmap> mBitmapCache;
+
+    /** Bitmaps evicted from {@link #mBitmapCache} before they were ever displayed. */
+    private final BitmapPool mBitmapPool;
+
+    /**
+     * Persistent cache of photo bytes behind {@link #mBitmapHolderCache}. Only accessed from
+     * the loader thread.
+     */
+    private final ContactPhotoDiskCache mDiskCache;
+
+    /**
+     * Set by {@link #refreshCache()} to make the loader thread drop expired entries from
+     * {@link #mDiskCache}.
+     */
+    private volatile boolean mDiskCacheNeedsRefresh;
 
     /**
      * A map from ImageView to the corresponding photo ID or uri, encapsulated in a request.
@@ -730,6 +950,19 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     private LoaderThread mLoaderThread;
 
+    /**
+     * Pool of threads that turn compressed photo bytes into bitmaps, so that
+     * decoding runs in parallel with (and does not hold up) the provider queries
+     * and downloads done by {@link #mLoaderThread}. Created upon the first decode.
+     */
+    private ThreadPoolExecutor mDecodeExecutor;
+
+    /** Number of threads in {@link #mDecodeExecutor}. */
+    private final int mDecodeThreadCount;
+
+    /** Keeps decode tasks of equal priority in submission order. */
+    private final AtomicLong mDecodeSequence = new AtomicLong();
+
     /**
      * A gate to make sure we only send one instance of MESSAGE_PHOTOS_NEEDED at a time.
      */
@@ -755,6 +988,59 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     /** For debug: How many times we had to reload cached photo for a fresh entry.  Should be 0. */
     private final AtomicInteger mFreshCacheOverwrite = new AtomicInteger();
 
+    /** Latency of the photo id batches run by the loader thread. */
+    private final BatchStats mBatchStats = new BatchStats();
+
+    /**
+     * Counters describing the batches of photo ids loaded by {@link LoaderThread}.
+     */
+    static final class BatchStats {
+        private final AtomicInteger mBatches = new AtomicInteger();
+        private final AtomicInteger mPhotos = new AtomicInteger();
+        private final AtomicInteger mQueries = new AtomicInteger();
+        private final AtomicLong mTotalMillis = new AtomicLong();
+        private volatile long mMaxMillis;
+
+        void record(int photos, int queries, long millis) {
+            mBatches.incrementAndGet();
+            mPhotos.addAndGet(photos);
+            mQueries.addAndGet(queries);
+            mTotalMillis.addAndGet(millis);
+            if (millis > mMaxMillis) {
+                mMaxMillis = millis;
+            }
+            if (DEBUG) {
+                Log.d(TAG, "Loaded batch of " + photos + " photos with " + queries
+                        + " queries in " + millis + "ms");
+            }
+        }
+
+        public int getBatchCount() {
+            return mBatches.get();
+        }
+
+        public long getAverageBatchMillis() {
+            final int batches = mBatches.get();
+            return batches == 0 ? 0 : mTotalMillis.get() / batches;
+        }
+
+        public long getMaxBatchMillis() {
+            return mMaxMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "batches=" + mBatches.get() + " photos=" + mPhotos.get()
+                    + " queries=" + mQueries.get() + " avg=" + getAverageBatchMillis()
+                    + "ms max=" + mMaxMillis + "ms";
+        }
+    }
+
+    @VisibleForTesting
+    BatchStats getBatchStats() {
+        return mBatchStats;
+    }
+
     /**
      * The user agent string to use when loading URI based photos.
      */
@@ -769,13 +1055,17 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         final float cacheSizeAdjustment = (am.isLowRamDevice()) ? 0.5f : 1.0f;
 
         final int bitmapCacheSize = (int) (cacheSizeAdjustment * BITMAP_CACHE_SIZE);
-        mBitmapCache = new LruCache<Object, Bitmap>(bitmapCacheSize) {
-            @Override protected int sizeOf(Object key, Bitmap value) {
-                return value.getByteCount();
+        mBitmapPool = new BitmapPool(bitmapCacheSize / 4);
+        mBitmapCache = new LruCache<BitmapKey, DecodedBitmap>(bitmapCacheSize) {
+            @Override protected int sizeOf(BitmapKey key, DecodedBitmap value) {
+                return value.bitmap.getByteCount();
             }
 
-            @Override protected void entryRemoved(
-                    boolean evicted, Object key, Bitmap oldValue, Bitmap newValue) {
+            @Override protected void entryRemoved(boolean evicted, BitmapKey key,
+                    DecodedBitmap oldValue, DecodedBitmap newValue) {
+                if (oldValue != newValue && oldValue.markRecycled()) {
+                    mBitmapPool.put(key.sampleSize, oldValue.bitmap);
+                }
                 if (DEBUG) dumpStats();
             }
         };
@@ -791,6 +1081,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             }
         };
         mBitmapHolderCacheRedZoneBytes = (int) (holderCacheSize * 0.75);
+        mDiskCache = new ContactPhotoDiskCache(new File(context.getCacheDir(), DISK_CACHE_DIR),
+                DISK_CACHE_SIZE);
         Log.i(TAG, "Cache adj: " + cacheSizeAdjustment);
         if (DEBUG) {
             Log.d(TAG, "Cache size: " + btk(mBitmapHolderCache.maxSize())
@@ -800,6 +1092,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         mThumbnailSize = context.getResources().getDimensionPixelSize(
                 R.dimen.contact_browser_list_item_photo_size);
 
+        final int configuredThreads = context.getResources().getInteger(
+                R.integer.config_photo_decode_thread_count);
+        mDecodeThreadCount = configuredThreads > 0 ? configuredThreads
+                : Math.max(1, Math.min(MAX_AUTO_DECODE_THREADS,
+                        Runtime.getRuntime().availableProcessors() - 1));
+
         // Get a user agent string to use for URI photo requests.
         mUserAgent = UserAgentGenerator.getUserAgent(context);
         if (mUserAgent == null) {
@@ -845,14 +1143,15 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             Log.d(TAG, "L1 Stats: " + mBitmapHolderCache.toString()
                     + ", overwrite: fresh=" + mFreshCacheOverwrite.get()
                     + " stale=" + mStaleCacheOverwrite.get());
+            Log.d(TAG, "Batches: " + mBatchStats);
         }
 
         {
             int numBitmaps = 0;
             int bitmapBytes = 0;
-            for (Bitmap b : mBitmapCache.snapshot().values()) {
+            for (DecodedBitmap b : mBitmapCache.snapshot().values()) {
                 numBitmaps++;
-                bitmapBytes += b.getByteCount();
+                bitmapBytes += b.bitmap.getByteCount();
             }
             Log.d(TAG, "L2: " + btk(bitmapBytes) + ", " + numBitmaps + " bitmaps"
                     + ", avg: " + btk(safeDiv(bitmapBytes, numBitmaps)));
@@ -875,6 +1174,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         mLoaderThread.requestPreloading();
     }
 
+    @Override
+    public void prefetchThumbnails(List<Long> photoIds) {
+        ensureLoaderThread();
+        mLoaderThread.requestPrefetching(new ArrayList<Long>(photoIds));
+    }
+
     @Override
     public void loadThumbnail(ImageView view, long photoId, Account account,
             boolean darkTheme, boolean isCircular, DefaultImageRequest defaultImageRequest,
@@ -947,6 +1252,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     public void cancelPendingRequests(View fragmentRootView) {
         if (fragmentRootView == null) {
             mPendingRequests.clear();
+            cancelUnneededDecodes();
             return;
         }
         final Iterator<Entry<ImageView, Request>> iterator = mPendingRequests.entrySet().iterator();
@@ -958,6 +1264,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 iterator.remove();
             }
         }
+        cancelUnneededDecodes();
     }
 
     private static boolean isChildView(View parent, View potentialChild) {
@@ -968,6 +1275,9 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
     @Override
     public void refreshCache() {
+        // Entries of the disk cache are checked against the photo's data version each time
+        // they are used; all that is left to do is to expire downloaded photos.
+        mDiskCacheNeedsRefresh = true;
         if (mBitmapHolderCacheAllUnfresh) {
             if (DEBUG) Log.d(TAG, "refreshCache -- no fresh entries.");
             return;
@@ -999,16 +1309,20 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             return holder.fresh;
         }
 
-        Bitmap cachedBitmap = holder.bitmapRef == null ? null : holder.bitmapRef.get();
+        Bitmap cachedBitmap = getDecodedBitmap(request.getKey(), holder,
+                request.getRequestedExtent(), true /* forDisplay */);
         if (cachedBitmap == null) {
-            if (holder.bytes.length < 8 * 1024) {
+            if (holder.bytes.length < 8 * 1024 && !holder.decodeScheduled) {
                 // Small thumbnails are usually quick to inflate. Let's do that on the UI thread
-                inflateBitmap(holder, request.getRequestedExtent());
-                cachedBitmap = holder.bitmap;
+                synchronized (holder) {
+                    inflateBitmap(request.getKey(), holder, request.getRequestedExtent());
+                }
+                cachedBitmap = getDecodedBitmap(request.getKey(), holder,
+                        request.getRequestedExtent(), true /* forDisplay */);
                 if (cachedBitmap == null) return false;
             } else {
-                // This is bigger data. Let's send that back to the Loader so that we can
-                // inflate this in the background
+                // This is bigger data (or a decoder thread is already on it). Let's send
+                // that back to the Loader so that we can inflate this in the background
                 request.applyDefaultImage(view, request.mIsCircular);
                 return false;
             }
@@ -1035,12 +1349,6 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                     getDrawableForBitmap(mContext.getResources(), cachedBitmap, request));
         }
 
-        // Put the bitmap in the LRU cache. But only do this for images that are small enough
-        // (we require that at least six of those can be cached at the same time)
-        if (cachedBitmap.getByteCount() < mBitmapCache.maxSize() / 6) {
-            mBitmapCache.put(request.getKey(), cachedBitmap);
-        }
-
         // Soften the reference
         holder.bitmap = null;
 
@@ -1063,12 +1371,53 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
     }
 
+    /**
+     * Returns the bitmap decoded from {@code holder} for the size bucket of
+     * {@code requestedExtent}, or null if it has not been decoded or is no longer cached.
+     *
+     * @param forDisplay Whether the bitmap is going to be set on a view, which makes it
+     * ineligible for reuse after it is evicted.
+     */
+    private Bitmap getDecodedBitmap(Object key, BitmapHolder holder, int requestedExtent,
+            boolean forDisplay) {
+        final int sampleSize =
+                BitmapUtil.findOptimalSampleSize(holder.originalSmallerExtent, requestedExtent);
+        final DecodedBitmap decoded = mBitmapCache.get(new BitmapKey(key, sampleSize));
+        if (decoded != null && (!forDisplay || decoded.markDisplayed())) {
+            return decoded.bitmap;
+        }
+        if (sampleSize == holder.decodedSampleSize) {
+            if (holder.bitmap != null) {
+                return holder.bitmap;
+            }
+            if (holder.bitmapRef != null) {
+                return holder.bitmapRef.get();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drops all decoded sizes of the photo with the given key from {@link #mBitmapCache}.
+     */
+    private void removeDecodedBitmaps(Object key) {
+        for (BitmapKey bitmapKey : mBitmapCache.snapshot().keySet()) {
+            if (bitmapKey.photoKey.equals(key)) {
+                mBitmapCache.remove(bitmapKey);
+            }
+        }
+    }
+
     /**
      * If necessary, decodes bytes stored in the holder to Bitmap.  As long as the
      * bitmap is held either by {@link #mBitmapCache} or by a soft reference in
-     * the holder, it will not be necessary to decode the bitmap.
+     * the holder, it will not be necessary to decode the bitmap.  Bitmaps are decoded
+     * into a bitmap from {@link #mBitmapPool} when one of the right size is available.
+     * <p>
+     * Callers must hold the lock of {@code holder}: it may be inflated from the UI
+     * thread and from any of the decoder threads.
      */
-    private static void inflateBitmap(BitmapHolder holder, int requestedExtent) {
+    private void inflateBitmap(Object key, BitmapHolder holder, int requestedExtent) {
         final int sampleSize =
                 BitmapUtil.findOptimalSampleSize(holder.originalSmallerExtent, requestedExtent);
         byte[] bytes = holder.bytes;
@@ -1076,19 +1425,18 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             return;
         }
 
-        if (sampleSize == holder.decodedSampleSize) {
-            // Check the soft reference.  If will be retained if the bitmap is also
-            // in the LRU cache, so we don't need to check the LRU cache explicitly.
-            if (holder.bitmapRef != null) {
-                holder.bitmap = holder.bitmapRef.get();
-                if (holder.bitmap != null) {
-                    return;
-                }
-            }
+        if (getDecodedBitmap(key, holder, requestedExtent, false) != null) {
+            return;
         }
 
         try {
-            Bitmap bitmap = BitmapUtil.decodeBitmapFromBytes(bytes, sampleSize);
+            final Bitmap reusable = mBitmapPool.get(sampleSize, BitmapUtil.getDecodedByteCount(
+                    holder.originalWidth, holder.originalHeight, sampleSize));
+            Bitmap bitmap = BitmapUtil.decodeBitmapFromBytes(bytes, sampleSize, reusable);
+            if (bitmap == null) {
+                mBitmapPool.put(sampleSize, reusable);
+                return;
+            }
 
             // TODO: As a temporary workaround while framework support is being added to
             // clip non-square bitmaps into a perfect circle, manually crop the bitmap into
@@ -1102,7 +1450,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             // sample size.
             if (height != width && Math.min(height, width) <= mThumbnailSize * 2) {
                 final int dimension = Math.min(height, width);
-                bitmap = ThumbnailUtils.extractThumbnail(bitmap, dimension, dimension);
+                final Bitmap uncropped = bitmap;
+                bitmap = ThumbnailUtils.extractThumbnail(uncropped, dimension, dimension);
+                if (bitmap != uncropped) {
+                    // Nobody else has seen the uncropped bitmap: let the next decode use it.
+                    mBitmapPool.put(sampleSize, uncropped);
+                }
             }
             // make bitmap mutable and draw size onto it
             if (DEBUG_SIZES) {
@@ -1120,9 +1473,17 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 canvas.drawText(bitmap.getWidth() + "/" + sampleSize, 0, 15, paint);
             }
 
-            holder.decodedSampleSize = sampleSize;
-            holder.bitmap = bitmap;
-            holder.bitmapRef = new SoftReference<Bitmap>(bitmap);
+            // Keep the bitmap in the LRU cache, but only if it is small enough (we require
+            // that at least six of those can be cached at the same time). Bigger ones are
+            // only softly referenced from the holder.
+            if (bitmap.getByteCount() < mBitmapCache.maxSize() / 6) {
+                mBitmapCache.put(new BitmapKey(key, sampleSize),
+                        new DecodedBitmap(bitmap, false /* displayed */));
+            } else {
+                holder.decodedSampleSize = sampleSize;
+                holder.bitmap = bitmap;
+                holder.bitmapRef = new SoftReference<Bitmap>(bitmap);
+            }
             if (DEBUG) {
                 Log.d(TAG, "inflateBitmap " + btk(bytes.length) + " -> "
                         + bitmap.getWidth() + "x" + bitmap.getHeight()
@@ -1136,8 +1497,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     public void clear() {
         if (DEBUG) Log.d(TAG, "clear");
         mPendingRequests.clear();
+        cancelUnneededDecodes();
         mBitmapHolderCache.evictAll();
         mBitmapCache.evictAll();
+        mBitmapPool.clear();
     }
 
     @Override
@@ -1225,7 +1588,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
     /**
      * Removes strong references to loaded bitmaps to allow them to be garbage collected
-     * if needed.  Some of the bitmaps will still be retained by {@link #mBitmapCache}.
+     * if needed.  Most of the bitmaps will still be retained by {@link #mBitmapCache}.
      */
     private void softenCache() {
         for (BitmapHolder holder : mBitmapHolderCache.snapshot().values()) {
@@ -1250,20 +1613,35 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             Log.d(TAG, "Caching data: key=" + key + ", " +
                     (bytes == null ? "<null>" : btk(bytes.length)));
         }
-        BitmapHolder holder = new BitmapHolder(bytes,
-                bytes == null ? -1 : BitmapUtil.getSmallerExtentFromBytes(bytes));
-
-        // Unless this image is being preloaded, decode it right away while
-        // we are still on the background thread.
-        if (!preloading) {
-            inflateBitmap(holder, requestedExtent);
+        final BitmapHolder previous = mBitmapHolderCache.get(key);
+        if (previous != null && previous != BITMAP_UNAVAILABLE && bytes != null
+                && Arrays.equals(previous.bytes, bytes)) {
+            // The photo did not change: keep the sizes we have already decoded.
+            previous.fresh = true;
+            mBitmapHolderCacheAllUnfresh = false;
+            if (!preloading
+                    && getDecodedBitmap(key, previous, requestedExtent, false) == null) {
+                scheduleDecode(key, previous, requestedExtent, getDecodePriority(key));
+            }
+            return;
         }
+        removeDecodedBitmaps(key);
+
+        final BitmapFactory.Options bounds =
+                bytes == null ? null : BitmapUtil.decodeBoundsFromBytes(bytes);
+        BitmapHolder holder = bounds == null ? new BitmapHolder(bytes, -1, -1)
+                : new BitmapHolder(bytes, bounds.outWidth, bounds.outHeight);
 
         if (bytes != null) {
             mBitmapHolderCache.put(key, holder);
             if (mBitmapHolderCache.get(key) != holder) {
                 Log.w(TAG, "Bitmap too big to fit in cache.");
                 mBitmapHolderCache.put(key, BITMAP_UNAVAILABLE);
+            } else if (!preloading) {
+                // Unless this image is being preloaded, hand it over to the decoder
+                // threads right away so that the loader thread can go on with the
+                // next query.
+                scheduleDecode(key, holder, requestedExtent, getDecodePriority(key));
             }
         } else {
             mBitmapHolderCache.put(key, BITMAP_UNAVAILABLE);
@@ -1279,25 +1657,25 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         // requested
         Request request = Request.createFromUri(photoUri, smallerExtent, false /* darkTheme */,
                 false /* isCircular */ , DEFAULT_AVATAR);
-        BitmapHolder holder = new BitmapHolder(photoBytes, smallerExtent);
+        BitmapHolder holder = new BitmapHolder(photoBytes, bitmap.getWidth(), bitmap.getHeight());
+        holder.decodedSampleSize = 1;
         holder.bitmapRef = new SoftReference<Bitmap>(bitmap);
+        removeDecodedBitmaps(request.getKey());
         mBitmapHolderCache.put(request.getKey(), holder);
         mBitmapHolderCacheAllUnfresh = false;
-        mBitmapCache.put(request.getKey(), bitmap);
+        // The caller keeps using this bitmap, so it must never be decoded into.
+        mBitmapCache.put(new BitmapKey(request.getKey(), 1),
+                new DecodedBitmap(bitmap, true /* displayed */));
     }
 
     /**
-     * Populates an array of photo IDs that need to be loaded. Also decodes bitmaps that we have
-     * already loaded
+     * Populates an array of photo IDs that need to be loaded. Also schedules decoding of
+     * bitmaps that we have already loaded
      */
-    private void obtainPhotoIdsAndUrisToLoad(Set<Long> photoIds,
-            Set<String> photoIdsAsStrings, Set<Request> uris) {
+    private void obtainPhotoIdsAndUrisToLoad(Set<Long> photoIds, Set<Request> uris) {
         photoIds.clear();
-        photoIdsAsStrings.clear();
         uris.clear();
 
-        boolean jpegsDecoded = false;
-
         /*
          * Since the call is made from the loader thread, the map could be
          * changing during the iteration. That's not really a problem:
@@ -1306,31 +1684,173 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
          * concurrent change, we will need to check the map again once loading
          * is complete.
          */
-        Iterator<Request> iterator = mPendingRequests.values().iterator();
+        Iterator<Entry<ImageView, Request>> iterator = mPendingRequests.entrySet().iterator();
         while (iterator.hasNext()) {
-            Request request = iterator.next();
+            final Entry<ImageView, Request> entry = iterator.next();
+            final Request request = entry.getValue();
             final BitmapHolder holder = mBitmapHolderCache.get(request.getKey());
             if (holder == BITMAP_UNAVAILABLE) {
                 continue;
             }
             if (holder != null && holder.bytes != null && holder.fresh &&
-                    (holder.bitmapRef == null || holder.bitmapRef.get() == null)) {
+                    getDecodedBitmap(request.getKey(), holder, request.getRequestedExtent(),
+                            false) == null) {
                 // This was previously loaded but we don't currently have the inflated Bitmap
-                inflateBitmap(holder, request.getRequestedExtent());
-                jpegsDecoded = true;
+                scheduleDecode(request.getKey(), holder, request.getRequestedExtent(),
+                        entry.getKey().getParent() != null
+                                ? DECODE_PRIORITY_VISIBLE : DECODE_PRIORITY_OFFSCREEN);
             } else {
                 if (holder == null || !holder.fresh) {
                     if (request.isUriRequest()) {
                         uris.add(request);
                     } else {
                         photoIds.add(request.getId());
-                        photoIdsAsStrings.add(String.valueOf(request.mId));
                     }
                 }
             }
         }
+    }
+
+    /**
+     * Queues decoding of the bytes in {@code holder} on {@link #mDecodeExecutor}, unless
+     * a decode for it is already queued or running.  Once decoded,
+     * {@link #MESSAGE_PHOTOS_LOADED} is sent to the main thread.
+     */
+    private void scheduleDecode(Object key, BitmapHolder holder, int requestedExtent,
+            int priority) {
+        if (holder.decodeScheduled) {
+            return;
+        }
+        holder.decodeScheduled = true;
+        ensureDecodeExecutor();
+        mDecodeExecutor.execute(new DecodeTask(key, holder, requestedExtent, priority,
+                mDecodeSequence.getAndIncrement()));
+    }
+
+    private synchronized void ensureDecodeExecutor() {
+        if (mDecodeExecutor == null) {
+            final ThreadFactory threadFactory = new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, DECODER_THREAD_NAME + "-" + mCount.incrementAndGet());
+                }
+            };
+            mDecodeExecutor = new ThreadPoolExecutor(mDecodeThreadCount, mDecodeThreadCount,
+                    DECODE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<Runnable>(), threadFactory);
+            mDecodeExecutor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Returns the priority a decode of the photo with the given key should run at, based on
+     * whether any view that is still waiting for it is attached.
+     */
+    private int getDecodePriority(Object key) {
+        int priority = DECODE_PRIORITY_PRELOAD;
+        for (Entry<ImageView, Request> entry : mPendingRequests.entrySet()) {
+            if (key.equals(entry.getValue().getKey())) {
+                if (entry.getKey().getParent() != null) {
+                    return DECODE_PRIORITY_VISIBLE;
+                }
+                priority = DECODE_PRIORITY_OFFSCREEN;
+            }
+        }
+        return priority;
+    }
+
+    /**
+     * Whether some view is still waiting for the photo with the given key.
+     */
+    private boolean isPhotoPending(Object key) {
+        for (Request request : mPendingRequests.values()) {
+            if (key.equals(request.getKey())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops queued decodes that were scheduled on behalf of views which no longer need them.
+     * Decodes that are already running are allowed to finish.
+     */
+    private void cancelUnneededDecodes() {
+        cancelQueuedDecodes(false);
+    }
+
+    /**
+     * Drops queued decodes that no view is waiting for. Unless {@code includePreloads} is set,
+     * decodes that were queued ahead of any request are kept.
+     */
+    private void cancelQueuedDecodes(boolean includePreloads) {
+        final ThreadPoolExecutor executor = mDecodeExecutor;
+        if (executor == null) {
+            return;
+        }
+        for (Runnable runnable : executor.getQueue().toArray(new Runnable[0])) {
+            final DecodeTask task = (DecodeTask) runnable;
+            if ((includePreloads || task.mPriority != DECODE_PRIORITY_PRELOAD)
+                    && !isPhotoPending(task.mKey) && executor.remove(task)) {
+                task.mHolder.decodeScheduled = false;
+            }
+        }
+    }
+
+    /**
+     * Decodes the bytes of one {@link BitmapHolder} on a decoder thread.  Tasks for views that
+     * are on screen are taken before tasks for scrap views, which are taken before preloads.
+     */
+    private final class DecodeTask implements Runnable, Comparable<DecodeTask> {
+        final Object mKey;
+        final BitmapHolder mHolder;
+        final int mRequestedExtent;
+        final int mPriority;
+        final long mSequence;
+
+        DecodeTask(Object key, BitmapHolder holder, int requestedExtent, int priority,
+                long sequence) {
+            mKey = key;
+            mHolder = holder;
+            mRequestedExtent = requestedExtent;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (mPriority != DECODE_PRIORITY_PRELOAD && !isPhotoPending(mKey)) {
+                    // The view was rebound or the request cancelled while we were queued.
+                    if (DEBUG) Log.d(TAG, "Skipping decode of " + mKey);
+                    return;
+                }
+                synchronized (mHolder) {
+                    inflateBitmap(mKey, mHolder, mRequestedExtent);
+                }
+            } finally {
+                mHolder.decodeScheduled = false;
+            }
+            if (!mMainThreadHandler.hasMessages(MESSAGE_PHOTOS_LOADED)) {
+                mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+            }
+        }
 
-        if (jpegsDecoded) mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+        @Override
+        public int compareTo(DecodeTask another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
     }
 
     /**
@@ -1340,6 +1860,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         private static final int BUFFER_SIZE = 1024*16;
         private static final int MESSAGE_PRELOAD_PHOTOS = 0;
         private static final int MESSAGE_LOAD_PHOTOS = 1;
+        private static final int MESSAGE_PREFETCH_PHOTOS = 2;
 
         /**
          * A pause between preload batches that yields to the UI thread.
@@ -1357,12 +1878,24 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
          */
         private static final int MAX_PHOTOS_TO_PRELOAD = 100;
 
+        /**
+         * Maximum number of photo ids bound into one IN() clause.  SQLite refuses statements
+         * with more than 999 arguments.
+         */
+        private static final int PHOTO_ID_QUERY_CHUNK_SIZE = 100;
+
+        /** How long a photo id that could not be found is not queried for again. */
+        private static final long MISSING_PHOTO_TTL_MILLIS = DateUtils.MINUTE_IN_MILLIS;
+
         private final ContentResolver mResolver;
         private final StringBuilder mStringBuilder = new StringBuilder();
         private final Set<Long> mPhotoIds = Sets.newHashSet();
-        private final Set<String> mPhotoIdsAsStrings = Sets.newHashSet();
         private final Set<Request> mPhotoUris = Sets.newHashSet();
         private final List<Long> mPreloadPhotoIds = Lists.newArrayList();
+        private final List<String> mChunkPhotoIds = Lists.newArrayList();
+
+        /** Photo ids that could not be found, mapped to when to look for them again. */
+        private final Map<Long, Long> mMissingPhotoIds = Maps.newHashMap();
 
         private Handler mLoaderThreadHandler;
         private byte mBuffer[];
@@ -1416,11 +1949,22 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             mLoaderThreadHandler.sendEmptyMessage(MESSAGE_LOAD_PHOTOS);
         }
 
+        /**
+         * Sends a message to this thread to load and decode the given photos ahead of time,
+         * replacing any prefetch request that has not been handled yet.
+         */
+        public void requestPrefetching(List<Long> photoIds) {
+            ensureHandler();
+            mLoaderThreadHandler.removeMessages(MESSAGE_PREFETCH_PHOTOS);
+            mLoaderThreadHandler.obtainMessage(MESSAGE_PREFETCH_PHOTOS, photoIds).sendToTarget();
+        }
+
         /**
          * Receives the above message, loads photos and then sends a message
          * to the main thread to process them.
          */
         @Override
+        @SuppressWarnings("unchecked")
         public boolean handleMessage(Message msg) {
             switch (msg.what) {
                 case MESSAGE_PRELOAD_PHOTOS:
@@ -1429,10 +1973,39 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 case MESSAGE_LOAD_PHOTOS:
                     loadPhotosInBackground();
                     break;
+                case MESSAGE_PREFETCH_PHOTOS:
+                    prefetchPhotosInBackground((List<Long>) msg.obj);
+                    break;
             }
             return true;
         }
 
+        /**
+         * Loads the given photos unless they are cached already, and queues them for decoding
+         * at the lowest priority.  Decodes queued by an earlier prefetch are dropped: the list
+         * has scrolled on since.
+         */
+        private void prefetchPhotosInBackground(List<Long> photoIds) {
+            if (!PermissionsUtil.hasPermission(mContext,
+                    android.Manifest.permission.READ_CONTACTS)) {
+                return;
+            }
+            cancelQueuedDecodes(true);
+
+            mPhotoIds.clear();
+            for (Long id : photoIds) {
+                final BitmapHolder holder = mBitmapHolderCache.get(id);
+                if (holder == null || !holder.fresh) {
+                    mPhotoIds.add(id);
+                } else if (holder != BITMAP_UNAVAILABLE && holder.bytes != null
+                        && getDecodedBitmap(id, holder, -1, false) == null) {
+                    scheduleDecode(id, holder, -1, DECODE_PRIORITY_PRELOAD);
+                }
+            }
+            if (DEBUG) Log.d(TAG, "Prefetching " + mPhotoIds.size() + " of " + photoIds.size());
+            loadThumbnails(false);
+        }
+
         /**
          * The first time it is called, figures out which photos need to be preloaded.
          * Each subsequent call preloads the next batch of photos and requests
@@ -1461,7 +2034,6 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             }
 
             mPhotoIds.clear();
-            mPhotoIdsAsStrings.clear();
 
             int count = 0;
             int preloadSize = mPreloadPhotoIds.size();
@@ -1470,7 +2042,6 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 count++;
                 Long photoId = mPreloadPhotoIds.get(preloadSize);
                 mPhotoIds.add(photoId);
-                mPhotoIdsAsStrings.add(photoId.toString());
                 mPreloadPhotoIds.remove(preloadSize);
             }
 
@@ -1518,7 +2089,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                     android.Manifest.permission.READ_CONTACTS)) {
                 return;
             }
-            obtainPhotoIdsAndUrisToLoad(mPhotoIds, mPhotoIdsAsStrings, mPhotoUris);
+            if (mDiskCacheNeedsRefresh) {
+                mDiskCacheNeedsRefresh = false;
+                mDiskCache.removeOlderThan(ContactPhotoDiskCache.URI_KEY_PREFIX,
+                        System.currentTimeMillis() - DISK_CACHE_URI_MAX_AGE_MILLIS);
+            }
+            obtainPhotoIdsAndUrisToLoad(mPhotoIds, mPhotoUris);
             loadThumbnails(false);
             loadUriBasedPhotos();
             requestPreloading();
@@ -1541,66 +2117,158 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 }
             }
 
+            final long start = SystemClock.elapsedRealtime();
+            final int photoCount = mPhotoIds.size();
+            int queryCount = 0;
+
+            skipMissingPhotoIds(preloading);
+            queryCount += loadThumbnailsFromDiskCache(preloading);
+
+            mChunkPhotoIds.clear();
+            for (Long id : mPhotoIds) {
+                mChunkPhotoIds.add(String.valueOf(id));
+            }
+            if (DEBUG) Log.d(TAG, "Loading " + TextUtils.join(",", mChunkPhotoIds));
+            for (int i = 0; i < mChunkPhotoIds.size(); i += PHOTO_ID_QUERY_CHUNK_SIZE) {
+                queryCount++;
+                cacheThumbnails(queryPhotoIdChunk(Data.CONTENT_URI, COLUMNS, i), preloading);
+            }
+
+            // Remaining photos were not found in the contacts database (but might be in profile).
+            mChunkPhotoIds.clear();
+            for (Long id : mPhotoIds) {
+                if (ContactsContract.isProfileId(id)) {
+                    mChunkPhotoIds.add(String.valueOf(id));
+                }
+            }
+            for (int i = 0; i < mChunkPhotoIds.size(); i += PHOTO_ID_QUERY_CHUNK_SIZE) {
+                queryCount++;
+                cacheThumbnails(queryPhotoIdChunk(PROFILE_DATA_URI, COLUMNS, i), preloading);
+            }
+
+            // Not found anywhere - mark the cache accordingly, and don't look for them again
+            // for a while.
+            final long missingUntil = SystemClock.elapsedRealtime() + MISSING_PHOTO_TTL_MILLIS;
+            for (Long id : mPhotoIds) {
+                cacheBitmap(id, null, preloading, -1);
+                mMissingPhotoIds.put(id, missingUntil);
+            }
+
+            mDiskCache.flushJournal();
+            mBatchStats.record(photoCount, queryCount, SystemClock.elapsedRealtime() - start);
+            mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+        }
+
+        /**
+         * Takes the photos in {@link #mPhotoIds} that recently turned out not to exist out of
+         * {@link #mPhotoIds}, without querying for them again.
+         */
+        private void skipMissingPhotoIds(boolean preloading) {
+            if (mMissingPhotoIds.isEmpty()) {
+                return;
+            }
+            final long now = SystemClock.elapsedRealtime();
+            final Iterator<Long> iterator = mPhotoIds.iterator();
+            while (iterator.hasNext()) {
+                final Long id = iterator.next();
+                final Long missingUntil = mMissingPhotoIds.get(id);
+                if (missingUntil == null) {
+                    continue;
+                }
+                if (missingUntil > now) {
+                    cacheBitmap(id, null, preloading, -1);
+                    iterator.remove();
+                } else {
+                    mMissingPhotoIds.remove(id);
+                }
+            }
+        }
+
+        /**
+         * Queries {@code uri} for the rows whose {@link Photo#_ID} is one of the
+         * {@link #PHOTO_ID_QUERY_CHUNK_SIZE} ids of {@link #mChunkPhotoIds} starting at
+         * {@code start}, so that a long list of ids never exceeds SQLite's limit on bound
+         * arguments.
+         */
+        private Cursor queryPhotoIdChunk(Uri uri, String[] projection, int start) {
+            final int end = Math.min(mChunkPhotoIds.size(), start + PHOTO_ID_QUERY_CHUNK_SIZE);
             mStringBuilder.setLength(0);
             mStringBuilder.append(Photo._ID + " IN(");
-            for (int i = 0; i < mPhotoIds.size(); i++) {
-                if (i != 0) {
+            for (int i = start; i < end; i++) {
+                if (i != start) {
                     mStringBuilder.append(',');
                 }
                 mStringBuilder.append('?');
             }
             mStringBuilder.append(')');
+            return mResolver.query(uri, projection, mStringBuilder.toString(),
+                    mChunkPhotoIds.subList(start, end).toArray(EMPTY_STRING_ARRAY), null);
+        }
 
-            Cursor cursor = null;
+        /**
+         * Caches the photos in a cursor with {@link #COLUMNS}, takes them out of
+         * {@link #mPhotoIds} and closes the cursor.
+         */
+        private void cacheThumbnails(Cursor cursor, boolean preloading) {
+            if (cursor == null) {
+                return;
+            }
             try {
-                if (DEBUG) Log.d(TAG, "Loading " + TextUtils.join(",", mPhotoIdsAsStrings));
-                cursor = mResolver.query(Data.CONTENT_URI,
-                        COLUMNS,
-                        mStringBuilder.toString(),
-                        mPhotoIdsAsStrings.toArray(EMPTY_STRING_ARRAY),
-                        null);
-
-                if (cursor != null) {
-                    while (cursor.moveToNext()) {
-                        Long id = cursor.getLong(0);
-                        byte[] bytes = cursor.getBlob(1);
-                        cacheBitmap(id, bytes, preloading, -1);
-                        mPhotoIds.remove(id);
+                while (cursor.moveToNext()) {
+                    Long id = cursor.getLong(0);
+                    byte[] bytes = cursor.getBlob(1);
+                    cacheBitmap(id, bytes, preloading, -1);
+                    // Profile photos are never read back from the disk cache.
+                    if (!ContactsContract.isProfileId(id)) {
+                        mDiskCache.put(ContactPhotoDiskCache.keyForPhotoId(id),
+                                cursor.getLong(2), bytes);
                     }
+                    mPhotoIds.remove(id);
                 }
             } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
+                cursor.close();
             }
+        }
 
-            // Remaining photos were not found in the contacts database (but might be in profile).
+        /**
+         * Takes the photos in {@link #mPhotoIds} that are in the disk cache with an up-to-date
+         * version out of {@link #mPhotoIds} and puts them into the memory cache.  Checking the
+         * version only needs a query that does not return any photo bytes.
+         *
+         * @return the number of queries issued.
+         */
+        private int loadThumbnailsFromDiskCache(boolean preloading) {
+            mChunkPhotoIds.clear();
             for (Long id : mPhotoIds) {
-                if (ContactsContract.isProfileId(id)) {
-                    Cursor profileCursor = null;
-                    try {
-                        profileCursor = mResolver.query(
-                                ContentUris.withAppendedId(Data.CONTENT_URI, id),
-                                COLUMNS, null, null, null);
-                        if (profileCursor != null && profileCursor.moveToFirst()) {
-                            cacheBitmap(profileCursor.getLong(0), profileCursor.getBlob(1),
-                                    preloading, -1);
-                        } else {
-                            // Couldn't load a photo this way either.
-                            cacheBitmap(id, null, preloading, -1);
-                        }
-                    } finally {
-                        if (profileCursor != null) {
-                            profileCursor.close();
+                if (!ContactsContract.isProfileId(id)
+                        && mDiskCache.contains(ContactPhotoDiskCache.keyForPhotoId(id))) {
+                    mChunkPhotoIds.add(String.valueOf(id));
+                }
+            }
+
+            int queryCount = 0;
+            for (int i = 0; i < mChunkPhotoIds.size(); i += PHOTO_ID_QUERY_CHUNK_SIZE) {
+                queryCount++;
+                final Cursor cursor = queryPhotoIdChunk(Data.CONTENT_URI, VERSION_COLUMNS, i);
+                if (cursor == null) {
+                    continue;
+                }
+                try {
+                    while (cursor.moveToNext()) {
+                        final Long id = cursor.getLong(0);
+                        final byte[] bytes = mDiskCache.get(
+                                ContactPhotoDiskCache.keyForPhotoId(id), cursor.getLong(1));
+                        if (bytes != null) {
+                            if (DEBUG) Log.d(TAG, "Disk cache hit: " + id);
+                            cacheBitmap(id, bytes, preloading, -1);
+                            mPhotoIds.remove(id);
                         }
                     }
-                } else {
-                    // Not a profile photo and not found - mark the cache accordingly
-                    cacheBitmap(id, null, preloading, -1);
+                } finally {
+                    cursor.close();
                 }
             }
-
-            mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+            return queryCount;
         }
 
         /**
@@ -1624,8 +2292,23 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 try {
                     if (DEBUG) Log.d(TAG, "Loading " + uri);
                     final String scheme = uri.getScheme();
+                    final boolean isRemote = scheme.equals("http") || scheme.equals("https");
+                    final String diskCacheKey = ContactPhotoDiskCache.keyForUri(originalUri);
+                    if (isRemote) {
+                        final long downloadTime = mDiskCache.getVersion(diskCacheKey);
+                        final byte[] bytes = downloadTime < System.currentTimeMillis()
+                                - DISK_CACHE_URI_MAX_AGE_MILLIS
+                                ? null : mDiskCache.get(diskCacheKey, downloadTime);
+                        if (bytes != null) {
+                            if (DEBUG) Log.d(TAG, "Disk cache hit: " + uri);
+                            cacheBitmap(originalUri, bytes, false,
+                                    uriRequest.getRequestedExtent());
+                            mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+                            continue;
+                        }
+                    }
                     InputStream is = null;
-                    if (scheme.equals("http") || scheme.equals("https")) {
+                    if (isRemote) {
                         TrafficStats.setThreadStatsTag(TrafficStatsTags.CONTACT_PHOTO_DOWNLOAD_TAG);
                         final HttpURLConnection connection =
                                 (HttpURLConnection) new URL(uri.toString()).openConnection();
@@ -1654,8 +2337,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                         } finally {
                             is.close();
                         }
-                        cacheBitmap(originalUri, baos.toByteArray(), false,
-                                uriRequest.getRequestedExtent());
+                        final byte[] bytes = baos.toByteArray();
+                        cacheBitmap(originalUri, bytes, false, uriRequest.getRequestedExtent());
+                        if (isRemote) {
+                            mDiskCache.put(diskCacheKey, System.currentTimeMillis(), bytes);
+                        }
                         mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
                     } else {
                         Log.v(TAG, "Cannot load photo " + uri);
@@ -1666,6 +2352,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                     cacheBitmap(originalUri, null, false, uriRequest.getRequestedExtent());
                 }
             }
+            mDiskCache.flushJournal();
         }
     }
 
@@ -55,7 +55,6 @@ import com.android.contacts.common.model.account.AccountType;
 import com.android.contacts.common.SimContactsConstants;
 import com.android.internal.telephony.OperatorSimInfo;
 
-import org.codeaurora.wrapper.UiccPhoneBookController_Wrapper;
 import java.util.ArrayList;
 import java.util.List;
 /**
@@ -74,12 +73,7 @@ public class MoreContactUtils {
     private static final int NUMBER_POS = 1;
     private static final int EMAIL_POS = 2;
     private static final int ANR_POS = 3;
-    private static final int ADN_COUNT_POS = 0;
     public static final int ADN_USED_POS = 1;
-    private static final int EMAIL_COUNT_POS = 2;
-    private static final int EMAIL_USED_POS = 3;
-    private static final int ANR_COUNT_POS = 4;
-    private static final int ANR_USED_POS = 5;
     public static final String SIM1_TYPE = "SIM1";
     public static final String SIM2_TYPE = "SIM2";
 
@@ -366,47 +360,15 @@ public class MoreContactUtils {
     }
 
     public static int getAnrCount(Context c, int slot) {
-        int anrCount[];
-        int subId = getActiveSubId(c, slot);
-        try {
-            anrCount = UiccPhoneBookController_Wrapper
-                    .getAdnRecordsCapacityForSubscriber(subId);
-            if (anrCount != null)
-                return anrCount[ANR_COUNT_POS];
-
-        } catch (Exception ex) {
-            Log.d(TAG, ex.toString());
-            // ignore it
-        }
-        return 0;
+        return SimPhoneBookCapacity.get(c, slot).getAnrCount();
     }
 
     public static int getAdnCount(Context c, int slot) {
-        int adnCount[];
-        int subId = getActiveSubId(c, slot);
-        try {
-            adnCount = UiccPhoneBookController_Wrapper
-                    .getAdnRecordsCapacityForSubscriber(subId);
-            if (adnCount != null)
-                return adnCount[ADN_COUNT_POS];
-        } catch (Exception ex) {
-            Log.d(TAG, ex.toString());
-        }
-        return 0;
+        return SimPhoneBookCapacity.get(c, slot).getAdnCount();
     }
 
     public static int getEmailCount(Context c, int slot) {
-        int emailCount[];
-        int subId = getActiveSubId(c, slot);
-        try {
-            emailCount = UiccPhoneBookController_Wrapper
-                    .getAdnRecordsCapacityForSubscriber(subId);
-            if (emailCount != null)
-                return emailCount[EMAIL_COUNT_POS];
-        } catch (Exception ex) {
-            Log.d(TAG, ex.toString());
-        }
-        return 0;
+        return SimPhoneBookCapacity.get(c, slot).getEmailCount();
     }
     /**
      * Returns the subscription's card can save anr or not.
@@ -423,25 +385,11 @@ public class MoreContactUtils {
     }
 
     public static int getOneSimAnrCount(Context c, int slot) {
-        int count = 0;
-        int anrCount = getAnrCount(c, slot);
-        int adnCount = getAdnCount(c, slot);
-        if (adnCount > 0) {
-            count = anrCount % adnCount != 0 ? (anrCount / adnCount + 1)
-                    : (anrCount / adnCount);
-        }
-        return count;
+        return SimPhoneBookCapacity.get(c, slot).getAnrCountPerRecord();
     }
 
     public static int getOneSimEmailCount(Context c, int slot) {
-        int count = 0;
-        int emailCount = getEmailCount(c, slot);
-        int adnCount = getAdnCount(c, slot);
-        if (adnCount > 0) {
-            count = emailCount % adnCount != 0 ? (emailCount / adnCount + 1)
-                    : (emailCount / adnCount);
-        }
-        return count;
+        return SimPhoneBookCapacity.get(c, slot).getEmailCountPerRecord();
     }
 
     public static Account getAcount(Context c , int slot) {
@@ -470,42 +418,14 @@ public class MoreContactUtils {
     }
 
     public static int getSimFreeCount(Context context, int slot) {
-        String accountName = getAcount(context, slot).name;
-        int count = 0;
-
         if (context == null) {
             return 0;
         }
-
-        Cursor queryCursor = context.getContentResolver().query(
-                RawContacts.CONTENT_URI,
-                new String[] {
-                    RawContacts._ID
-                },
-                RawContacts.ACCOUNT_NAME + " = '" + accountName + "' AND " + RawContacts.DELETED
-                        + " = 0", null, null);
-        if (queryCursor != null) {
-            try {
-                count = queryCursor.getCount();
-            } finally {
-                queryCursor.close();
-            }
-        }
-        return getAdnCount(context, slot) - count;
+        return SimPhoneBookCapacity.get(context, slot).getFreeCount(context);
     }
 
     public static int getSpareAnrCount(Context c, int slot) {
-        int anrCount[];
-        int spareCount = 0;
-        int subId = getActiveSubId(c, slot);
-        try {
-            anrCount = UiccPhoneBookController_Wrapper
-                    .getAdnRecordsCapacityForSubscriber(subId);
-            if (anrCount != null)
-                spareCount = anrCount[ANR_COUNT_POS] - anrCount[ANR_USED_POS];
-        } catch (Exception ex) {
-            Log.d(TAG, ex.toString());
-        }
+        final int spareCount = SimPhoneBookCapacity.get(c, slot).getSpareAnrCount();
         if (DBG) {
             Log.d(TAG, "getSpareAnrCount(" + slot + ") = " + spareCount);
         }
@@ -513,18 +433,7 @@ public class MoreContactUtils {
     }
 
     public static int getSpareEmailCount(Context c, int slot) {
-        int emailCount[];
-        int spareCount = 0;
-        int subId = getActiveSubId(c, slot);
-        try {
-            emailCount = UiccPhoneBookController_Wrapper
-                    .getAdnRecordsCapacityForSubscriber(subId);
-            if (emailCount != null)
-                spareCount = emailCount[EMAIL_COUNT_POS]
-                        - emailCount[EMAIL_USED_POS];
-        } catch (Exception ex) {
-            Log.d(TAG, ex.toString());
-        }
+        final int spareCount = SimPhoneBookCapacity.get(c, slot).getSpareEmailCount();
         if (DBG) {
             Log.d(TAG, "getSpareEmailCount(" + slot + ") = " + spareCount);
         }
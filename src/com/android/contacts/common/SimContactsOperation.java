@@ -31,12 +31,17 @@
 package com.android.contacts.common;
 
 import android.content.AsyncQueryHandler;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.ContentUris;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Contacts;
@@ -51,8 +56,13 @@ import android.telephony.SubscriptionManager;
 import android.telephony.SubscriptionInfo;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LongSparseArray;
 
 import com.android.contacts.common.SimContactsConstants;
+import com.google.common.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.List;
 
 public class SimContactsOperation {
 
@@ -63,6 +73,13 @@ public class SimContactsOperation {
     private static final int UPDATE_TOKEN = 2;
     private static final int DELETE_TOKEN = 3;
 
+    private static final int BATCH_APPLIED = 0;
+    private static final int BATCH_NOT_APPLIED = 1;
+    private static final int BATCH_FAILED = 2;
+
+    /** Number of contacts whose values are resolved with one query. */
+    public static final int BULK_QUERY_CHUNK_SIZE = 500;
+
     public static final String[] CONTACT_PROJECTION = new String[] {
         Contacts.Entity.RAW_CONTACT_ID,
         Contacts.Entity.CONTACT_ID,
@@ -112,6 +129,9 @@ public class SimContactsOperation {
 
         Uri resultUri;
         resultUri = mResolver.insert(uri,values);
+        if (resultUri != null) {
+            SimPhoneBookCapacity.onInserted(subscription, values);
+        }
         return resultUri;
     }
 
@@ -121,6 +141,17 @@ public class SimContactsOperation {
         int result = 0;
         if (uri == null)
             return result;
+        prepareUpdateValues(values);
+
+        result = mResolver.update(uri,values,null,null);
+        if (result > 0) {
+            SimPhoneBookCapacity.onUpdated(subscription, values);
+        }
+        return result;
+
+    }
+
+    private static void prepareUpdateValues(ContentValues values) {
         String oldNumber = values.getAsString(SimContactsConstants.STR_NUMBER);
         String newNumber = values.getAsString(SimContactsConstants.STR_NEW_NUMBER);
         String oldAnrs = values.getAsString(SimContactsConstants.STR_ANRS);
@@ -135,10 +166,6 @@ public class SimContactsOperation {
         }
         values.put(SimContactsConstants.STR_ANRS,oldAnrs);
         values.put(SimContactsConstants.STR_NEW_ANRS,newAnrs);
-
-        result = mResolver.update(uri,values,null,null);
-        return result;
-
     }
 
     public int delete(ContentValues values, int subscription) {
@@ -147,6 +174,16 @@ public class SimContactsOperation {
         int result = 0;
         if (uri == null)
             return result;
+
+        result = mResolver.delete(uri,buildDeleteSelection(values),null);
+        if (result > 0) {
+            SimPhoneBookCapacity.onDeleted(subscription, values, result);
+        }
+        return result;
+
+    }
+
+    private static String buildDeleteSelection(ContentValues values) {
         StringBuilder buf = new StringBuilder();
         String num = null;
         String name = values.getAsString(SimContactsConstants.STR_TAG);
@@ -180,10 +217,101 @@ public class SimContactsOperation {
             buf.append(anrs);
             buf.append("'");
         }
+        return buf.toString();
+    }
 
-        result = mResolver.delete(uri,buf.toString(),null);
-        return result;
+    /**
+     * Updates the given records of the SIM card in one call to the SIM provider, falling back
+     * to one call per record if the batch was rejected before reaching the provider.
+     *
+     * @return the number of records updated for each of the given values, 0 for all of them
+     *         if the batch failed in the provider
+     */
+    public int[] update(List<ContentValues> valuesList, int subscription) {
+        final int[] results = new int[valuesList.size()];
+        final Uri uri = getContentUri(subscription);
+        if (uri == null || valuesList.isEmpty()) {
+            return results;
+        }
+        final ArrayList<ContentProviderOperation> operations =
+                Lists.newArrayListWithCapacity(valuesList.size());
+        for (ContentValues values : valuesList) {
+            prepareUpdateValues(values);
+            operations.add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
+        }
+        if (applyBatch(uri, operations, results) == BATCH_NOT_APPLIED) {
+            for (int i = 0; i < results.length; i++) {
+                results[i] = mResolver.update(uri, valuesList.get(i), null, null);
+            }
+        }
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] > 0) {
+                SimPhoneBookCapacity.onUpdated(subscription, valuesList.get(i));
+            }
+        }
+        return results;
+    }
 
+    /**
+     * Deletes the given records from the SIM card in one call to the SIM provider, falling
+     * back to one call per record if the batch was rejected before reaching the provider.
+     *
+     * @return the number of records deleted for each of the given values, 0 for all of them
+     *         if the batch failed in the provider
+     */
+    public int[] delete(List<ContentValues> valuesList, int subscription) {
+        final int[] results = new int[valuesList.size()];
+        final Uri uri = getContentUri(subscription);
+        if (uri == null || valuesList.isEmpty()) {
+            return results;
+        }
+        final String[] selections = new String[valuesList.size()];
+        final ArrayList<ContentProviderOperation> operations =
+                Lists.newArrayListWithCapacity(valuesList.size());
+        for (int i = 0; i < selections.length; i++) {
+            selections[i] = buildDeleteSelection(valuesList.get(i));
+            operations.add(ContentProviderOperation.newDelete(uri)
+                    .withSelection(selections[i], null).build());
+        }
+        if (applyBatch(uri, operations, results) == BATCH_NOT_APPLIED) {
+            for (int i = 0; i < results.length; i++) {
+                results[i] = mResolver.delete(uri, selections[i], null);
+            }
+        }
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] > 0) {
+                SimPhoneBookCapacity.onDeleted(subscription, valuesList.get(i), results[i]);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Applies the operations in one call and fills in the number of records of each.
+     *
+     * @return {@link #BATCH_APPLIED}, {@link #BATCH_NOT_APPLIED} if the batch never reached the
+     *         provider, or {@link #BATCH_FAILED} if it failed in the provider
+     */
+    private int applyBatch(Uri uri, ArrayList<ContentProviderOperation> operations,
+            int[] results) {
+        try {
+            final ContentProviderResult[] batchResults =
+                    mResolver.applyBatch(uri.getAuthority(), operations);
+            for (int i = 0; i < results.length && i < batchResults.length; i++) {
+                results[i] = batchResults[i].count == null ? 0 : batchResults[i].count;
+            }
+            return BATCH_APPLIED;
+        } catch (TransactionTooLargeException e) {
+            Log.w(TAG, "Batch of " + operations.size() + " SIM operations is too large", e);
+            return BATCH_NOT_APPLIED;
+        } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+            // The SIM provider applies the operations one after the other, so those before
+            // the failing one were applied. Running them again could update or delete
+            // another, identical record.
+            Log.w(TAG, "Batch of " + operations.size() + " SIM operations failed", e);
+            SimPhoneBookCapacity.invalidateAll();
+            return BATCH_FAILED;
+        }
     }
 
     private Uri getContentUri(int subscription) {
@@ -230,63 +358,109 @@ public class SimContactsOperation {
     }
 
     public static ContentValues getSimAccountValues(long contactId) {
-        ContentValues mValues = new ContentValues();
+        final SimValuesBuilder builder = new SimValuesBuilder();
         Cursor cursor = setupContactCursor(contactId);
-        StringBuilder anr = new StringBuilder();
-        StringBuilder email = new StringBuilder();
         if (cursor == null) {
-            mValues.clear();
-            return mValues;
+            return builder.values;
         }
 
         try {
-            if (cursor.getCount() == 0 || !cursor.moveToFirst()) {
-                cursor.close();
-                return mValues;
-            }
             do {
-                String accountType = cursor
-                        .getString(CONTACT_COLUMN_ACCOUNT_TYPE);
-                String accountName = cursor.getString(CONTACT_COLUMN_ACCOUNT_NAME);
-                String mimeType = cursor
-                        .getString(CONTACT_COLUMN_DATA_MIMETYPE);
-                String data = cursor.getString(CONTACT_COLUMN_DATA);
-                String phoneType = cursor.getString(CONTACT_COLUMN_DATA_TYPE);
-                mValues.put(SimContactsConstants.ACCOUNT_TYPE, accountType);
-                mValues.put(SimContactsConstants.ACCOUNT_NAME, accountName);
-                if (TextUtils.isEmpty(data))
-                    continue;
-                if (SimContactsConstants.ACCOUNT_TYPE_SIM.equals(accountType)) {
-                    if (mimeType.equals(StructuredName.CONTENT_ITEM_TYPE)) {
-                        mValues.put(SimContactsConstants.STR_TAG, data);
-                    } else if (mimeType.equals(Phone.CONTENT_ITEM_TYPE)) {
-                        if (Integer.parseInt(phoneType) == Phone.TYPE_MOBILE) {
-                            mValues.put(SimContactsConstants.STR_NUMBER, data);
-                        } else {
-                            if (!TextUtils.isEmpty(anr.toString())) {
-                                anr.append(SimContactsConstants.ANR_SEP);
-                            }
-                            anr.append(data);
-                        }
-                    } else if (mimeType.equals(Email.CONTENT_ITEM_TYPE)) {
-                        if (!TextUtils.isEmpty(email.toString())) {
-                            email.append(SimContactsConstants.EMAIL_SEP);
-                        }
-                        email.append(data);
-                    }
-                }
+                builder.addRow(cursor);
             } while (cursor.moveToNext());
-
-            if(!TextUtils.isEmpty(anr.toString()))
-                mValues.put(SimContactsConstants.STR_ANRS, anr.toString());
-            if (!TextUtils.isEmpty(email.toString()))
-                mValues.put(SimContactsConstants.STR_EMAILS, email.toString());
         } catch (Exception e) {
             Log.d(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
         } finally {
             cursor.close();
-        } Log.d(TAG,"getSimAccountValue: " + mValues.toString());
-        return mValues;
+        }
+        final ContentValues values = builder.build();
+        Log.d(TAG,"getSimAccountValue: " + values.toString());
+        return values;
+    }
+
+    /**
+     * Resolves the SIM values and the subscriptions of the given contacts, like
+     * {@link #getSimAccountValues(long)} and {@link #getSimSubscription(long)} do for one
+     * contact, with one query per {@link #BULK_QUERY_CHUNK_SIZE} contacts.
+     *
+     * @param values receives the SIM values by contact id, may be null
+     * @param subscriptions receives the subscriptions by contact id, may be null. Contacts
+     *     that are not SIM contacts have {@link SubscriptionManager#INVALID_SUBSCRIPTION_ID}.
+     */
+    public static void loadSimAccounts(Context context, long[] contactIds,
+            LongSparseArray<ContentValues> values, LongSparseArray<Integer> subscriptions) {
+        final ContentResolver resolver = context.getContentResolver();
+        final LongSparseArray<SimValuesBuilder> builders = new LongSparseArray<SimValuesBuilder>();
+        for (int start = 0; start < contactIds.length; start += BULK_QUERY_CHUNK_SIZE) {
+            final int end = Math.min(start + BULK_QUERY_CHUNK_SIZE, contactIds.length);
+            final StringBuilder selection = new StringBuilder();
+            selection.append(Data.CONTACT_ID).append(" IN (");
+            for (int i = start; i < end; i++) {
+                if (i > start) {
+                    selection.append(',');
+                }
+                selection.append(contactIds[i]);
+                if (subscriptions != null) {
+                    subscriptions.put(contactIds[i], SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+                }
+            }
+            selection.append(')');
+
+            final Cursor cursor;
+            try {
+                cursor = resolver.query(Data.CONTENT_URI, CONTACT_PROJECTION,
+                        selection.toString(), null,
+                        Data.CONTACT_ID + "," + Data.RAW_CONTACT_ID + "," + Data._ID);
+            } catch (Exception e) {
+                Log.e(TAG, e.getMessage());
+                continue;
+            }
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    final long contactId = cursor.getLong(CONTACT_COLUMN_CONTACT_ID);
+                    SimValuesBuilder builder = builders.get(contactId);
+                    if (builder == null) {
+                        builder = new SimValuesBuilder();
+                        builders.put(contactId, builder);
+                        if (subscriptions != null) {
+                            subscriptions.put(contactId, getSubscription(cursor));
+                        }
+                    }
+                    if (values != null) {
+                        try {
+                            builder.addRow(cursor);
+                        } catch (RuntimeException e) {
+                            Log.d(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+                        }
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        if (values != null) {
+            for (int i = 0; i < builders.size(); i++) {
+                values.put(builders.keyAt(i), builders.valueAt(i).build());
+            }
+            for (long contactId : contactIds) {
+                if (values.get(contactId) == null) {
+                    values.put(contactId, new ContentValues());
+                }
+            }
+        }
+    }
+
+    private static int getSubscription(Cursor cursor) {
+        String accountName = cursor.getString(CONTACT_COLUMN_ACCOUNT_NAME);
+        String accountType = cursor.getString(CONTACT_COLUMN_ACCOUNT_TYPE);
+        if (accountType == null || accountName == null
+                || !SimContactsConstants.ACCOUNT_TYPE_SIM.equals(accountType)) {
+            return SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        }
+        return MoreContactUtils.getSubscription(accountType, accountName);
     }
 
     public static int getSimSubscription(long contactId) {
@@ -296,17 +470,59 @@ public class SimContactsOperation {
             return subscription;
         }
 
-        String accountName = cursor.getString(cursor.getColumnIndex(RawContacts.ACCOUNT_NAME));
-        String accountType = cursor.getString(cursor.getColumnIndex(RawContacts.ACCOUNT_TYPE));
-        if (accountType == null || accountName == null) {
-            cursor.close();
-            return subscription;
-        }
-        if (SimContactsConstants.ACCOUNT_TYPE_SIM.equals(accountType)) {
-            subscription = MoreContactUtils.getSubscription(accountType, accountName);
-        }
+        subscription = getSubscription(cursor);
         cursor.close();
         return subscription;
     }
 
+    /**
+     * Collects the SIM values of one contact from its rows.
+     */
+    private static final class SimValuesBuilder {
+        final ContentValues values = new ContentValues();
+        private final StringBuilder mAnr = new StringBuilder();
+        private final StringBuilder mEmail = new StringBuilder();
+
+        void addRow(Cursor cursor) {
+            String accountType = cursor
+                    .getString(CONTACT_COLUMN_ACCOUNT_TYPE);
+            String accountName = cursor.getString(CONTACT_COLUMN_ACCOUNT_NAME);
+            String mimeType = cursor
+                    .getString(CONTACT_COLUMN_DATA_MIMETYPE);
+            String data = cursor.getString(CONTACT_COLUMN_DATA);
+            String phoneType = cursor.getString(CONTACT_COLUMN_DATA_TYPE);
+            values.put(SimContactsConstants.ACCOUNT_TYPE, accountType);
+            values.put(SimContactsConstants.ACCOUNT_NAME, accountName);
+            if (TextUtils.isEmpty(data))
+                return;
+            if (SimContactsConstants.ACCOUNT_TYPE_SIM.equals(accountType)) {
+                if (mimeType.equals(StructuredName.CONTENT_ITEM_TYPE)) {
+                    values.put(SimContactsConstants.STR_TAG, data);
+                } else if (mimeType.equals(Phone.CONTENT_ITEM_TYPE)) {
+                    if (Integer.parseInt(phoneType) == Phone.TYPE_MOBILE) {
+                        values.put(SimContactsConstants.STR_NUMBER, data);
+                    } else {
+                        if (mAnr.length() > 0) {
+                            mAnr.append(SimContactsConstants.ANR_SEP);
+                        }
+                        mAnr.append(data);
+                    }
+                } else if (mimeType.equals(Email.CONTENT_ITEM_TYPE)) {
+                    if (mEmail.length() > 0) {
+                        mEmail.append(SimContactsConstants.EMAIL_SEP);
+                    }
+                    mEmail.append(data);
+                }
+            }
+        }
+
+        ContentValues build() {
+            if (mAnr.length() > 0)
+                values.put(SimContactsConstants.STR_ANRS, mAnr.toString());
+            if (mEmail.length() > 0)
+                values.put(SimContactsConstants.STR_EMAILS, mEmail.toString());
+            return values;
+        }
+    }
+
 }
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.content.BroadcastReceiver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.Cursor;
+import android.provider.ContactsContract.RawContacts;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.SparseArray;
+
+import org.codeaurora.wrapper.UiccPhoneBookController_Wrapper;
+
+/**
+ * The capacity of the phone book of a SIM card: how many records, emails and additional
+ * numbers it can hold and how many are used. Read from the SIM card once per slot and then
+ * kept up to date as {@link SimContactsOperation} writes to the card. Read again after the
+ * SIM state or the subscriptions change.
+ */
+public final class SimPhoneBookCapacity {
+    private static final String TAG = "SimPhoneBookCapacity";
+
+    // Not public, see TelephonyIntents.
+    private static final String ACTION_SIM_STATE_CHANGED =
+            "android.intent.action.SIM_STATE_CHANGED";
+    private static final String ACTION_SUBINFO_RECORD_UPDATED =
+            "android.intent.action.ACTION_SUBINFO_RECORD_UPDATED";
+
+    // Positions in the result of getAdnRecordsCapacityForSubscriber().
+    private static final int ADN_COUNT_POS = 0;
+    private static final int ADN_USED_POS = 1;
+    private static final int EMAIL_COUNT_POS = 2;
+    private static final int EMAIL_USED_POS = 3;
+    private static final int ANR_COUNT_POS = 4;
+    private static final int ANR_USED_POS = 5;
+
+    private static final SparseArray<SimPhoneBookCapacity> sCapacities =
+            new SparseArray<SimPhoneBookCapacity>();
+    /** Incremented when the capacities are invalidated, guarded by sCapacities. */
+    private static int sGeneration;
+    private static boolean sReceiverRegistered;
+
+    private static final BroadcastReceiver sReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidateAll();
+        }
+    };
+
+    private final int mSlot;
+    private final int mAdnCount;
+    private final int mEmailCount;
+    private final int mAnrCount;
+    private int mAdnUsed;
+    private int mEmailUsed;
+    private int mAnrUsed;
+
+    private SimPhoneBookCapacity(int slot, int[] capacity) {
+        mSlot = slot;
+        if (capacity == null) {
+            mAdnCount = mEmailCount = mAnrCount = 0;
+        } else {
+            mAdnCount = capacity[ADN_COUNT_POS];
+            mAdnUsed = capacity[ADN_USED_POS];
+            mEmailCount = capacity[EMAIL_COUNT_POS];
+            mEmailUsed = capacity[EMAIL_USED_POS];
+            mAnrCount = capacity[ANR_COUNT_POS];
+            mAnrUsed = capacity[ANR_USED_POS];
+        }
+    }
+
+    /**
+     * Returns the capacity of the SIM card in the given slot. Reads it from the card if it
+     * was not read since the SIM state last changed. A capacity that could not be read is
+     * empty and is not kept.
+     */
+    public static SimPhoneBookCapacity get(Context context, int slot) {
+        final int generation;
+        synchronized (sCapacities) {
+            final SimPhoneBookCapacity capacity = sCapacities.get(slot);
+            if (capacity != null) {
+                return capacity;
+            }
+            if (!sReceiverRegistered) {
+                final IntentFilter filter = new IntentFilter(ACTION_SIM_STATE_CHANGED);
+                filter.addAction(ACTION_SUBINFO_RECORD_UPDATED);
+                context.getApplicationContext().registerReceiver(sReceiver, filter);
+                sReceiverRegistered = true;
+            }
+            generation = sGeneration;
+        }
+
+        final int[] values = readCapacity(context, slot);
+        final SimPhoneBookCapacity capacity = new SimPhoneBookCapacity(slot, values);
+        if (values == null) {
+            return capacity;
+        }
+        synchronized (sCapacities) {
+            final SimPhoneBookCapacity existing = sCapacities.get(slot);
+            if (existing != null) {
+                return existing;
+            }
+            if (generation == sGeneration) {
+                sCapacities.put(slot, capacity);
+            }
+        }
+        return capacity;
+    }
+
+    /**
+     * Forgets the capacities of all SIM cards, so that they are read again.
+     */
+    public static void invalidateAll() {
+        synchronized (sCapacities) {
+            sCapacities.clear();
+            sGeneration++;
+        }
+    }
+
+    private static int[] readCapacity(Context context, int slot) {
+        final int subId = MoreContactUtils.getActiveSubId(context, slot);
+        try {
+            return UiccPhoneBookController_Wrapper.getAdnRecordsCapacityForSubscriber(subId);
+        } catch (Exception ex) {
+            Log.d(TAG, ex.toString());
+            return null;
+        }
+    }
+
+    public int getAdnCount() {
+        return mAdnCount;
+    }
+
+    public int getEmailCount() {
+        return mEmailCount;
+    }
+
+    public int getAnrCount() {
+        return mAnrCount;
+    }
+
+    public synchronized int getAdnUsedCount() {
+        return mAdnUsed;
+    }
+
+    public synchronized int getSpareEmailCount() {
+        return mEmailCount - mEmailUsed;
+    }
+
+    public synchronized int getSpareAnrCount() {
+        return mAnrCount - mAnrUsed;
+    }
+
+    /**
+     * Returns the number of additional numbers that one record can hold.
+     */
+    public int getAnrCountPerRecord() {
+        return perRecord(mAnrCount);
+    }
+
+    /**
+     * Returns the number of emails that one record can hold.
+     */
+    public int getEmailCountPerRecord() {
+        return perRecord(mEmailCount);
+    }
+
+    private int perRecord(int count) {
+        if (mAdnCount <= 0) {
+            return 0;
+        }
+        return count % mAdnCount != 0 ? (count / mAdnCount + 1) : (count / mAdnCount);
+    }
+
+    /**
+     * Returns the number of records that can still be added, based on the number of raw
+     * contacts of the SIM account. The raw contacts are counted on every call, since they
+     * also change through sync and the SIM contacts import, which do not go through
+     * {@link SimContactsOperation}.
+     */
+    public int getFreeCount(Context context) {
+        return mAdnCount - querySimContactCount(context);
+    }
+
+    private int querySimContactCount(Context context) {
+        final String accountName = MoreContactUtils.getAcount(context, mSlot).name;
+        final Cursor cursor = context.getContentResolver().query(RawContacts.CONTENT_URI,
+                new String[] {RawContacts._ID},
+                RawContacts.ACCOUNT_NAME + "=? AND " + RawContacts.DELETED + "=0",
+                new String[] {accountName}, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Records that the given values were inserted into the SIM card in the given slot.
+     */
+    public static void onInserted(int slot, ContentValues values) {
+        final SimPhoneBookCapacity capacity = getIfLoaded(slot);
+        if (capacity != null) {
+            capacity.update(1, count(values.getAsString(SimContactsConstants.STR_EMAILS),
+                    SimContactsConstants.EMAIL_SEP),
+                    count(values.getAsString(SimContactsConstants.STR_ANRS),
+                            SimContactsConstants.ANR_SEP));
+        }
+    }
+
+    /**
+     * Records that the given values were updated in the SIM card in the given slot.
+     */
+    public static void onUpdated(int slot, ContentValues values) {
+        final SimPhoneBookCapacity capacity = getIfLoaded(slot);
+        if (capacity != null) {
+            capacity.update(0,
+                    count(values.getAsString(SimContactsConstants.STR_NEW_EMAILS),
+                            SimContactsConstants.EMAIL_SEP)
+                    - count(values.getAsString(SimContactsConstants.STR_EMAILS),
+                            SimContactsConstants.EMAIL_SEP),
+                    count(values.getAsString(SimContactsConstants.STR_NEW_ANRS),
+                            SimContactsConstants.ANR_SEP)
+                    - count(values.getAsString(SimContactsConstants.STR_ANRS),
+                            SimContactsConstants.ANR_SEP));
+        }
+    }
+
+    /**
+     * Records that the given number of records with the given values were deleted from the
+     * SIM card in the given slot.
+     */
+    public static void onDeleted(int slot, ContentValues values, int records) {
+        final SimPhoneBookCapacity capacity = getIfLoaded(slot);
+        if (capacity != null) {
+            capacity.update(-records, -records * count(
+                    values.getAsString(SimContactsConstants.STR_EMAILS),
+                    SimContactsConstants.EMAIL_SEP),
+                    -records * count(values.getAsString(SimContactsConstants.STR_ANRS),
+                            SimContactsConstants.ANR_SEP));
+        }
+    }
+
+    private static SimPhoneBookCapacity getIfLoaded(int slot) {
+        synchronized (sCapacities) {
+            return sCapacities.get(slot);
+        }
+    }
+
+    private synchronized void update(int records, int emails, int anrs) {
+        mAdnUsed = Math.max(0, mAdnUsed + records);
+        mEmailUsed = Math.max(0, mEmailUsed + emails);
+        mAnrUsed = Math.max(0, mAnrUsed + anrs);
+    }
+
+    private static int count(String values, String separator) {
+        if (TextUtils.isEmpty(values)) {
+            return 0;
+        }
+        int count = 0;
+        for (String value : TextUtils.split(values, separator)) {
+            if (!TextUtils.isEmpty(value)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -27,7 +27,6 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnDismissListener;
@@ -80,8 +79,10 @@ import com.android.contacts.common.util.ImplicitIntentsUtil;
 import com.android.contacts.common.vcard.ExportVCardActivity;
 import com.android.contacts.common.vcard.VCardCommonArguments;
 import com.android.contacts.common.vcard.ShareVCardActivity;
+import com.android.contacts.common.vcard.VCardShareProvider;
 import com.android.contacts.commonbind.analytics.AnalyticsUtil;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -110,10 +111,12 @@ public class ImportExportDialogFragment extends DialogFragment
     // This values must be consistent with ImportExportDialogFragment.SUBACTIVITY_EXPORT_CONTACTS.
     // This values is set 101,That is avoid to conflict with other new subactivity.
     public static final int SUBACTIVITY_SHARE_VISILBLE_CONTACTS = 101;
+    // Limit of contacts shared through Contacts.CONTENT_MULTI_VCARD_URI, whose URI holds the
+    // lookup keys of all of them. VCardShareProvider, when the app declares it, has no limit.
     public static final int MAX_COUNT_ALLOW_SHARE_CONTACT = 2000;
 
-    private final String[] LOOKUP_PROJECTION = new String[] {
-            Contacts.LOOKUP_KEY
+    private final String[] SHARE_PROJECTION = new String[] {
+            Contacts._ID, Contacts.LOOKUP_KEY
     };
 
     static final int PHONE_ID_COLUMN_INDEX = 0;
@@ -145,6 +148,8 @@ public class ImportExportDialogFragment extends DialogFragment
 
     // only for export failed in exporting progress
     private static final int TOAST_SIM_EXPORT_FAILED = 7;
+    // updates the progress of exporting to sim card
+    private static final int UPDATE_EXPORT_PROGRESS = 8;
 
     private SimContactsOperation mSimContactsOperation;
 
@@ -346,7 +351,7 @@ public class ImportExportDialogFragment extends DialogFragment
     private void doShareFavoriteContacts() {
         try {
             final Cursor cursor = getActivity().getContentResolver().query(
-                    Contacts.CONTENT_STREQUENT_URI, LOOKUP_PROJECTION, null,
+                    Contacts.CONTENT_STREQUENT_URI, SHARE_PROJECTION, null,
                     null, Contacts.DISPLAY_NAME + " COLLATE NOCASE ASC");
             if (cursor != null) {
                 try {
@@ -357,22 +362,36 @@ public class ImportExportDialogFragment extends DialogFragment
                         return;
                     }
 
-                    // Build multi-vcard Uri for sharing
-                    final StringBuilder uriListBuilder = new StringBuilder();
-                    int index = 0;
-                    do {
-                        if (index != 0)
-                            uriListBuilder.append(':');
-                        uriListBuilder.append(cursor.getString(0));
-                        index++;
-                    } while (cursor.moveToNext());
-                    final Uri uri = Uri.withAppendedPath(
-                            Contacts.CONTENT_MULTI_VCARD_URI,
-                            Uri.encode(uriListBuilder.toString()));
-
-                    final Intent intent = new Intent(Intent.ACTION_SEND);
-                    intent.setType(Contacts.CONTENT_VCARD_TYPE);
-                    intent.putExtra(Intent.EXTRA_STREAM, uri);
+                    final Intent intent;
+                    if (VCardShareProvider.isAvailable(getActivity())) {
+                        // Share the contacts through VCardShareProvider, which composes the
+                        // vCards as they are read, however many contacts there are.
+                        final long[] contactIds = new long[cursor.getCount()];
+                        int count = 0;
+                        do {
+                            contactIds[count++] = cursor.getLong(0);
+                        } while (cursor.moveToNext() && count < contactIds.length);
+                        intent = VCardShareProvider.createShareIntent(getActivity(),
+                                count < contactIds.length
+                                        ? Arrays.copyOf(contactIds, count) : contactIds);
+                    } else {
+                        // Build multi-vcard Uri for sharing
+                        final StringBuilder uriListBuilder = new StringBuilder();
+                        int index = 0;
+                        do {
+                            if (index != 0)
+                                uriListBuilder.append(':');
+                            uriListBuilder.append(cursor.getString(1));
+                            index++;
+                        } while (cursor.moveToNext());
+                        final Uri uri = Uri.withAppendedPath(
+                                Contacts.CONTENT_MULTI_VCARD_URI,
+                                Uri.encode(uriListBuilder.toString()));
+
+                        intent = new Intent(Intent.ACTION_SEND);
+                        intent.setType(Contacts.CONTENT_VCARD_TYPE);
+                        intent.putExtra(Intent.EXTRA_STREAM, uri);
+                    }
                     ImplicitIntentsUtil.startActivityOutsideApp(getActivity(),
                             intent);
                 } finally {
@@ -498,6 +517,8 @@ public class ImportExportDialogFragment extends DialogFragment
                 new ArrayList<ContentProviderOperation>();
         private Account account;
         final int BATCH_INSERT_NUMBER = 500;
+        /** Number of contacts handled so far, read on the main thread. */
+        private volatile int mExportedCount;
 
         public ExportToSimThread(int subscription, ArrayList<String[]> contactList,
             Activity mActivity) {
@@ -520,6 +541,7 @@ public class ImportExportDialogFragment extends DialogFragment
             boolean isAirplaneMode = false;
             boolean isSimCardFull = false;
             boolean isSimCardLoaded = true;
+            boolean isLoadFailed = false;
             // GoogleSource.createMyContactsIfNotExist(account, getActivity());
             // in case export is stopped, record the count of inserted successfully
             int insertCount = 0;
@@ -541,52 +563,45 @@ public class ImportExportDialogFragment extends DialogFragment
             int emptyNumber = freeSimCount + emptyAnr;
 
             Log.d(TAG, "freeSimCount = " + freeSimCount);
-            String emails = null;
-                if (contactList != null) {
+            if (contactList != null) {
+                // Load the data of the contacts ahead of the inserts, many at a time
+                final long[] contactIds = new long[contactList.size()];
+                for (int i = 0; i < contactIds.length; i++) {
+                    contactIds[i] = Long.parseLong(contactList.get(i)[1]);
+                }
+                final SimExportDataLoader loader = new SimExportDataLoader(
+                        mPeople.getContentResolver(), contactIds, canSaveEmail);
+                loader.start();
+                // Whether the last iteration handled a contact that is not counted yet
+                boolean handled = false;
+                try {
                     Iterator<String[]> iterator = contactList.iterator();
                     while (iterator.hasNext() && !canceled && isSimCardLoaded) {
+                        if (handled) {
+                            setExportProgress(++mExportedCount);
+                            handled = false;
+                        }
                         String[] contactInfo = iterator.next();
-                        //contacts name has been existed in contactInfo,so no need query it again
-                        String name = "";
+                        final SimExportDataLoader.ContactData data = loader.next();
+                        if (data == null) {
+                            // The loader stopped before all contacts were loaded
+                            isLoadFailed = true;
+                            break;
+                        }
+                        handled = true;
+                        String name = data.name;
                         ArrayList<String> arrayNumber = new ArrayList<String>();
                         ArrayList<String> arrayEmail = new ArrayList<String>();
-
-                        Uri dataUri = Uri.withAppendedPath(
-                                ContentUris.withAppendedId(Contacts.CONTENT_URI,
-                                        Long.parseLong(contactInfo[1])),
-                                Contacts.Data.CONTENT_DIRECTORY);
-                        final String[] projection = new String[] {
-                                Contacts._ID, Contacts.Data.MIMETYPE, Contacts.Data.DATA1,
-                        };
-                        Cursor c = mPeople.getContentResolver().query(dataUri, projection, null,
-                                null, null);
-
-                        if (c != null && c.moveToFirst()) {
-                            do {
-                                String mimeType = c.getString(1);
-                                if (StructuredName.CONTENT_ITEM_TYPE.equals(mimeType)) {
-                                    name = c.getString(2);
-                                }
-                                if (Phone.CONTENT_ITEM_TYPE.equals(mimeType)) {
-                                    String number = c.getString(2);
-                                    if (!TextUtils.isEmpty(number) && emptyNumber-- >0) {
-                                        arrayNumber.add(number);
-                                    }
-                                }
-                                if (canSaveEmail) {
-                                    if (Email.CONTENT_ITEM_TYPE.equals(mimeType)) {
-                                        String email = c.getString(2);
-                                        if (!TextUtils.isEmpty(email) && emptyEmail-- > 0) {
-                                            arrayEmail.add(email);
-                                        }
-                                    }
-                                }
-                            } while (c.moveToNext());
+                        for (String number : data.numbers) {
+                            if (emptyNumber-- > 0) {
+                                arrayNumber.add(number);
+                            }
                         }
-                        if (c != null) {
-                            c.close();
+                        for (String email : data.emails) {
+                            if (emptyEmail-- > 0) {
+                                arrayEmail.add(email);
+                            }
                         }
-
                         if (freeSimCount > 0 && 0 == arrayNumber.size()
                                 && 0 == arrayEmail.size()) {
                             mToastHandler.sendMessage(mToastHandler.obtainMessage(
@@ -696,20 +711,13 @@ public class ImportExportDialogFragment extends DialogFragment
                             break;
                         }
                     }
-
-                if (operationList.size() > 0) {
-                    try {
-                        mPeople.getContentResolver().applyBatch(
-                                android.provider.ContactsContract.AUTHORITY,
-                                operationList);
-                    } catch (Exception e) {
-                        Log.e(TAG,
-                                String.format("%s: %s", e.toString(),
-                                        e.getMessage()));
-                    } finally {
-                        operationList.clear();
-                    }
+                } finally {
+                    loader.stop();
                 }
+                if (handled && !isSimCardFull) {
+                    setExportProgress(++mExportedCount);
+                }
+                applyOperations();
             }
             if (mExportProgressDlg != null) {
                 mExportProgressDlg.dismiss();
@@ -721,6 +729,9 @@ public class ImportExportDialogFragment extends DialogFragment
                 if (canceled) {
                     mToastHandler.sendMessage(mToastHandler.obtainMessage(TOAST_EXPORT_CANCELED,
                             insertCount, 0));
+                } else if (isLoadFailed) {
+                    mToastHandler.sendMessage(mToastHandler.obtainMessage(TOAST_EXPORT_FAILED,
+                            insertCount, 0));
                 } else {
                     mToastHandler.sendEmptyMessage(TOAST_EXPORT_FINISHED);
                 }
@@ -748,6 +759,15 @@ public class ImportExportDialogFragment extends DialogFragment
             }
             Log.d(TAG, "insertToPhone: name= " + name + ", phoneNumber= " + phoneNumber
                     + ", emails= " + emailAddresses + ", anrs= " + anrs + ", account= " + account);
+            // Keep the operations of one raw contact in the same transaction
+            final int operationCount = 1 + (TextUtils.isEmpty(name) ? 0 : 1)
+                    + (TextUtils.isEmpty(phoneNumber) ? 0 : 1)
+                    + (anrArray == null ? 0 : anrArray.length)
+                    + (emailAddressArray == null ? 0 : emailAddressArray.length);
+            if (operationList.size() + operationCount > BATCH_INSERT_NUMBER) {
+                applyOperations();
+            }
+
             ContentProviderOperation.Builder builder = ContentProviderOperation
                     .newInsert(RawContacts.CONTENT_URI);
             builder.withValue(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_DISABLED);
@@ -803,26 +823,43 @@ public class ImportExportDialogFragment extends DialogFragment
                 }
             }
 
-            if (BATCH_INSERT_NUMBER - operationList.size() < 10) {
-                try {
-                    mPeople.getContentResolver().applyBatch(
-                            android.provider.ContactsContract.AUTHORITY,
-                            operationList);
-                } catch (Exception e) {
-                    Log.e(TAG,
-                            String.format("%s: %s", e.toString(),
-                                    e.getMessage()));
-                } finally {
-                    operationList.clear();
-                }
+        }
+
+        /**
+         * Inserts the raw contacts mirroring the exported SIM contacts, in one transaction.
+         */
+        private void applyOperations() {
+            if (operationList.isEmpty()) {
+                return;
+            }
+            try {
+                mPeople.getContentResolver().applyBatch(
+                        android.provider.ContactsContract.AUTHORITY,
+                        operationList);
+            } catch (Exception e) {
+                Log.e(TAG,
+                        String.format("%s: %s", e.toString(),
+                                e.getMessage()));
+            } finally {
+                operationList.clear();
             }
         }
 
+        private void setExportProgress(int count) {
+            mToastHandler.sendMessage(mToastHandler.obtainMessage(UPDATE_EXPORT_PROGRESS,
+                    count, 0));
+        }
+
         private Handler mToastHandler = new Handler() {
             @Override
             public void handleMessage(Message msg) {
                 int exportCount = 0;
                 switch (msg.what) {
+                case UPDATE_EXPORT_PROGRESS:
+                    if (mExportProgressDlg != null) {
+                        mExportProgressDlg.setProgress(msg.arg1);
+                    }
+                    break;
                 case TOAST_EXPORT_FAILED:
                     exportCount = msg.arg1;
                     Toast.makeText(
@@ -907,7 +944,7 @@ public class ImportExportDialogFragment extends DialogFragment
             mExportProgressDlg.setProgressNumberFormat(mPeople.getString(
                 R.string.reading_vcard_files));
             mExportProgressDlg.setMax(contactList.size());
-            //mExportProgressDlg.setProgress(insertCount);
+            mExportProgressDlg.setProgress(mExportedCount);
 
             // set cancel dialog by touching outside disabled.
             mExportProgressDlg.setCanceledOnTouchOutside(false);
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.interactions;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.google.common.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the names, phone numbers and emails of the contacts exported to a SIM card, ahead of
+ * the export. The data rows are queried for many contacts at once on a separate thread and
+ * handed over in chunks through a bounded queue, so that loading overlaps with writing to the
+ * SIM card without reading everything into memory.
+ */
+/* package */ final class SimExportDataLoader implements Runnable {
+    private static final String TAG = "SimExportDataLoader";
+
+    /** Number of contacts loaded with one query, well below the SQLite variable limit. */
+    private static final int CHUNK_SIZE = 200;
+
+    /** Number of loaded chunks that may wait for the export. */
+    private static final int MAX_QUEUED_CHUNKS = 2;
+
+    private static final long QUEUE_POLL_MILLIS = 100;
+
+    private static final String[] PROJECTION = new String[] {
+            Data.CONTACT_ID, Data.MIMETYPE, Data.DATA1,
+    };
+    private static final int CONTACT_ID_COLUMN = 0;
+    private static final int MIMETYPE_COLUMN = 1;
+    private static final int DATA1_COLUMN = 2;
+
+    /** Marks the end of the queue. */
+    private static final List<ContactData> END = Collections.emptyList();
+
+    /**
+     * The data of one exported contact.
+     */
+    public static final class ContactData {
+        public final long contactId;
+        public String name = "";
+        public final ArrayList<String> numbers = Lists.newArrayList();
+        public final ArrayList<String> emails = Lists.newArrayList();
+
+        private ContactData(long contactId) {
+            this.contactId = contactId;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final long[] mContactIds;
+    private final boolean mLoadEmails;
+    private final BlockingQueue<List<ContactData>> mQueue =
+            new ArrayBlockingQueue<List<ContactData>>(MAX_QUEUED_CHUNKS);
+    private volatile boolean mStopped;
+
+    /** Only used by the consuming thread. */
+    private Iterator<ContactData> mChunk;
+    private boolean mEnded;
+
+    public SimExportDataLoader(ContentResolver resolver, long[] contactIds, boolean loadEmails) {
+        mResolver = resolver;
+        mContactIds = contactIds;
+        mLoadEmails = loadEmails;
+    }
+
+    public void start() {
+        new Thread(this, TAG).start();
+    }
+
+    /**
+     * Stops loading. Must be called once the consumer no longer needs the data.
+     */
+    public void stop() {
+        mStopped = true;
+        mQueue.clear();
+    }
+
+    /**
+     * Returns the data of the next contact, in the order of the contact ids, waiting for it to
+     * be loaded if needed. Returns null once all contacts were returned.
+     */
+    public ContactData next() {
+        while (!mEnded) {
+            if (mChunk != null && mChunk.hasNext()) {
+                return mChunk.next();
+            }
+            final List<ContactData> chunk;
+            try {
+                chunk = mQueue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            if (chunk == END) {
+                mEnded = true;
+            } else {
+                mChunk = chunk.iterator();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (int start = 0; start < mContactIds.length && !mStopped; start += CHUNK_SIZE) {
+                final int end = Math.min(start + CHUNK_SIZE, mContactIds.length);
+                if (!put(loadChunk(start, end))) {
+                    return;
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to load the exported contacts", e);
+        } finally {
+            put(END);
+        }
+    }
+
+    private List<ContactData> loadChunk(int start, int end) {
+        final List<ContactData> chunk = Lists.newArrayListWithCapacity(end - start);
+        final LongSparseArray<ContactData> byId = new LongSparseArray<ContactData>(end - start);
+        final StringBuilder selection = new StringBuilder();
+        selection.append(Data.CONTACT_ID).append(" IN (");
+        for (int i = start; i < end; i++) {
+            final long contactId = mContactIds[i];
+            ContactData data = byId.get(contactId);
+            if (data == null) {
+                data = new ContactData(contactId);
+                byId.put(contactId, data);
+                if (i > start) {
+                    selection.append(',');
+                }
+                selection.append(contactId);
+            }
+            // A contact selected twice is exported twice, as before.
+            chunk.add(data);
+        }
+        selection.append(") AND ").append(Data.MIMETYPE).append(" IN (?,?,?)");
+
+        final Cursor cursor = mResolver.query(Data.CONTENT_URI, PROJECTION, selection.toString(),
+                new String[] {StructuredName.CONTENT_ITEM_TYPE, Phone.CONTENT_ITEM_TYPE,
+                        Email.CONTENT_ITEM_TYPE},
+                Data.CONTACT_ID + "," + Data.RAW_CONTACT_ID + "," + Data._ID);
+        if (cursor == null) {
+            return chunk;
+        }
+        try {
+            while (cursor.moveToNext() && !mStopped) {
+                final ContactData data = byId.get(cursor.getLong(CONTACT_ID_COLUMN));
+                if (data == null) {
+                    continue;
+                }
+                final String mimeType = cursor.getString(MIMETYPE_COLUMN);
+                final String value = cursor.getString(DATA1_COLUMN);
+                if (StructuredName.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                    data.name = value;
+                } else if (TextUtils.isEmpty(value)) {
+                    continue;
+                } else if (Phone.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                    data.numbers.add(value);
+                } else if (mLoadEmails && Email.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                    data.emails.add(value);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return chunk;
+    }
+
+    private boolean put(List<ContactData> chunk) {
+        while (!mStopped) {
+            try {
+                if (mQueue.offer(chunk, QUEUE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+}
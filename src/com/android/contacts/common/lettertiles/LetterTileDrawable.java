@@ -19,6 +19,7 @@ package com.android.contacts.common.lettertiles;
 
 import android.accounts.Account;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
@@ -32,6 +33,7 @@ import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.text.TextUtils;
 import android.telephony.TelephonyManager;
+import android.util.LruCache;
 
 import com.android.contacts.common.MoreContactUtils;
 import com.android.contacts.common.model.account.SimAccountType;
@@ -63,6 +65,21 @@ public class LetterTileDrawable extends Drawable {
     private static Bitmap[] DEFAULT_CUSTOMIZE_SIM_PERSON_AVATAR =
             new Bitmap[MoreContactUtils.IC_SIM_PICTURE.length];
 
+    /**
+     * Rendered tiles, shared by all drawables. Most tiles in a list share a few combinations
+     * of letter, color and size, so they are drawn once and then copied.
+     */
+    private static final LruCache<String, Bitmap> sTileCache =
+            new LruCache<String, Bitmap>(getTileCacheSize()) {
+                @Override
+                protected int sizeOf(String key, Bitmap value) {
+                    return value.getByteCount();
+                }
+            };
+    /** The configuration the cached tiles were rendered for. */
+    private static Configuration sTileCacheConfiguration;
+    private static final StringBuilder sTileKeyBuilder = new StringBuilder();
+
     /** Reusable components to avoid new allocations */
     private static final Paint sPaint = new Paint();
     private static final Rect sRect = new Rect();
@@ -112,6 +129,12 @@ public class LetterTileDrawable extends Drawable {
             sPaint.setTextAlign(Align.CENTER);
             sPaint.setAntiAlias(true);
         }
+        final Configuration configuration = res.getConfiguration();
+        if (sTileCacheConfiguration == null || !sTileCacheConfiguration.equals(configuration)) {
+            // Font, density and colors may differ from what the tiles were rendered with.
+            sTileCache.evictAll();
+            sTileCacheConfiguration = new Configuration(configuration);
+        }
         mPaint = new Paint();
         mPaint.setFilterBitmap(true);
         mPaint.setDither(true);
@@ -127,17 +150,56 @@ public class LetterTileDrawable extends Drawable {
             return;
         }
         // Draw letter tile.
-        drawLetterTile(canvas);
+        final Bitmap tile = getTile(bounds);
+        if (tile != null) {
+            canvas.drawBitmap(tile, bounds.left, bounds.top, mPaint);
+        } else {
+            drawLetterTile(canvas, bounds);
+        }
+    }
+
+    private static int getTileCacheSize() {
+        return (int) Math.min(Runtime.getRuntime().maxMemory() / 32, 4 * 1024 * 1024);
+    }
+
+    /**
+     * Returns the rendered tile for the given bounds from the cache, rendering it if needed,
+     * or null if the tile has to be drawn directly.
+     */
+    private Bitmap getTile(final Rect bounds) {
+        final int width = bounds.width();
+        final int height = bounds.height();
+        // Tiles of SIM contacts depend on the SIM settings, and the color filter and alpha
+        // only apply to parts of a tile, so these are drawn directly. Large tiles would evict
+        // all others.
+        if ((mAccount != null && SimAccountType.ACCOUNT_TYPE.equals(mAccount.type))
+                || mPaint.getColorFilter() != null || mPaint.getAlpha() != 255
+                || width * height * 4 > sTileCache.maxSize() / 8) {
+            return null;
+        }
+
+        sTileKeyBuilder.setLength(0);
+        final String key = sTileKeyBuilder.append(mLetter == null ? "" : mLetter).append('/')
+                .append(mColor).append('/').append(width).append('x').append(height).append('/')
+                .append(mIsCircle).append('/').append(mContactType).append('/')
+                .append(mScale).append('/').append(mOffset).toString();
+        Bitmap tile = sTileCache.get(key);
+        if (tile == null) {
+            tile = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            drawLetterTile(new Canvas(tile), new Rect(0, 0, width, height));
+            sTileCache.put(key, tile);
+        }
+        return tile;
     }
 
     /**
      * Draw the bitmap onto the canvas at the current bounds taking into account the current scale.
      */
     private void drawBitmap(final Bitmap bitmap, final int width, final int height,
-            final Canvas canvas) {
+            final Canvas canvas, final Rect bounds) {
         // The bitmap should be drawn in the middle of the canvas without changing its width to
         // height ratio.
-        final Rect destRect = copyBounds();
+        final Rect destRect = new Rect(bounds);
 
         // Crop the destination bounds into a square, scaled and offset as appropriate
         final int halfLength = (int) (mScale * Math.min(destRect.width(), destRect.height()) / 2);
@@ -153,12 +215,11 @@ public class LetterTileDrawable extends Drawable {
         canvas.drawBitmap(bitmap, sRect, destRect, mPaint);
     }
 
-    private void drawLetterTile(final Canvas canvas) {
+    private void drawLetterTile(final Canvas canvas, final Rect bounds) {
         // Draw background color.
         sPaint.setColor(mColor);
 
         sPaint.setAlpha(mPaint.getAlpha());
-        final Rect bounds = getBounds();
         final int minDimension = Math.min(bounds.width(), bounds.height());
 
         if (mIsCircle) {
@@ -206,10 +267,17 @@ public class LetterTileDrawable extends Drawable {
             final Bitmap bitmap = getBitmapForContactType(mContactType,
                     mAccount, mContext);
             drawBitmap(bitmap, bitmap.getWidth(), bitmap.getHeight(),
-                    canvas);
+                    canvas, bounds);
         }
     }
 
+    /**
+     * Drops all rendered tiles, e.g. when the resources they were rendered with changed.
+     */
+    public static void clearTileCache() {
+        sTileCache.evictAll();
+    }
+
     public int getColor() {
         return mColor;
     }
@@ -45,6 +45,7 @@ import com.android.contacts.common.compat.DirectoryCompat;
 import com.android.contacts.common.util.SearchUtil;
 
 import java.util.HashSet;
+import java.util.List;
 
 /**
  * Common base class for various contact-related lists, e.g. contact list, phone number list
@@ -661,6 +662,47 @@ public abstract class ContactEntryListAdapter extends IndexerListAdapter {
                 view.getPaddingBottom());
     }
 
+    /**
+     * Returns the index of the photo id column in the cursors of this adapter, or -1 if the
+     * rows have no photo id.
+     */
+    protected int getPhotoIdColumnIndex() {
+        return -1;
+    }
+
+    /**
+     * Adds the non-zero photo ids of the rows at positions {@code start} (inclusive) to
+     * {@code end} (exclusive) to {@code photoIds}, so that the photos can be loaded before the
+     * rows are bound.
+     */
+    public void collectPhotoIds(int start, int end, List<Long> photoIds) {
+        final int column = getPhotoIdColumnIndex();
+        if (column < 0 || !mDisplayPhotos) {
+            return;
+        }
+        final int last = Math.min(end, getCount());
+        for (int position = Math.max(0, start); position < last; position++) {
+            final int partition = getPartitionForPosition(position);
+            final int offset = getOffsetInPartition(position);
+            if (partition < 0 || offset < 0 || !isPhotoSupported(partition)) {
+                continue;
+            }
+            final Cursor cursor = getCursor(partition);
+            if (cursor == null || cursor.isClosed()) {
+                continue;
+            }
+            // Keep the cursor where it was: the list may be in the middle of binding rows.
+            final int oldPosition = cursor.getPosition();
+            if (cursor.moveToPosition(offset) && !cursor.isNull(column)) {
+                final long photoId = cursor.getLong(column);
+                if (photoId != 0) {
+                    photoIds.add(photoId);
+                }
+            }
+            cursor.moveToPosition(oldPosition);
+        }
+    }
+
     // Default implementation simply returns number of rows in the cursor.
     // Broken out into its own routine so can be overridden by child classes
     // for eg number of unique contacts for a phone list.
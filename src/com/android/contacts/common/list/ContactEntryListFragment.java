@@ -32,6 +32,7 @@ import android.os.Parcelable;
 import android.provider.ContactsContract.Directory;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
@@ -48,9 +49,12 @@ import android.widget.ListView;
 
 import com.android.common.widget.CompositeCursorAdapter.Partition;
 import com.android.contacts.common.ContactPhotoManager;
+import com.android.contacts.common.R;
 import com.android.contacts.common.preference.ContactsPreferences;
 import com.android.contacts.common.util.ContactListViewUtils;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 /**
@@ -93,6 +97,15 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
 
     private static final int DEFAULT_DIRECTORY_RESULT_LIMIT = 20;
 
+    /** Number of rows past the visible ones whose photos are prefetched. */
+    private static final int MIN_PHOTO_PREFETCH_ROWS = 10;
+
+    /** Upper bound for the number of rows whose photos are prefetched at once. */
+    private static final int MAX_PHOTO_PREFETCH_ROWS = 60;
+
+    /** How far ahead photos are prefetched, in seconds of scrolling at the current speed. */
+    private static final float PHOTO_PREFETCH_LOOKAHEAD_SECONDS = 1.0f;
+
     private boolean mSectionHeaderDisplayEnabled;
     private boolean mPhotoLoaderEnabled;
     private boolean mQuickContactEnabled = true;
@@ -131,8 +144,18 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
     private ContactPhotoManager mPhotoManager;
     private ContactsPreferences mContactsPrefs;
 
+    /** First adapter position of the rows whose photos were prefetched last. */
+    private int mLastPhotoPrefetchStart = -1;
+    private final List<Long> mPrefetchPhotoIds = new ArrayList<Long>();
+
     private boolean mForceLoad;
 
+    /** Results of remote directory searches, to answer refined queries without a search. */
+    private final DirectorySearchCache mDirectorySearchCache = new DirectorySearchCache();
+
+    /** The query each remote directory partition is being loaded for, by partition index. */
+    private final SparseArray<String> mDirectoryQueries = new SparseArray<String>();
+
     private boolean mDarkTheme;
 
     protected boolean mUserProfileExists;
@@ -343,21 +366,39 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
                     ContactEntryListAdapter.LOCAL_INVISIBLE_DIRECTORY_ENABLED);
             return loader;
         } else {
-            CursorLoader loader = createCursorLoader(mContext);
             long directoryId = args != null && args.containsKey(DIRECTORY_ID_ARG_KEY)
                     ? args.getLong(DIRECTORY_ID_ARG_KEY)
                     : Directory.DEFAULT;
+            if (isRemoteDirectorySearch(directoryId)) {
+                final String query = mAdapter.getQueryString();
+                mDirectoryQueries.put(id, query);
+                final DirectorySearchCache.Entry cached =
+                        mDirectorySearchCache.lookup(directoryId, query);
+                if (cached != null) {
+                    return new DirectorySearchCache.ResultLoader(mContext, cached, query,
+                            mContext.getResources().getInteger(
+                                    R.integer.snippet_length_before_tokenize));
+                }
+            } else {
+                mDirectoryQueries.remove(id);
+            }
+            CursorLoader loader = createCursorLoader(mContext);
             mAdapter.configureLoader(loader, directoryId);
             return loader;
         }
     }
 
     public CursorLoader createCursorLoader(Context context) {
+        final int snippetLengthThreshold =
+                context.getResources().getInteger(R.integer.snippet_length_before_tokenize);
         return new CursorLoader(context, null, null, null, null, null) {
             @Override
             protected Cursor onLoadInBackground() {
                 try {
-                    return super.onLoadInBackground();
+                    // Snippets the provider deferred to us are computed here rather than
+                    // while binding rows.
+                    return SearchSnippetCursor.wrapIfDeferred(super.onLoadInBackground(),
+                            snippetLengthThreshold);
                 } catch (RuntimeException e) {
                     // We don't even know what the projection should be, so no point trying to
                     // return an empty MatrixCursor with the correct projection here.
@@ -373,7 +414,9 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
         partition.setStatus(DirectoryPartition.STATUS_LOADING);
         long directoryId = partition.getDirectoryId();
         if (mForceLoad) {
-            if (directoryId == Directory.DEFAULT) {
+            if (directoryId == Directory.DEFAULT || (isRemoteDirectorySearch(directoryId)
+                    && mDirectorySearchCache.lookup(directoryId, getQueryString()) != null)) {
+                // Answered locally, so there is no need to wait for the user to stop typing.
                 loadDirectoryPartition(partitionIndex, partition);
             } else {
                 loadDirectoryPartitionDelayed(partitionIndex, partition);
@@ -406,6 +449,30 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
         getLoaderManager().restartLoader(partitionIndex, args, this);
     }
 
+    private boolean isRemoteDirectorySearch(long directoryId) {
+        return isSearchMode() && directoryId != Directory.DEFAULT
+                && directoryId != Directory.LOCAL_INVISIBLE;
+    }
+
+    /**
+     * Keeps the result of a remote directory search for queries that refine it.
+     */
+    private void cacheDirectoryResult(Loader<Cursor> loader, Cursor data) {
+        final int partitionIndex = loader.getId();
+        final String query = mDirectoryQueries.get(partitionIndex);
+        mDirectoryQueries.remove(partitionIndex);
+        if (query == null || data == null || loader instanceof DirectorySearchCache.ResultLoader
+                || partitionIndex >= mAdapter.getPartitionCount()) {
+            return;
+        }
+        final Partition partition = mAdapter.getPartition(partitionIndex);
+        if (partition instanceof DirectoryPartition) {
+            final DirectoryPartition directoryPartition = (DirectoryPartition) partition;
+            mDirectorySearchCache.put(directoryPartition.getDirectoryId(), query, data,
+                    mAdapter.getDirectoryResultLimit(directoryPartition));
+        }
+    }
+
     /**
      * Cancels all queued directory loading requests.
      */
@@ -422,9 +489,11 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
         int loaderId = loader.getId();
         if (loaderId == DIRECTORY_LOADER_ID) {
             mDirectoryListStatus = STATUS_LOADED;
+            invalidateDirectorySearchCache();
             mAdapter.changeDirectories(data);
             startLoading();
         } else {
+            cacheDirectoryResult(loader, data);
             onPartitionLoaded(loaderId, data);
             if (isSearchMode()) {
                 int directorySearchMode = getDirectorySearchMode();
@@ -455,6 +524,8 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
 
         mAdapter.changeCursor(partitionIndex, data);
         setProfileHeader();
+        // The rows have changed, so prefetch again from wherever the list is.
+        mLastPhotoPrefetchStart = -1;
 
         if (!isLoading()) {
             completeRestoreInstanceState();
@@ -489,11 +560,20 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
     protected void reloadData() {
         removePendingDirectorySearchRequests();
         mAdapter.onDataReload();
+        mLastPhotoPrefetchStart = -1;
         mLoadPriorityDirectoriesOnly = true;
         mForceLoad = true;
         startLoading();
     }
 
+    /**
+     * Forgets the results of remote directory searches. Called when the data or the directories
+     * change, not when only the query changes: refined queries are answered from these results.
+     */
+    protected void invalidateDirectorySearchCache() {
+        mDirectorySearchCache.clear();
+    }
+
     /**
      * Shows a view at the top of the list with a pseudo local profile prompting the user to add
      * a local profile. Default implementation does nothing.
@@ -818,6 +898,38 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
     @Override
     public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
             int totalItemCount) {
+        prefetchPhotosAhead(firstVisibleItem, visibleItemCount);
+    }
+
+    /**
+     * Asks the photo manager to load the photos of the rows that are about to scroll into
+     * view.  The faster the list scrolls, the further ahead this looks.
+     */
+    private void prefetchPhotosAhead(int firstVisibleItem, int visibleItemCount) {
+        if (!isPhotoLoaderEnabled() || mPhotoManager == null || mAdapter == null
+                || mListView == null || visibleItemCount == 0) {
+            return;
+        }
+        final float velocity = mListView instanceof PinnedHeaderListView
+                ? ((PinnedHeaderListView) mListView).getScrollVelocity() : 0;
+        final int rows = Math.min(MAX_PHOTO_PREFETCH_ROWS, MIN_PHOTO_PREFETCH_ROWS
+                + (int) (Math.abs(velocity) * PHOTO_PREFETCH_LOOKAHEAD_SECONDS));
+        final int firstVisiblePosition = firstVisibleItem - mListView.getHeaderViewsCount();
+        final int start = velocity < 0 ? firstVisiblePosition - rows
+                : firstVisiblePosition + visibleItemCount;
+
+        // Don't ask again until the rows to prefetch have moved by half a window.
+        if (mLastPhotoPrefetchStart != -1
+                && Math.abs(start - mLastPhotoPrefetchStart) < rows / 2) {
+            return;
+        }
+        mLastPhotoPrefetchStart = start;
+
+        mPrefetchPhotoIds.clear();
+        mAdapter.collectPhotoIds(start, start + rows, mPrefetchPhotoIds);
+        if (!mPrefetchPhotoIds.isEmpty()) {
+            mPhotoManager.prefetchThumbnails(mPrefetchPhotoIds);
+        }
     }
 
     @Override
@@ -924,6 +1036,7 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
         @Override
         public void onChange() {
             loadPreferences();
+            invalidateDirectorySearchCache();
             reloadData();
         }
     };
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import android.database.Cursor;
+
+/**
+ * The groups of consecutive rows of a cursor that belong to the same contact, such as the
+ * phone numbers of one contact in a phone number list. Built with one pass over the cursor,
+ * so that rows can be bound without looking at their neighbors.
+ */
+/* package */ final class ContactGroupIndex {
+    private final Cursor mCursor;
+    /** First row of each group, followed by the number of rows. */
+    private final int[] mGroupStarts;
+    /** Group of each row. */
+    private final int[] mRowGroups;
+    private final int mGroupCount;
+
+    private ContactGroupIndex(Cursor cursor, int[] groupStarts, int[] rowGroups,
+            int groupCount) {
+        mCursor = cursor;
+        mGroupStarts = groupStarts;
+        mRowGroups = rowGroups;
+        mGroupCount = groupCount;
+    }
+
+    /**
+     * Builds the index of the given cursor, grouping rows by the contact id in the given column.
+     * The cursor is left before its first row.
+     */
+    public static ContactGroupIndex build(Cursor cursor, int contactIdColumn) {
+        final int count = cursor.getCount();
+        final int[] rowGroups = new int[count];
+        int[] groupStarts = new int[Math.min(count, 16) + 1];
+        int groupCount = 0;
+        long previousContactId = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            final int position = cursor.getPosition();
+            final long contactId = cursor.getLong(contactIdColumn);
+            if (position == 0 || contactId != previousContactId) {
+                if (groupCount + 1 >= groupStarts.length) {
+                    final int[] grown = new int[Math.min(count + 1, groupStarts.length * 2)];
+                    System.arraycopy(groupStarts, 0, grown, 0, groupCount);
+                    groupStarts = grown;
+                }
+                groupStarts[groupCount++] = position;
+                previousContactId = contactId;
+            }
+            rowGroups[position] = groupCount - 1;
+        }
+        cursor.moveToPosition(-1);
+        groupStarts[groupCount] = count;
+        return new ContactGroupIndex(cursor, groupStarts, rowGroups, groupCount);
+    }
+
+    /**
+     * Returns whether this index was built for the given cursor.
+     */
+    public boolean isFor(Cursor cursor) {
+        return mCursor == cursor;
+    }
+
+    /**
+     * Returns the number of contacts, that is groups of rows.
+     */
+    public int getGroupCount() {
+        return mGroupCount;
+    }
+
+    public boolean isFirstInGroup(int position) {
+        return mGroupStarts[mRowGroups[position]] == position;
+    }
+
+    public boolean isLastInGroup(int position) {
+        return mGroupStarts[mRowGroups[position] + 1] == position + 1;
+    }
+}
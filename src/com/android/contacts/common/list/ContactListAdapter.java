@@ -251,6 +251,11 @@ public abstract class ContactListAdapter extends ContactEntryListAdapter {
         }
     }
 
+    @Override
+    protected int getPhotoIdColumnIndex() {
+        return ContactQuery.CONTACT_PHOTO_ID;
+    }
+
     protected void bindPhoto(final ContactListItemView view, int partitionIndex, Cursor cursor) {
         if (!isPhotoSupported(partitionIndex)) {
             view.removePhotoView();
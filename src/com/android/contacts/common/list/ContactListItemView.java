@@ -61,13 +61,8 @@ import com.android.contacts.common.util.ViewUtil;
 import com.android.contacts.common.widget.CheckableImageView;
 import com.android.contacts.common.widget.CheckableQuickContactBadge;
 
-import com.google.common.collect.Lists;
-
 import java.util.ArrayList;
-import java.util.List;
 import java.util.Locale;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * A custom view for an item in the contact list.
@@ -1529,7 +1524,9 @@ public class ContactListItemView extends ViewGroup
 
         // Do client side snippeting if provider didn't do it
         final Bundle extras = cursor.getExtras();
-        if (extras.getBoolean(ContactsContract.DEFERRED_SNIPPETING)) {
+        if (extras.getBoolean(SearchSnippetCursor.EXTRA_SNIPPETS_COMPUTED)) {
+            // Already done by the loader.
+        } else if (extras.getBoolean(ContactsContract.DEFERRED_SNIPPETING)) {
 
             final String query = extras.getString(ContactsContract.DEFERRED_SNIPPETING_QUERY);
 
@@ -1581,127 +1578,11 @@ public class ContactListItemView extends ViewGroup
      * Used for deferred snippets from the database. The contents come back as large strings which
      * need to be extracted for display.
      *
-     * @param snippet The snippet from the database.
-     * @param query The search query substring.
-     * @param displayName The contact display name.
-     * @return The proper snippet to display.
+     * @see SearchSnippetCursor#updateSnippet
      */
     private String updateSnippet(String snippet, String query, String displayName) {
-
-        if (TextUtils.isEmpty(snippet) || TextUtils.isEmpty(query)) {
-            return null;
-        }
-        query = SearchUtil.cleanStartAndEndOfSearchQuery(query.toLowerCase());
-
-        // If the display name already contains the query term, return empty - snippets should
-        // not be needed in that case.
-        if (!TextUtils.isEmpty(displayName)) {
-            final String lowerDisplayName = displayName.toLowerCase();
-            final List<String> nameTokens = split(lowerDisplayName);
-            for (String nameToken : nameTokens) {
-                if (nameToken.startsWith(query)) {
-                    return null;
-                }
-            }
-        }
-
-        // The snippet may contain multiple data lines.
-        // Show the first line that matches the query.
-        final SearchUtil.MatchedLine matched = SearchUtil.findMatchingLine(snippet, query);
-
-        if (matched != null && matched.line != null) {
-            // Tokenize for long strings since the match may be at the end of it.
-            // Skip this part for short strings since the whole string will be displayed.
-            // Most contact strings are short so the snippetize method will be called infrequently.
-            final int lengthThreshold = getResources().getInteger(
-                    R.integer.snippet_length_before_tokenize);
-            if (matched.line.length() > lengthThreshold) {
-                return snippetize(matched.line, matched.startIndex, lengthThreshold);
-            } else {
-                return matched.line;
-            }
-        }
-
-        // No match found.
-        return null;
-    }
-
-    private String snippetize(String line, int matchIndex, int maxLength) {
-        // Show up to maxLength characters. But we only show full tokens so show the last full token
-        // up to maxLength characters. So as many starting tokens as possible before trying ending
-        // tokens.
-        int remainingLength = maxLength;
-        int tempRemainingLength = remainingLength;
-
-        // Start the end token after the matched query.
-        int index = matchIndex;
-        int endTokenIndex = index;
-
-        // Find the match token first.
-        while (index < line.length()) {
-            if (!Character.isLetterOrDigit(line.charAt(index))) {
-                endTokenIndex = index;
-                remainingLength = tempRemainingLength;
-                break;
-            }
-            tempRemainingLength--;
-            index++;
-        }
-
-        // Find as much content before the match.
-        index = matchIndex - 1;
-        tempRemainingLength = remainingLength;
-        int startTokenIndex = matchIndex;
-        while (index > -1 && tempRemainingLength > 0) {
-            if (!Character.isLetterOrDigit(line.charAt(index))) {
-                startTokenIndex = index;
-                remainingLength = tempRemainingLength;
-            }
-            tempRemainingLength--;
-            index--;
-        }
-
-        index = endTokenIndex;
-        tempRemainingLength = remainingLength;
-        // Find remaining content at after match.
-        while (index < line.length() && tempRemainingLength > 0) {
-            if (!Character.isLetterOrDigit(line.charAt(index))) {
-                endTokenIndex = index;
-            }
-            tempRemainingLength--;
-            index++;
-        }
-        // Append ellipse if there is content before or after.
-        final StringBuilder sb = new StringBuilder();
-        if (startTokenIndex > 0) {
-            sb.append("...");
-        }
-        sb.append(line.substring(startTokenIndex, endTokenIndex));
-        if (endTokenIndex < line.length()) {
-            sb.append("...");
-        }
-        return sb.toString();
-    }
-
-    private static final Pattern SPLIT_PATTERN = Pattern.compile(
-            "([\\w-\\.]+)@((?:[\\w]+\\.)+)([a-zA-Z]{2,4})|[\\w]+");
-
-    /**
-     * Helper method for splitting a string into tokens.  The lists passed in are populated with
-     * the
-     * tokens and offsets into the content of each token.  The tokenization function parses e-mail
-     * addresses as a single token; otherwise it splits on any non-alphanumeric character.
-     *
-     * @param content Content to split.
-     * @return List of token strings.
-     */
-    private static List<String> split(String content) {
-        final Matcher matcher = SPLIT_PATTERN.matcher(content);
-        final ArrayList<String> tokens = Lists.newArrayList();
-        while (matcher.find()) {
-            tokens.add(matcher.group());
-        }
-        return tokens;
+        return SearchSnippetCursor.updateSnippet(snippet, query, displayName,
+                getResources().getInteger(R.integer.snippet_length_before_tokenize));
     }
 
     /**
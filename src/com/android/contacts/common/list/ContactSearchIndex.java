@@ -0,0 +1,682 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.DeletedContacts;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.contacts.common.util.PermissionsUtil;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory index of the local contacts for searching them without a provider query per
+ * keystroke.
+ *
+ * <p>The index maps normalized tokens of display names, phonetic names and email addresses,
+ * the digits of phone numbers, and the T9 keys of name tokens to the ids of the contacts they
+ * belong to. Tokens are kept sorted, so that all tokens starting with a query token are one
+ * range of the map. The index is built in the background and then kept up to date from
+ * the contacts that changed or were deleted since the last update, whenever the provider
+ * notifies of a change.
+ *
+ * <p>Unlike the provider's filter, the index does not match organizations, nicknames or other
+ * data, and it only handles queries in Latin script.
+ */
+public final class ContactSearchIndex {
+    private static final String TAG = "ContactSearchIndex";
+    private static final boolean DEBUG = false;
+
+    /** Delay before changes in the provider are applied, to batch bursts of changes. */
+    private static final long UPDATE_DELAY_MILLIS = 500;
+
+    private static final int MESSAGE_BUILD = 0;
+    private static final int MESSAGE_UPDATE = 1;
+
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+    private static final String[] CONTACT_PROJECTION = new String[] {
+            Contacts._ID,
+            Contacts.DISPLAY_NAME_PRIMARY,
+            Contacts.PHONETIC_NAME,
+            Contacts.CONTACT_LAST_UPDATED_TIMESTAMP,
+    };
+    private static final int CONTACT_ID = 0;
+    private static final int CONTACT_DISPLAY_NAME = 1;
+    private static final int CONTACT_PHONETIC_NAME = 2;
+    private static final int CONTACT_LAST_UPDATED = 3;
+
+    private static final String[] DATA_PROJECTION = new String[] {
+            Data.CONTACT_ID,
+            Data.MIMETYPE,
+            Data.DATA1,
+            Phone.NORMALIZED_NUMBER,
+    };
+    private static final int DATA_CONTACT_ID = 0;
+    private static final int DATA_MIMETYPE = 1;
+    private static final int DATA_VALUE = 2;
+    private static final int DATA_NORMALIZED_NUMBER = 3;
+
+    private static final String DATA_SELECTION = Data.MIMETYPE + " IN ('"
+            + Phone.CONTENT_ITEM_TYPE + "','" + Email.CONTENT_ITEM_TYPE + "')";
+
+    /** T9 key of each letter from 'a' to 'z'. */
+    private static final char[] T9_KEYS = "22233344455566677778889999".toCharArray();
+
+    /** The result of a query. */
+    public static final class Result {
+        /** Ids of the matching contacts, in ascending order. */
+        public final long[] contactIds;
+        /**
+         * Snippet for contacts that matched on a phone number or an email address rather
+         * than on their names.
+         */
+        public final Map<Long, String> snippets;
+
+        private Result(long[] contactIds, Map<Long, String> snippets) {
+            this.contactIds = contactIds;
+            this.snippets = snippets;
+        }
+    }
+
+    /** Tokens of a contact, kept to remove the contact from the maps. */
+    private static final class Entry {
+        String[] nameTokens;
+        String[] t9Tokens;
+        String[] dataTokens;
+        /** Phone numbers and email addresses, for snippets. */
+        String[] dataValues;
+    }
+
+    private static ContactSearchIndex sInstance;
+
+    private final Context mContext;
+    private final Object mLock = new Object();
+    private TreeMap<String, long[]> mNameTokens = new TreeMap<String, long[]>();
+    private TreeMap<String, long[]> mT9Tokens = new TreeMap<String, long[]>();
+    private TreeMap<String, long[]> mDataTokens = new TreeMap<String, long[]>();
+    private HashMap<Long, Entry> mEntries = Maps.newHashMap();
+    private Handler mHandler;
+    private ContentObserver mObserver;
+    private long mLastUpdatedTimestamp;
+    private volatile boolean mReady;
+
+    public static synchronized ContactSearchIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ContactSearchIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    ContactSearchIndex(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Starts building the index in the background and keeping it up to date, unless already
+     * doing so.
+     */
+    public synchronized void start() {
+        if (mHandler != null || !PermissionsUtil.hasContactsPermissions(mContext)) {
+            return;
+        }
+        final HandlerThread thread =
+                new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MESSAGE_BUILD:
+                        build();
+                        break;
+                    case MESSAGE_UPDATE:
+                        update();
+                        break;
+                }
+            }
+        };
+        mObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                if (!mHandler.hasMessages(MESSAGE_UPDATE)) {
+                    mHandler.sendEmptyMessageDelayed(MESSAGE_UPDATE, UPDATE_DELAY_MILLIS);
+                }
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(
+                Contacts.CONTENT_URI, true, mObserver);
+        mHandler.sendEmptyMessage(MESSAGE_BUILD);
+    }
+
+    /**
+     * Returns whether the index was built and can answer queries.
+     */
+    public boolean isReady() {
+        return mReady;
+    }
+
+    /**
+     * Returns the contacts that match all tokens of the given query by prefix, or null if
+     * the index cannot answer the query.
+     */
+    public Result query(String query) {
+        if (!mReady) {
+            return null;
+        }
+        return queryIndex(query);
+    }
+
+    /**
+     * Returns the contacts with a name token whose T9 key starts with the given digits, or
+     * null if the index cannot answer the query.
+     */
+    public long[] queryT9(String digits) {
+        if (!mReady || TextUtils.isEmpty(digits) || !TextUtils.isDigitsOnly(digits)) {
+            return null;
+        }
+        synchronized (mLock) {
+            final Set<Long> ids = Sets.newHashSet();
+            collectPrefixMatches(mT9Tokens, digits, ids);
+            return toSortedArray(ids);
+        }
+    }
+
+    @VisibleForTesting
+    Result queryIndex(String query) {
+        if (query == null || !isLatin(query)) {
+            return null;
+        }
+        final List<String> queryTokens = tokenize(normalize(query));
+        final String queryDigits = getPhoneDigits(query);
+        if (queryTokens.isEmpty() && queryDigits == null) {
+            return null;
+        }
+
+        synchronized (mLock) {
+            Set<Long> matches = null;
+            final Set<Long> nameMatches = Sets.newHashSet();
+            for (String token : queryTokens) {
+                final Set<Long> tokenMatches = Sets.newHashSet();
+                collectPrefixMatches(mNameTokens, token, tokenMatches);
+                nameMatches.addAll(tokenMatches);
+                collectPrefixMatches(mDataTokens, token, tokenMatches);
+                if (matches == null) {
+                    matches = tokenMatches;
+                } else {
+                    matches.retainAll(tokenMatches);
+                }
+            }
+            if (matches == null) {
+                matches = Sets.newHashSet();
+            }
+            if (queryDigits != null) {
+                // "555-1234" is one phone number rather than two tokens.
+                collectPrefixMatches(mDataTokens, queryDigits, matches);
+            }
+
+            final long[] ids = toSortedArray(matches);
+            final Map<Long, String> snippets = Maps.newHashMap();
+            for (long id : ids) {
+                if (!nameMatches.contains(id)) {
+                    final String snippet = findSnippet(mEntries.get(id), queryTokens,
+                            queryDigits);
+                    if (snippet != null) {
+                        snippets.put(id, snippet);
+                    }
+                }
+            }
+            return new Result(ids, snippets);
+        }
+    }
+
+    /**
+     * Adds a contact to the index, replacing any previous tokens of the same contact.
+     *
+     * @param phoneNumbers Numbers as entered, followed by their normalized forms.
+     */
+    @VisibleForTesting
+    void putContact(long contactId, String displayName, String phoneticName,
+            List<String> phoneNumbers, List<String> emails) {
+        final Entry entry = createEntry(displayName, phoneticName, phoneNumbers, emails);
+        synchronized (mLock) {
+            removeEntry(contactId);
+            putEntry(contactId, entry, mNameTokens, mT9Tokens, mDataTokens, mEntries);
+        }
+    }
+
+    @VisibleForTesting
+    void removeContact(long contactId) {
+        synchronized (mLock) {
+            removeEntry(contactId);
+        }
+    }
+
+    @VisibleForTesting
+    void setReady(boolean ready) {
+        mReady = ready;
+    }
+
+    private void build() {
+        final TreeMap<String, long[]> nameTokens = new TreeMap<String, long[]>();
+        final TreeMap<String, long[]> t9Tokens = new TreeMap<String, long[]>();
+        final TreeMap<String, long[]> dataTokens = new TreeMap<String, long[]>();
+        final HashMap<Long, Entry> entries = Maps.newHashMap();
+        final long start = System.currentTimeMillis();
+        final long[] lastUpdated = new long[1];
+        final HashMap<Long, Entry> loaded = loadEntries(null, lastUpdated);
+        if (loaded == null) {
+            return;
+        }
+        for (Map.Entry<Long, Entry> entry : loaded.entrySet()) {
+            putEntry(entry.getKey(), entry.getValue(), nameTokens, t9Tokens, dataTokens, entries);
+        }
+        synchronized (mLock) {
+            mNameTokens = nameTokens;
+            mT9Tokens = t9Tokens;
+            mDataTokens = dataTokens;
+            mEntries = entries;
+            mLastUpdatedTimestamp = lastUpdated[0];
+        }
+        mReady = true;
+        if (DEBUG) {
+            Log.d(TAG, "Indexed " + entries.size() + " contacts, " + nameTokens.size()
+                    + " name tokens in " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    /**
+     * Applies the changes since the last build or update.
+     */
+    private void update() {
+        if (!mReady) {
+            return;
+        }
+        final long since;
+        synchronized (mLock) {
+            since = mLastUpdatedTimestamp;
+        }
+        final ContentResolver resolver = mContext.getContentResolver();
+        final Set<Long> deleted = Sets.newHashSet();
+        long lastDeleted = since;
+        final Cursor cursor = resolver.query(DeletedContacts.CONTENT_URI,
+                new String[] {DeletedContacts.CONTACT_ID, DeletedContacts.CONTACT_DELETED_TIMESTAMP},
+                DeletedContacts.CONTACT_DELETED_TIMESTAMP + ">?",
+                new String[] {String.valueOf(since)}, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    deleted.add(cursor.getLong(0));
+                    lastDeleted = Math.max(lastDeleted, cursor.getLong(1));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        final long[] lastUpdated = new long[] {since};
+        final HashMap<Long, Entry> changed = loadEntries(since, lastUpdated);
+        if (changed == null) {
+            return;
+        }
+        synchronized (mLock) {
+            for (long id : deleted) {
+                removeEntry(id);
+            }
+            for (Map.Entry<Long, Entry> entry : changed.entrySet()) {
+                removeEntry(entry.getKey());
+                putEntry(entry.getKey(), entry.getValue(), mNameTokens, mT9Tokens, mDataTokens,
+                        mEntries);
+            }
+            mLastUpdatedTimestamp = Math.max(lastUpdated[0], lastDeleted);
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Updated " + changed.size() + " contacts, removed " + deleted.size());
+        }
+    }
+
+    /**
+     * Loads the tokens of all contacts, or of the contacts updated after {@code since}.
+     * Returns null if the contacts could not be queried.
+     */
+    private HashMap<Long, Entry> loadEntries(Long since, long[] lastUpdated) {
+        final ContentResolver resolver = mContext.getContentResolver();
+        final String selection = since == null ? null
+                : Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + ">" + since;
+        final Cursor contacts;
+        try {
+            contacts = resolver.query(Contacts.CONTENT_URI, CONTACT_PROJECTION, selection,
+                    null, null);
+        } catch (SecurityException e) {
+            Log.w(TAG, "No permission to index contacts", e);
+            return null;
+        }
+        if (contacts == null) {
+            return null;
+        }
+        final HashMap<Long, String[]> names = Maps.newHashMap();
+        try {
+            while (contacts.moveToNext()) {
+                names.put(contacts.getLong(CONTACT_ID), new String[] {
+                        contacts.getString(CONTACT_DISPLAY_NAME),
+                        contacts.getString(CONTACT_PHONETIC_NAME)});
+                lastUpdated[0] = Math.max(lastUpdated[0], contacts.getLong(CONTACT_LAST_UPDATED));
+            }
+        } finally {
+            contacts.close();
+        }
+
+        final HashMap<Long, List<String>> numbers = Maps.newHashMap();
+        final HashMap<Long, List<String>> emails = Maps.newHashMap();
+        if (!names.isEmpty()) {
+            String dataSelection = DATA_SELECTION;
+            if (since != null) {
+                dataSelection += " AND " + Data.CONTACT_ID + " IN ("
+                        + TextUtils.join(",", names.keySet()) + ")";
+            }
+            final Cursor data = resolver.query(Data.CONTENT_URI, DATA_PROJECTION,
+                    dataSelection, null, null);
+            if (data != null) {
+                try {
+                    while (data.moveToNext()) {
+                        final long contactId = data.getLong(DATA_CONTACT_ID);
+                        final String value = data.getString(DATA_VALUE);
+                        if (value == null) {
+                            continue;
+                        }
+                        final boolean isPhone =
+                                Phone.CONTENT_ITEM_TYPE.equals(data.getString(DATA_MIMETYPE));
+                        final HashMap<Long, List<String>> values = isPhone ? numbers : emails;
+                        List<String> list = values.get(contactId);
+                        if (list == null) {
+                            list = Lists.newArrayList();
+                            values.put(contactId, list);
+                        }
+                        list.add(value);
+                        if (isPhone && !data.isNull(DATA_NORMALIZED_NUMBER)) {
+                            list.add(data.getString(DATA_NORMALIZED_NUMBER));
+                        }
+                    }
+                } finally {
+                    data.close();
+                }
+            }
+        }
+
+        final HashMap<Long, Entry> entries = Maps.newHashMap();
+        for (Map.Entry<Long, String[]> contact : names.entrySet()) {
+            final long id = contact.getKey();
+            entries.put(id, createEntry(contact.getValue()[0], contact.getValue()[1],
+                    numbers.get(id), emails.get(id)));
+        }
+        return entries;
+    }
+
+    private static Entry createEntry(String displayName, String phoneticName,
+            List<String> phoneNumbers, List<String> emails) {
+        final Set<String> nameTokens = Sets.newHashSet();
+        nameTokens.addAll(tokenize(normalize(displayName)));
+        nameTokens.addAll(tokenize(normalize(phoneticName)));
+        final Set<String> t9Tokens = Sets.newHashSet();
+        for (String token : nameTokens) {
+            final String t9 = toT9(token);
+            if (t9 != null) {
+                t9Tokens.add(t9);
+            }
+        }
+
+        final Set<String> dataTokens = Sets.newHashSet();
+        final List<String> dataValues = Lists.newArrayList();
+        if (phoneNumbers != null) {
+            for (String number : phoneNumbers) {
+                final String digits = getPhoneDigits(number);
+                if (digits != null) {
+                    dataTokens.add(digits);
+                    dataValues.add(number);
+                }
+            }
+        }
+        if (emails != null) {
+            for (String email : emails) {
+                final String normalized = normalize(email);
+                dataTokens.add(normalized);
+                dataTokens.addAll(tokenize(normalized));
+                dataValues.add(email);
+            }
+        }
+
+        final Entry entry = new Entry();
+        entry.nameTokens = nameTokens.toArray(new String[nameTokens.size()]);
+        entry.t9Tokens = t9Tokens.toArray(new String[t9Tokens.size()]);
+        entry.dataTokens = dataTokens.toArray(new String[dataTokens.size()]);
+        entry.dataValues = dataValues.toArray(new String[dataValues.size()]);
+        return entry;
+    }
+
+    private static void putEntry(long contactId, Entry entry, TreeMap<String, long[]> nameTokens,
+            TreeMap<String, long[]> t9Tokens, TreeMap<String, long[]> dataTokens,
+            HashMap<Long, Entry> entries) {
+        addPostings(nameTokens, entry.nameTokens, contactId);
+        addPostings(t9Tokens, entry.t9Tokens, contactId);
+        addPostings(dataTokens, entry.dataTokens, contactId);
+        entries.put(contactId, entry);
+    }
+
+    private void removeEntry(long contactId) {
+        final Entry entry = mEntries.remove(contactId);
+        if (entry != null) {
+            removePostings(mNameTokens, entry.nameTokens, contactId);
+            removePostings(mT9Tokens, entry.t9Tokens, contactId);
+            removePostings(mDataTokens, entry.dataTokens, contactId);
+        }
+    }
+
+    private static void addPostings(TreeMap<String, long[]> tokens, String[] keys, long id) {
+        for (String key : keys) {
+            final long[] ids = tokens.get(key);
+            if (ids == null) {
+                tokens.put(key, new long[] {id});
+                continue;
+            }
+            final int index = Arrays.binarySearch(ids, id);
+            if (index < 0) {
+                final int insertAt = -index - 1;
+                final long[] newIds = new long[ids.length + 1];
+                System.arraycopy(ids, 0, newIds, 0, insertAt);
+                newIds[insertAt] = id;
+                System.arraycopy(ids, insertAt, newIds, insertAt + 1, ids.length - insertAt);
+                tokens.put(key, newIds);
+            }
+        }
+    }
+
+    private static void removePostings(TreeMap<String, long[]> tokens, String[] keys, long id) {
+        for (String key : keys) {
+            final long[] ids = tokens.get(key);
+            if (ids == null) {
+                continue;
+            }
+            final int index = Arrays.binarySearch(ids, id);
+            if (index < 0) {
+                continue;
+            }
+            if (ids.length == 1) {
+                tokens.remove(key);
+            } else {
+                final long[] newIds = new long[ids.length - 1];
+                System.arraycopy(ids, 0, newIds, 0, index);
+                System.arraycopy(ids, index + 1, newIds, index, ids.length - index - 1);
+                tokens.put(key, newIds);
+            }
+        }
+    }
+
+    private static void collectPrefixMatches(TreeMap<String, long[]> tokens, String prefix,
+            Set<Long> ids) {
+        final NavigableMap<String, long[]> range =
+                tokens.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        for (long[] postings : range.values()) {
+            for (long id : postings) {
+                ids.add(id);
+            }
+        }
+    }
+
+    private static String findSnippet(Entry entry, List<String> queryTokens,
+            String queryDigits) {
+        if (entry == null) {
+            return null;
+        }
+        for (String value : entry.dataValues) {
+            final String digits = getPhoneDigits(value);
+            if (digits != null) {
+                if (queryDigits != null && digits.startsWith(queryDigits)) {
+                    return value;
+                }
+                continue;
+            }
+            final String normalized = normalize(value);
+            for (String token : queryTokens) {
+                if (normalized.startsWith(token)) {
+                    return value;
+                }
+                for (String valueToken : tokenize(normalized)) {
+                    if (valueToken.startsWith(token)) {
+                        return value;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static long[] toSortedArray(Set<Long> ids) {
+        final long[] result = new long[ids.size()];
+        int i = 0;
+        for (long id : ids) {
+            result[i++] = id;
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Lowercases the text and strips accents, so that accented names are found without typing the accents.
+     */
+    @VisibleForTesting
+    static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        final String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        return COMBINING_MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Splits normalized text into runs of letters and digits.
+     */
+    private static List<String> tokenize(String text) {
+        final List<String> tokens = Lists.newArrayList();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            final boolean isTokenChar = i < text.length()
+                    && Character.isLetterOrDigit(text.charAt(i));
+            if (isTokenChar && start < 0) {
+                start = i;
+            } else if (!isTokenChar && start >= 0) {
+                tokens.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Returns the digits of a phone number or of a query that looks like one, or null if
+     * the text contains anything but digits and the usual separators.
+     */
+    private static String getPhoneDigits(String text) {
+        final StringBuilder digits = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            } else if ("+-(). /".indexOf(c) < 0) {
+                return null;
+            }
+        }
+        return digits.length() == 0 ? null : digits.toString();
+    }
+
+    private static String toT9(String token) {
+        final StringBuilder key = new StringBuilder(token.length());
+        for (int i = 0; i < token.length(); i++) {
+            final char c = token.charAt(i);
+            if (c >= 'a' && c <= 'z') {
+                key.append(T9_KEYS[c - 'a']);
+            } else if (c >= '0' && c <= '9') {
+                key.append(c);
+            } else {
+                return null;
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns whether all letters of the text are from the Latin blocks, which are the only
+     * ones the index tokenizes the way the provider does.
+     */
+    private static boolean isLatin(String text) {
+        for (int i = 0; i < text.length(); ) {
+            final int codePoint = text.codePointAt(i);
+            if (Character.isLetter(codePoint) && codePoint >= 0x250
+                    && (codePoint < 0x1E00 || codePoint > 0x1EFF)) {
+                return false;
+            }
+            i += Character.charCount(codePoint);
+        }
+        return true;
+    }
+}
@@ -42,6 +42,7 @@ import com.android.contacts.common.MoreContactUtils;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A cursor adapter for the {@link ContactsContract.Contacts#CONTENT_TYPE} content type.
@@ -80,6 +81,14 @@ public class DefaultContactListAdapter extends ContactListAdapter {
                     Contacts.TIMES_CONTACTED + " DESC, " +
                     Contacts.STARRED + " DESC";
 
+    /** Above this many matches, the provider's ranking and paging are worth the query. */
+    private static final int MAX_INDEXED_SEARCH_RESULTS = 2000;
+
+    private boolean mLocalSearchIndexEnabled;
+    /** Snippets of the default directory computed by the search index, and their query. */
+    private Map<Long, String> mIndexedSnippets;
+    private String mIndexedSnippetsQuery;
+
     public DefaultContactListAdapter(Context context) {
         super(context);
         mContext = context;
@@ -103,7 +112,11 @@ public class DefaultContactListAdapter extends ContactListAdapter {
     @Override
     public void configureLoader(CursorLoader loader, long directoryId) {
         if (loader instanceof ProfileAndContactsLoader) {
-            ((ProfileAndContactsLoader) loader).setLoadProfile(shouldIncludeProfile());
+            final ProfileAndContactsLoader profileAndContactsLoader =
+                    (ProfileAndContactsLoader) loader;
+            profileAndContactsLoader.setLoadProfile(shouldIncludeProfile());
+            // Don't hold the first page of contacts back for the profile row.
+            profileAndContactsLoader.setStreamProfile(true);
         }
 
         String sortOrder = null;
@@ -118,6 +131,8 @@ public class DefaultContactListAdapter extends ContactListAdapter {
                 loader.setUri(Contacts.CONTENT_URI);
                 loader.setProjection(getProjection(false));
                 loader.setSelection("0");
+            } else if (configureIndexedSearch(loader, query, directoryId)) {
+                // Matched against the local search index, only the rows are loaded.
             } else {
                 final Builder builder = ContactsCompat.getContentUri().buildUpon();
                 appendSearchParameters(builder, query, directoryId);
@@ -157,6 +172,76 @@ public class DefaultContactListAdapter extends ContactListAdapter {
         loader.setSortOrder(sortOrder);
     }
 
+    /**
+     * Enables searching the local contacts through {@link ContactSearchIndex} instead of the
+     * provider's filter, whenever the index can answer the query.
+     */
+    public void setLocalSearchIndexEnabled(boolean enabled) {
+        mLocalSearchIndexEnabled = enabled;
+        if (enabled) {
+            ContactSearchIndex.getInstance(mContext).start();
+        }
+    }
+
+    /**
+     * Configures the loader to load the contacts the local search index matched for the
+     * query. Returns false if the provider's filter must be used instead.
+     */
+    private boolean configureIndexedSearch(CursorLoader loader, String query, long directoryId) {
+        if (directoryId != Directory.DEFAULT) {
+            // Leave the snippets of the default directory alone.
+            return false;
+        }
+        mIndexedSnippets = null;
+        mIndexedSnippetsQuery = null;
+        if (!mLocalSearchIndexEnabled) {
+            return false;
+        }
+        final ContactListFilter filter = getFilter();
+        if (filter != null && filter.filterType != ContactListFilter.FILTER_TYPE_ALL_ACCOUNTS) {
+            return false;
+        }
+        final ContactSearchIndex.Result result =
+                ContactSearchIndex.getInstance(mContext).query(query);
+        if (result == null || result.contactIds.length > MAX_INDEXED_SEARCH_RESULTS) {
+            return false;
+        }
+
+        final StringBuilder selection = new StringBuilder(Contacts._ID + " IN (");
+        for (int i = 0; i < result.contactIds.length; i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append(result.contactIds[i]);
+        }
+        selection.append(')');
+        loader.setUri(Contacts.CONTENT_URI.buildUpon()
+                .appendQueryParameter(ContactsContract.DIRECTORY_PARAM_KEY,
+                        String.valueOf(Directory.DEFAULT))
+                .build());
+        loader.setProjection(getProjection(false));
+        loader.setSelection(selection.toString());
+        loader.setSelectionArgs(null);
+        mIndexedSnippets = result.snippets;
+        mIndexedSnippetsQuery = query;
+        return true;
+    }
+
+    private String getIndexedSnippet(long contactId) {
+        final String query = getQueryString();
+        if (mIndexedSnippets == null || query == null
+                || !query.trim().equals(mIndexedSnippetsQuery)) {
+            return null;
+        }
+        return mIndexedSnippets.get(contactId);
+    }
+
+    private boolean isDefaultDirectory(int partitionIndex) {
+        final Partition partition = getPartition(partitionIndex);
+        return partition instanceof DirectoryPartition
+                && ((DirectoryPartition) partition).getDirectoryId() == Directory.DEFAULT;
+    }
+
     private void appendSearchParameters(Builder builder, String query, long directoryId) {
         builder.appendPath(query); // Builder will encode the query
         builder.appendQueryParameter(ContactsContract.DIRECTORY_PARAM_KEY,
@@ -289,7 +374,13 @@ public class DefaultContactListAdapter extends ContactListAdapter {
         bindPresenceAndStatusMessage(view, cursor);
 
         if (isSearchMode()) {
-            bindSearchSnippet(view, cursor);
+            if (isDefaultDirectory(partition)
+                    && cursor.getColumnIndex(SearchSnippets.SNIPPET) < 0) {
+                // Loaded through the search index, which computed the snippets.
+                view.setSnippet(getIndexedSnippet(cursor.getLong(ContactQuery.CONTACT_ID)));
+            } else {
+                bindSearchSnippet(view, cursor);
+            }
         } else {
             view.setSnippet(null);
         }
@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MatrixCursor;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.SearchSnippets;
+import android.text.TextUtils;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Caches the results of remote directory searches while the user types, so that a query
+ * extending a previous one does not go to the directory again.
+ *
+ * <p>Results are kept per directory and normalized query for a limited time. A query is
+ * answered from the results of the longest cached prefix of it, as long as that result was not
+ * truncated by the directory's result limit and each of its rows matched the prefix on a column
+ * we can match on: the matches of "john" are then a subset of the matches of "jo" and are found
+ * by matching the query tokens against the cached rows. A directory that matched a row on
+ * anything else, such as a field that is not in the result, is searched again.
+ */
+/* package */ final class DirectorySearchCache {
+
+    private static final int DEFAULT_MAX_ENTRIES = 32;
+    private static final long DEFAULT_TTL_MILLIS = 2 * 60 * 1000;
+
+    /** The columns of a result that a directory matches the query against. */
+    private static final String[] SEARCHED_COLUMNS = new String[] {
+            Contacts.DISPLAY_NAME_PRIMARY,
+            Contacts.DISPLAY_NAME_ALTERNATIVE,
+            Contacts.PHONETIC_NAME,
+            SearchSnippets.SNIPPET,
+            Email.ADDRESS,
+            Phone.NUMBER,
+    };
+
+    /** A copy of the rows of one directory result. */
+    public static final class Entry {
+        final String query;
+        final String[] columns;
+        final List<Object[]> rows;
+        final Bundle extras;
+        final boolean truncated;
+        /** Whether every row matches the query on a searched column. */
+        final boolean refinable;
+        final long createdAt;
+
+        Entry(String query, String[] columns, List<Object[]> rows, Bundle extras,
+                boolean truncated, boolean refinable, long createdAt) {
+            this.query = query;
+            this.columns = columns;
+            this.rows = rows;
+            this.extras = extras;
+            this.truncated = truncated;
+            this.refinable = refinable;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private final int mMaxEntries;
+    private final long mTtlMillis;
+    private final LinkedHashMap<String, Entry> mEntries;
+
+    public DirectorySearchCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+    }
+
+    @VisibleForTesting
+    DirectorySearchCache(int maxEntries, long ttlMillis) {
+        mMaxEntries = maxEntries;
+        mTtlMillis = ttlMillis;
+        mEntries = new LinkedHashMap<String, Entry>(maxEntries, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    /**
+     * Keeps a copy of the result of searching the given directory. The cursor is left
+     * before its first row.
+     *
+     * @param resultLimit The limit the directory was queried with, to tell whether the result
+     *         may be missing matches.
+     */
+    public void put(long directoryId, String query, Cursor cursor, int resultLimit) {
+        final String normalizedQuery = normalize(query);
+        if (cursor == null || TextUtils.isEmpty(normalizedQuery)) {
+            return;
+        }
+        // Keep the snippets as the directory returned them, so that they can be computed
+        // again for a refined query.
+        Cursor source = cursor;
+        while (source instanceof SearchSnippetCursor) {
+            source = ((CursorWrapper) source).getWrappedCursor();
+        }
+
+        final String[] columns = source.getColumnNames();
+        final List<Object[]> rows = Lists.newArrayListWithCapacity(source.getCount());
+        source.moveToPosition(-1);
+        while (source.moveToNext()) {
+            final Object[] row = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                switch (source.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[i] = source.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[i] = source.getDouble(i);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        row[i] = source.getString(i);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        row[i] = source.getBlob(i);
+                        break;
+                }
+            }
+            rows.add(row);
+        }
+        source.moveToPosition(-1);
+        cursor.moveToPosition(-1);
+
+        final int[] searchedColumns = getSearchedColumns(columns);
+        final String[] queryTokens = tokenize(normalizedQuery);
+        boolean refinable = true;
+        for (int i = 0; i < rows.size() && refinable; i++) {
+            refinable = matches(rows.get(i), searchedColumns, queryTokens);
+        }
+
+        final Bundle extras = source.getExtras();
+        final Entry entry = new Entry(normalizedQuery, columns, rows,
+                extras == null ? Bundle.EMPTY : new Bundle(extras),
+                resultLimit > 0 && rows.size() >= resultLimit, refinable,
+                SystemClock.elapsedRealtime());
+        synchronized (mEntries) {
+            mEntries.put(getKey(directoryId, normalizedQuery), entry);
+        }
+    }
+
+    /**
+     * Returns the cached result that answers the search of the given directory, or null if
+     * the directory has to be searched again.
+     */
+    public Entry lookup(long directoryId, String query) {
+        return findEntry(directoryId, normalize(query));
+    }
+
+    /**
+     * Returns a cursor with the rows of the given cached result that match the query.
+     *
+     * @param snippetLengthThreshold Snippets longer than this are shortened around the match.
+     */
+    public static Cursor createCursor(Entry entry, String query, int snippetLengthThreshold) {
+        final String normalizedQuery = normalize(query);
+        final String[] queryTokens = tokenize(normalizedQuery);
+        final boolean refine = !normalizedQuery.equals(entry.query);
+        final Bundle extras = new Bundle(entry.extras);
+        if (extras.containsKey(ContactsContract.DEFERRED_SNIPPETING_QUERY)) {
+            extras.putString(ContactsContract.DEFERRED_SNIPPETING_QUERY, query);
+        }
+        final MatrixCursor cursor = new MatrixCursor(entry.columns, entry.rows.size()) {
+            @Override
+            public Bundle getExtras() {
+                return extras;
+            }
+        };
+        final int[] searchedColumns = refine ? getSearchedColumns(entry.columns) : null;
+        for (Object[] row : entry.rows) {
+            if (!refine || matches(row, searchedColumns, queryTokens)) {
+                cursor.addRow(row);
+            }
+        }
+        return SearchSnippetCursor.wrapIfDeferred(cursor, snippetLengthThreshold);
+    }
+
+    public void clear() {
+        synchronized (mEntries) {
+            mEntries.clear();
+        }
+    }
+
+    private Entry findEntry(long directoryId, String normalizedQuery) {
+        if (TextUtils.isEmpty(normalizedQuery)) {
+            return null;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (mEntries) {
+            // The exact query first, then the longest prefix with a complete result that can
+            // be refined.
+            for (int length = normalizedQuery.length(); length > 0; length--) {
+                final String prefix = normalizedQuery.substring(0, length);
+                final String key = getKey(directoryId, prefix);
+                final Entry entry = mEntries.get(key);
+                if (entry == null) {
+                    continue;
+                }
+                if (now - entry.createdAt > mTtlMillis) {
+                    mEntries.remove(key);
+                    continue;
+                }
+                if (length == normalizedQuery.length()
+                        || (!entry.truncated && entry.refinable)) {
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the indexes of the columns a directory matches queries against. Other text
+     * columns, such as lookup keys and photo URIs, must not make a row match.
+     */
+    private static int[] getSearchedColumns(String[] columns) {
+        final int[] searched = new int[columns.length];
+        int count = 0;
+        for (int i = 0; i < columns.length; i++) {
+            for (String searchedColumn : SEARCHED_COLUMNS) {
+                if (searchedColumn.equals(columns[i])) {
+                    searched[count++] = i;
+                    break;
+                }
+            }
+        }
+        return Arrays.copyOf(searched, count);
+    }
+
+    /**
+     * Returns whether every query token is a prefix of a word in one of the searched columns
+     * of the row, which is how directories match queries against names.
+     */
+    private static boolean matches(Object[] row, int[] searchedColumns, String[] queryTokens) {
+        for (String queryToken : queryTokens) {
+            boolean found = false;
+            for (int i = 0; i < searchedColumns.length && !found; i++) {
+                final Object value = row[searchedColumns[i]];
+                if (value instanceof String) {
+                    found = containsWordWithPrefix(
+                            ((String) value).toLowerCase(Locale.getDefault()), queryToken);
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean containsWordWithPrefix(String text, String prefix) {
+        int index = text.indexOf(prefix);
+        while (index >= 0) {
+            if (index == 0 || !Character.isLetterOrDigit(text.charAt(index - 1))) {
+                return true;
+            }
+            index = text.indexOf(prefix, index + 1);
+        }
+        return false;
+    }
+
+    private static String[] tokenize(String normalizedQuery) {
+        return normalizedQuery.split("\\s+");
+    }
+
+    @VisibleForTesting
+    static String normalize(String query) {
+        if (query == null) {
+            return "";
+        }
+        return query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.getDefault());
+    }
+
+    private static String getKey(long directoryId, String normalizedQuery) {
+        return directoryId + "/" + normalizedQuery;
+    }
+
+    /**
+     * Loads the result of a directory search from the cache.
+     */
+    public static final class ResultLoader extends AsyncTaskLoader<Cursor> {
+        private final Entry mEntry;
+        private final String mQuery;
+        private final int mSnippetLengthThreshold;
+
+        public ResultLoader(Context context, Entry entry, String query,
+                int snippetLengthThreshold) {
+            super(context);
+            mEntry = entry;
+            mQuery = query;
+            mSnippetLengthThreshold = snippetLengthThreshold;
+        }
+
+        @Override
+        protected void onStartLoading() {
+            forceLoad();
+        }
+
+        @Override
+        protected void onStopLoading() {
+            cancelLoad();
+        }
+
+        @Override
+        public Cursor loadInBackground() {
+            return createCursor(mEntry, mQuery, mSnippetLengthThreshold);
+        }
+
+        @Override
+        protected void onReset() {
+            stopLoading();
+        }
+    }
+}
@@ -32,6 +32,7 @@ import android.provider.ContactsContract.Directory;
 import android.provider.ContactsContract.RawContacts;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.View;
 import android.view.ViewGroup;
 
@@ -78,6 +79,10 @@ public class PhoneNumberListAdapter extends ContactEntryListAdapter {
     // exist, this will be Long.MAX_VALUE
     private long mFirstExtendedDirectoryId = Long.MAX_VALUE;
 
+    /** Grouping of the rows of each partition by contact, by partition index. */
+    private final SparseArray<ContactGroupIndex> mGroupIndexes =
+            new SparseArray<ContactGroupIndex>();
+
     public static class PhoneQuery {
 
         /**
@@ -399,17 +404,34 @@ public class PhoneNumberListAdapter extends ContactEntryListAdapter {
         if (cursor == null) {
             return 0;
         }
-        cursor.moveToPosition(-1);
-        long curContactId = -1;
-        int numContacts = 0;
-        while(cursor.moveToNext()) {
-            final long contactId = cursor.getLong(PhoneQuery.CONTACT_ID);
-            if (contactId != curContactId) {
-                curContactId = contactId;
-                ++numContacts;
+        for (int i = 0; i < mGroupIndexes.size(); i++) {
+            final ContactGroupIndex groupIndex = mGroupIndexes.valueAt(i);
+            if (groupIndex != null && groupIndex.isFor(cursor)) {
+                return groupIndex.getGroupCount();
             }
         }
-        return numContacts;
+        return ContactGroupIndex.build(cursor, PhoneQuery.CONTACT_ID).getGroupCount();
+    }
+
+    @Override
+    public void changeCursor(int partitionIndex, Cursor cursor) {
+        if (partitionIndex < getPartitionCount()) {
+            mGroupIndexes.put(partitionIndex, cursor == null || cursor.isClosed() ? null
+                    : ContactGroupIndex.build(cursor, PhoneQuery.CONTACT_ID));
+        }
+        super.changeCursor(partitionIndex, cursor);
+    }
+
+    /**
+     * Returns the grouping of the rows of the given partition by contact.
+     */
+    private ContactGroupIndex getGroupIndex(int partition, Cursor cursor) {
+        ContactGroupIndex groupIndex = mGroupIndexes.get(partition);
+        if (groupIndex == null || !groupIndex.isFor(cursor)) {
+            groupIndex = ContactGroupIndex.build(cursor, PhoneQuery.CONTACT_ID);
+            mGroupIndexes.put(partition, groupIndex);
+        }
+        return groupIndex;
     }
 
     @Override
@@ -419,33 +441,17 @@ public class PhoneNumberListAdapter extends ContactEntryListAdapter {
 
         setHighlight(view, cursor);
 
-        // Look at elements before and after this position, checking if contact IDs are same.
-        // If they have one same contact ID, it means they can be grouped.
+        // Entries with the same contact ID as their neighbors are grouped.
         //
         // In one group, only the first entry will show its photo and its name, and the other
         // entries in the group show just their data (e.g. phone number, email address).
+        final ContactGroupIndex groupIndex = getGroupIndex(partition, cursor);
         cursor.moveToPosition(position);
-        boolean isFirstEntry = true;
-        boolean showBottomDivider = true;
-        final long currentContactId = cursor.getLong(PhoneQuery.CONTACT_ID);
-        if (cursor.moveToPrevious() && !cursor.isBeforeFirst()) {
-            final long previousContactId = cursor.getLong(PhoneQuery.CONTACT_ID);
-            if (currentContactId == previousContactId) {
-                isFirstEntry = false;
-            }
-        }
-        cursor.moveToPosition(position);
-        if (cursor.moveToNext() && !cursor.isAfterLast()) {
-            final long nextContactId = cursor.getLong(PhoneQuery.CONTACT_ID);
-            if (currentContactId == nextContactId) {
-                // The following entry should be in the same group, which means we don't want a
-                // divider between them.
-                // TODO: we want a different divider than the divider between groups. Just hiding
-                // this divider won't be enough.
-                showBottomDivider = false;
-            }
-        }
-        cursor.moveToPosition(position);
+        final boolean isFirstEntry = groupIndex.isFirstInGroup(position);
+        // If the following entry is in the same group, we don't want a divider between them.
+        // TODO: we want a different divider than the divider between groups. Just hiding
+        // this divider won't be enough.
+        final boolean showBottomDivider = groupIndex.isLastInGroup(position);
 
         bindViewId(view, cursor, PhoneQuery.PHONE_ID);
 
@@ -539,6 +545,11 @@ public class PhoneNumberListAdapter extends ContactEntryListAdapter {
                 !isExtendedDirectory(directoryId) && userType == ContactsUtils.USER_TYPE_WORK);
     }
 
+    @Override
+    protected int getPhotoIdColumnIndex() {
+        return PhoneQuery.PHOTO_ID;
+    }
+
     protected void bindPhoto(final ContactListItemView view, int partitionIndex, Cursor cursor) {
         if (!isPhotoSupported(partitionIndex)) {
             view.removePhotoView();
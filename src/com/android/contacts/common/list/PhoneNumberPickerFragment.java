@@ -354,6 +354,7 @@ public class PhoneNumberPickerFragment extends ContactEntryListFragment<ContactE
 
         mFilter = filter;
         if (mLoaderStarted) {
+            invalidateDirectorySearchCache();
             reloadData();
         }
         updateFilterHeaderView();
@@ -19,6 +19,7 @@ package com.android.contacts.common.list;
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.RectF;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
@@ -102,6 +103,10 @@ public class PinnedHeaderListView extends AutoScrollListView
     private OnItemSelectedListener mOnItemSelectedListener;
     private int mScrollState;
 
+    private int mLastFirstVisibleItem;
+    private long mLastFirstVisibleItemTime;
+    private float mScrollVelocity;
+
     private boolean mScrollToSectionOnHeaderTouch = false;
     private boolean mHeaderTouched = false;
 
@@ -181,11 +186,36 @@ public class PinnedHeaderListView extends AutoScrollListView
             mAdapter.configurePinnedHeaders(this);
             invalidateIfAnimating();
         }
+        updateScrollVelocity(firstVisibleItem);
         if (mOnScrollListener != null) {
             mOnScrollListener.onScroll(this, firstVisibleItem, visibleItemCount, totalItemCount);
         }
     }
 
+    private void updateScrollVelocity(int firstVisibleItem) {
+        if (firstVisibleItem == mLastFirstVisibleItem) {
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        if (mScrollState != SCROLL_STATE_IDLE && mLastFirstVisibleItemTime != 0
+                && now > mLastFirstVisibleItemTime) {
+            final float velocity = (firstVisibleItem - mLastFirstVisibleItem) * 1000f
+                    / (now - mLastFirstVisibleItemTime);
+            // Smooth out the jitter caused by rows of different heights.
+            mScrollVelocity = (mScrollVelocity + velocity) / 2;
+        }
+        mLastFirstVisibleItem = firstVisibleItem;
+        mLastFirstVisibleItemTime = now;
+    }
+
+    /**
+     * Returns how fast the list is scrolling, in items per second. The value is positive when
+     * scrolling towards the end of the list and 0 when the list is idle.
+     */
+    public float getScrollVelocity() {
+        return mScrollVelocity;
+    }
+
     @Override
     protected float getTopFadingEdgeStrength() {
         // Disable vertical fading at the top when the pinned header is present
@@ -195,6 +225,9 @@ public class PinnedHeaderListView extends AutoScrollListView
     @Override
     public void onScrollStateChanged(AbsListView view, int scrollState) {
         mScrollState = scrollState;
+        if (scrollState == SCROLL_STATE_IDLE) {
+            mScrollVelocity = 0;
+        }
         if (mOnScrollListener != null) {
             mOnScrollListener.onScrollStateChanged(this, scrollState);
         }
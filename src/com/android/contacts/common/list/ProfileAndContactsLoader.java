@@ -22,19 +22,56 @@ import android.database.MatrixCursor;
 import android.database.MergeCursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.ContactsContract.Profile;
+import android.util.Log;
 
 import com.google.common.collect.Lists;
 
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A loader for use in the default contact list, which will also query for the user's profile
  * if configured to do so.
  */
 public class ProfileAndContactsLoader extends CursorLoader {
+    private static final String TAG = "ProfileAndContactsLoader";
+
+    /** How long the profile and extra contacts may take, counted from the start of a load. */
+    private static final long SUB_QUERY_TIMEOUT_MILLIS = 2000;
+
+    private static final int MAX_SUB_QUERY_THREADS = 2;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            MAX_SUB_QUERY_THREADS, MAX_SUB_QUERY_THREADS, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "ProfileAndContactsLoader");
+                }
+            });
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
     private boolean mLoadProfile;
+    private boolean mStreamProfile;
 
     private String[] mProjection;
 
@@ -53,6 +90,14 @@ public class ProfileAndContactsLoader extends CursorLoader {
         mLoadProfile = flag;
     }
 
+    /**
+     * Whether to deliver the contacts without waiting for the profile, if it takes longer,
+     * and deliver them again with the profile once it is loaded.
+     */
+    public void setStreamProfile(boolean flag) {
+        mStreamProfile = flag;
+    }
+
     public void setProjection(String[] projection) {
         super.setProjection(projection);
         mProjection = projection;
@@ -81,14 +126,22 @@ public class ProfileAndContactsLoader extends CursorLoader {
 
     @Override
     public Cursor loadInBackground() {
-        // First load the profile, if enabled.
-        List<Cursor> cursors = Lists.newArrayList();
-        if (mLoadProfile) {
-            cursors.add(loadProfile());
-        }
-        if (canLoadExtraContacts() && !mMergeExtraContactsAfterPrimary) {
-            cursors.add(loadExtraContacts());
-        }
+        // The profile and the extra contacts are queried on the executor while the primary
+        // contacts are queried on this thread.
+        final SubQuery profileQuery = mLoadProfile ? submit(new SubQuery() {
+            @Override
+            protected Cursor query() {
+                return loadProfile();
+            }
+        }) : null;
+        final SubQuery extraQuery = canLoadExtraContacts() ? submit(new SubQuery() {
+            @Override
+            protected Cursor query() {
+                return loadExtraContacts();
+            }
+        }) : null;
+        final long deadline = SystemClock.elapsedRealtime() + SUB_QUERY_TIMEOUT_MILLIS;
+
         // ContactsCursor.loadInBackground() can return null; MergeCursor
         // correctly handles null cursors.
         Cursor cursor = null;
@@ -96,19 +149,119 @@ public class ProfileAndContactsLoader extends CursorLoader {
             cursor = super.loadInBackground();
         } catch (NullPointerException | SecurityException e) {
             // Ignore NPEs and SecurityExceptions thrown by providers
+        } catch (RuntimeException e) {
+            // Most likely canceled, the results of the other queries are not needed.
+            abandon(profileQuery);
+            abandon(extraQuery);
+            throw e;
         }
         final Cursor contactsCursor = cursor;
+
+        // The cursors in the order they are merged in, with the sub-query of each cursor that
+        // is still loading.
+        final List<Cursor> cursors = Lists.newArrayList();
+        final List<SubQuery> queries = Lists.newArrayList();
+        if (profileQuery != null) {
+            cursors.add(null);
+            queries.add(profileQuery);
+        }
+        if (extraQuery != null && !mMergeExtraContactsAfterPrimary) {
+            cursors.add(null);
+            queries.add(extraQuery);
+        }
         cursors.add(contactsCursor);
-        if (canLoadExtraContacts() && mMergeExtraContactsAfterPrimary) {
-            cursors.add(loadExtraContacts());
+        queries.add(null);
+        if (extraQuery != null && mMergeExtraContactsAfterPrimary) {
+            cursors.add(null);
+            queries.add(extraQuery);
         }
-        return new MergeCursor(cursors.toArray(new Cursor[cursors.size()])) {
-            @Override
-            public Bundle getExtras() {
-                // Need to get the extras from the contacts cursor.
-                return contactsCursor == null ? new Bundle() : contactsCursor.getExtras();
+
+        boolean pending = false;
+        boolean timedOut = false;
+        for (int i = 0; i < queries.size(); i++) {
+            final SubQuery query = queries.get(i);
+            if (query == null) {
+                continue;
+            }
+            // A streamed profile is not waited for at all.
+            final boolean streamed = query == profileQuery && mStreamProfile;
+            if (!query.await(streamed ? 0 : deadline)) {
+                pending = true;
+                timedOut |= !streamed;
+                continue;
             }
-        };
+            cursors.set(i, query.getResult());
+            queries.set(i, null);
+        }
+        final Cursor[] mergedCursors = cursors.toArray(new Cursor[cursors.size()]);
+        if (!pending) {
+            return new ContactsMergeCursor(mergedCursors, contactsCursor);
+        }
+        if (timedOut) {
+            Log.w(TAG, "Delivering contacts without sub-queries that took longer than "
+                    + SUB_QUERY_TIMEOUT_MILLIS + " ms, they are added once loaded");
+        }
+        // Show the contacts now and the rest once it is loaded.
+        return new PartialResult(mergedCursors, contactsCursor,
+                queries.toArray(new SubQuery[queries.size()]));
+    }
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+        super.deliverResult(cursor);
+        if (cursor instanceof PartialResult && isStarted()) {
+            final PartialResult partial = (PartialResult) cursor;
+            final Runnable splice = new Runnable() {
+                @Override
+                public void run() {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            splicePendingResults(partial);
+                        }
+                    });
+                }
+            };
+            for (SubQuery query : partial.mPendingQueries) {
+                if (query != null) {
+                    query.whenDone(splice);
+                }
+            }
+        }
+    }
+
+    /**
+     * Delivers the given partial result with the results of its sub-queries added, once all of
+     * them are loaded. Called on the main thread whenever one of them was loaded.
+     */
+    private void splicePendingResults(PartialResult partial) {
+        if (partial.isClosed() || partial.mHandedOff || !isStarted()) {
+            // Replaced by a newer result, or delivered again once the loader is started.
+            return;
+        }
+        final Cursor[] cursors = partial.mCursors.clone();
+        for (int i = 0; i < cursors.length; i++) {
+            final SubQuery query = partial.mPendingQueries[i];
+            if (query != null) {
+                if (!query.isDone()) {
+                    return;
+                }
+                cursors[i] = query.getResult();
+            }
+        }
+        partial.mHandedOff = true;
+        deliverResult(new ContactsMergeCursor(cursors, partial.mContactsCursor));
+    }
+
+    private static SubQuery submit(SubQuery query) {
+        sExecutor.execute(query);
+        return query;
+    }
+
+    private static void abandon(SubQuery query) {
+        if (query != null) {
+            query.abandon();
+        }
     }
 
     /**
@@ -142,4 +295,158 @@ public class ProfileAndContactsLoader extends CursorLoader {
         return getContext().getContentResolver().query(
                 mExtraUri, mExtraProjection, mExtraSelection, mExtraSelectionArgs, null);
     }
+
+    /**
+     * Merges the given cursors, with the extras of the primary contacts cursor.
+     */
+    private static class ContactsMergeCursor extends MergeCursor {
+        final Cursor[] mCursors;
+        final Cursor mContactsCursor;
+
+        ContactsMergeCursor(Cursor[] cursors, Cursor contactsCursor) {
+            super(cursors);
+            mCursors = cursors;
+            mContactsCursor = contactsCursor;
+        }
+
+        @Override
+        public Bundle getExtras() {
+            // Need to get the extras from the contacts cursor.
+            return mContactsCursor == null ? new Bundle() : mContactsCursor.getExtras();
+        }
+    }
+
+    /**
+     * The contacts without the results of the sub-queries that are still loading, such as a
+     * streamed profile. Once they are loaded, its cursors are handed off to the result that
+     * includes them and are no longer closed with it.
+     */
+    private static final class PartialResult extends ContactsMergeCursor {
+        /** The sub-query loading each missing cursor, null for the cursors that are there. */
+        final SubQuery[] mPendingQueries;
+        boolean mHandedOff;
+        private boolean mClosedAfterHandOff;
+
+        PartialResult(Cursor[] cursors, Cursor contactsCursor, SubQuery[] pendingQueries) {
+            super(cursors, contactsCursor);
+            mPendingQueries = pendingQueries;
+        }
+
+        @Override
+        public void close() {
+            if (mHandedOff) {
+                mClosedAfterHandOff = true;
+                return;
+            }
+            super.close();
+            for (SubQuery query : mPendingQueries) {
+                abandon(query);
+            }
+        }
+
+        @Override
+        public boolean isClosed() {
+            return mClosedAfterHandOff || super.isClosed();
+        }
+    }
+
+    /**
+     * A query run on the executor, whose result is waited for with a deadline. A result that
+     * arrives after it was given up on is closed.
+     */
+    private abstract static class SubQuery implements Runnable {
+        private Cursor mResult;
+        private boolean mDone;
+        private boolean mAbandoned;
+        private Runnable mOnDone;
+
+        protected abstract Cursor query();
+
+        @Override
+        public void run() {
+            Cursor cursor = null;
+            try {
+                cursor = query();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Query failed", e);
+            }
+            final Runnable onDone;
+            synchronized (this) {
+                if (mAbandoned) {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                    return;
+                }
+                mResult = cursor;
+                mDone = true;
+                onDone = mOnDone;
+                notifyAll();
+            }
+            if (onDone != null) {
+                onDone.run();
+            }
+        }
+
+        public synchronized boolean isDone() {
+            return mDone;
+        }
+
+        /**
+         * Waits for the query to finish until the deadline, and returns whether it did.
+         */
+        public synchronized boolean await(long deadline) {
+            boolean interrupted = false;
+            long remaining;
+            while (!mDone && !mAbandoned
+                    && (remaining = deadline - SystemClock.elapsedRealtime()) > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    break;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return mDone;
+        }
+
+        /**
+         * Returns the result of a finished query, or null if it failed.
+         */
+        public synchronized Cursor getResult() {
+            return mResult;
+        }
+
+        /**
+         * Closes the result, now or once the query finishes.
+         */
+        public synchronized void abandon() {
+            mAbandoned = true;
+            mOnDone = null;
+            if (mResult != null) {
+                mResult.close();
+                mResult = null;
+            }
+        }
+
+        /**
+         * Runs the given callback once the query finished, on the calling thread if it
+         * already did. Does nothing if the query was abandoned.
+         */
+        public void whenDone(Runnable callback) {
+            synchronized (this) {
+                if (mAbandoned) {
+                    return;
+                }
+                if (!mDone) {
+                    mOnDone = callback;
+                    return;
+                }
+            }
+            callback.run();
+        }
+    }
 }
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.os.Bundle;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.SearchSnippets;
+import android.text.TextUtils;
+
+import com.android.contacts.common.util.SearchUtil;
+
+import com.google.common.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Wraps a search result for which the provider deferred snippeting to the client, and
+ * computes the snippets of all rows up front, so that it can be done in the background
+ * rather than while binding rows. The snippet column of the wrapper returns the snippet to
+ * display, and its extras carry {@link #EXTRA_SNIPPETS_COMPUTED}.
+ */
+public class SearchSnippetCursor extends CursorWrapper {
+
+    /**
+     * Extra of the cursor set to true when the snippet column holds the snippets to display.
+     */
+    public static final String EXTRA_SNIPPETS_COMPUTED = "snippets_computed";
+
+    private static final Pattern SPLIT_PATTERN = Pattern.compile(
+            "([\\w-\\.]+)@((?:[\\w]+\\.)+)([a-zA-Z]{2,4})|[\\w]+");
+
+    private final int mSnippetColumn;
+    private final String[] mSnippets;
+    private final Bundle mExtras;
+
+    private SearchSnippetCursor(Cursor cursor, int snippetColumn, String query,
+            int lengthThreshold) {
+        super(cursor);
+        mSnippetColumn = snippetColumn;
+        mSnippets = new String[cursor.getCount()];
+        final int displayNameColumn = cursor.getColumnIndex(Contacts.DISPLAY_NAME);
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            final String displayName =
+                    displayNameColumn >= 0 ? cursor.getString(displayNameColumn) : null;
+            mSnippets[cursor.getPosition()] = updateSnippet(cursor.getString(snippetColumn),
+                    query, displayName, lengthThreshold);
+        }
+        cursor.moveToPosition(-1);
+
+        mExtras = new Bundle(cursor.getExtras());
+        mExtras.putBoolean(ContactsContract.DEFERRED_SNIPPETING, false);
+        mExtras.putBoolean(EXTRA_SNIPPETS_COMPUTED, true);
+    }
+
+    /**
+     * Returns a {@link SearchSnippetCursor} wrapping the given cursor if the provider deferred
+     * snippeting for it, or the cursor itself otherwise. Iterates over the whole cursor, so
+     * it must not be called on the UI thread.
+     *
+     * @param lengthThreshold Snippets longer than this are shortened around the match.
+     */
+    public static Cursor wrapIfDeferred(Cursor cursor, int lengthThreshold) {
+        if (cursor == null || cursor instanceof SearchSnippetCursor) {
+            return cursor;
+        }
+        final Bundle extras = cursor.getExtras();
+        if (extras == null || !extras.getBoolean(ContactsContract.DEFERRED_SNIPPETING)) {
+            return cursor;
+        }
+        final int snippetColumn = cursor.getColumnIndex(SearchSnippets.SNIPPET);
+        if (snippetColumn < 0) {
+            return cursor;
+        }
+        return new SearchSnippetCursor(cursor, snippetColumn,
+                extras.getString(ContactsContract.DEFERRED_SNIPPETING_QUERY), lengthThreshold);
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        if (columnIndex == mSnippetColumn) {
+            final int position = getPosition();
+            return position >= 0 && position < mSnippets.length ? mSnippets[position] : null;
+        }
+        return super.getString(columnIndex);
+    }
+
+    @Override
+    public boolean isNull(int columnIndex) {
+        if (columnIndex == mSnippetColumn) {
+            return getString(columnIndex) == null;
+        }
+        return super.isNull(columnIndex);
+    }
+
+    @Override
+    public int getType(int columnIndex) {
+        if (columnIndex == mSnippetColumn) {
+            return isNull(columnIndex) ? FIELD_TYPE_NULL : FIELD_TYPE_STRING;
+        }
+        return super.getType(columnIndex);
+    }
+
+    @Override
+    public Bundle getExtras() {
+        return mExtras;
+    }
+
+    /**
+     * Used for deferred snippets from the database. The contents come back as large strings which
+     * need to be extracted for display.
+     *
+     * @param snippet The snippet from the database.
+     * @param query The search query substring.
+     * @param displayName The contact display name.
+     * @param lengthThreshold Snippets longer than this are shortened around the match.
+     * @return The proper snippet to display.
+     */
+    public static String updateSnippet(String snippet, String query, String displayName,
+            int lengthThreshold) {
+
+        if (TextUtils.isEmpty(snippet) || TextUtils.isEmpty(query)) {
+            return null;
+        }
+        query = SearchUtil.cleanStartAndEndOfSearchQuery(query.toLowerCase());
+
+        // If the display name already contains the query term, return empty - snippets should
+        // not be needed in that case.
+        if (!TextUtils.isEmpty(displayName)) {
+            final String lowerDisplayName = displayName.toLowerCase();
+            final List<String> nameTokens = split(lowerDisplayName);
+            for (String nameToken : nameTokens) {
+                if (nameToken.startsWith(query)) {
+                    return null;
+                }
+            }
+        }
+
+        // The snippet may contain multiple data lines.
+        // Show the first line that matches the query.
+        final SearchUtil.MatchedLine matched = SearchUtil.findMatchingLine(snippet, query);
+
+        if (matched != null && matched.line != null) {
+            // Tokenize for long strings since the match may be at the end of it.
+            // Skip this part for short strings since the whole string will be displayed.
+            // Most contact strings are short so the snippetize method will be called infrequently.
+            if (matched.line.length() > lengthThreshold) {
+                return snippetize(matched.line, matched.startIndex, lengthThreshold);
+            } else {
+                return matched.line;
+            }
+        }
+
+        // No match found.
+        return null;
+    }
+
+    private static String snippetize(String line, int matchIndex, int maxLength) {
+        // Show up to maxLength characters. But we only show full tokens so show the last full token
+        // up to maxLength characters. So as many starting tokens as possible before trying ending
+        // tokens.
+        int remainingLength = maxLength;
+        int tempRemainingLength = remainingLength;
+
+        // Start the end token after the matched query.
+        int index = matchIndex;
+        int endTokenIndex = index;
+
+        // Find the match token first.
+        while (index < line.length()) {
+            if (!Character.isLetterOrDigit(line.charAt(index))) {
+                endTokenIndex = index;
+                remainingLength = tempRemainingLength;
+                break;
+            }
+            tempRemainingLength--;
+            index++;
+        }
+
+        // Find as much content before the match.
+        index = matchIndex - 1;
+        tempRemainingLength = remainingLength;
+        int startTokenIndex = matchIndex;
+        while (index > -1 && tempRemainingLength > 0) {
+            if (!Character.isLetterOrDigit(line.charAt(index))) {
+                startTokenIndex = index;
+                remainingLength = tempRemainingLength;
+            }
+            tempRemainingLength--;
+            index--;
+        }
+
+        index = endTokenIndex;
+        tempRemainingLength = remainingLength;
+        // Find remaining content at after match.
+        while (index < line.length() && tempRemainingLength > 0) {
+            if (!Character.isLetterOrDigit(line.charAt(index))) {
+                endTokenIndex = index;
+            }
+            tempRemainingLength--;
+            index++;
+        }
+        // Append ellipse if there is content before or after.
+        final StringBuilder sb = new StringBuilder();
+        if (startTokenIndex > 0) {
+            sb.append("...");
+        }
+        sb.append(line.substring(startTokenIndex, endTokenIndex));
+        if (endTokenIndex < line.length()) {
+            sb.append("...");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Helper method for splitting a string into tokens.  The lists passed in are populated with
+     * the
+     * tokens and offsets into the content of each token.  The tokenization function parses e-mail
+     * addresses as a single token; otherwise it splits on any non-alphanumeric character.
+     *
+     * @param content Content to split.
+     * @return List of token strings.
+     */
+    private static List<String> split(String content) {
+        final Matcher matcher = SPLIT_PATTERN.matcher(content);
+        final ArrayList<String> tokens = Lists.newArrayList();
+        while (matcher.find()) {
+            tokens.add(matcher.group());
+        }
+        return tokens;
+    }
+}
@@ -27,7 +27,9 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SyncAdapterType;
 import android.content.SyncStatusObserver;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
 import android.net.Uri;
 import android.os.AsyncTask;
@@ -72,7 +74,13 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -236,6 +244,10 @@ class AccountTypeManagerImpl extends AccountTypeManager
 
     private static final int MESSAGE_LOAD_DATA = 0;
     private static final int MESSAGE_PROCESS_BROADCAST_INTENT = 1;
+    private static final int MESSAGE_LOAD_SNAPSHOT = 2;
+
+    /** Maximum number of account types inflated at the same time. */
+    private static final int MAX_INFLATION_THREADS = 4;
 
     private HandlerThread mListenerThread;
     private Handler mListenerHandler;
@@ -261,6 +273,21 @@ class AccountTypeManagerImpl extends AccountTypeManager
     /* A latch that ensures that asynchronous initialization completes before data is used */
     private volatile CountDownLatch mInitializationLatch = new CountDownLatch(1);
 
+    /**
+     * A latch released as soon as the account lists are known, which may be before the account
+     * types are loaded if they are restored from the saved snapshot.
+     */
+    private volatile CountDownLatch mAccountListsLatch = new CountDownLatch(1);
+
+    /** The snapshot saved or restored last, to save it only when it changed. */
+    private AccountTypeSnapshot mSnapshot;
+
+    /**
+     * Account types of the last load, keyed by type, package and package version, so that they
+     * are only inflated again when their package changed.
+     */
+    private Map<String, AccountType> mLoadedAccountTypes = Maps.newHashMap();
+
     private static final Comparator<AccountWithDataSet> ACCOUNT_COMPARATOR =
         new Comparator<AccountWithDataSet>() {
         @Override
@@ -307,6 +334,9 @@ class AccountTypeManagerImpl extends AccountTypeManager
             @Override
             public void handleMessage(Message msg) {
                 switch (msg.what) {
+                    case MESSAGE_LOAD_SNAPSHOT:
+                        loadSnapshot();
+                        break;
                     case MESSAGE_LOAD_DATA:
                         loadAccountsInBackground();
                         break;
@@ -339,6 +369,7 @@ class AccountTypeManagerImpl extends AccountTypeManager
 
         ContentResolver.addStatusChangeListener(ContentResolver.SYNC_OBSERVER_TYPE_SETTINGS, this);
 
+        mListenerHandler.sendEmptyMessage(MESSAGE_LOAD_SNAPSHOT);
         mListenerHandler.sendEmptyMessage(MESSAGE_LOAD_DATA);
     }
 
@@ -348,6 +379,10 @@ class AccountTypeManagerImpl extends AccountTypeManager
     }
 
     public void processBroadcastIntent(Intent intent) {
+        if (Intent.ACTION_LOCALE_CHANGED.equals(intent.getAction())) {
+            // Account types resolve their labels and field order for the locale.
+            mLoadedAccountTypes = Maps.newHashMap();
+        }
         mListenerHandler.sendEmptyMessage(MESSAGE_LOAD_DATA);
     }
 
@@ -376,6 +411,88 @@ class AccountTypeManagerImpl extends AccountTypeManager
         }
     }
 
+    /**
+     * Returns instantly if the account lists are known. Otherwise waits for them to be restored
+     * from the snapshot or loaded.
+     */
+    void ensureAccountListsLoaded() {
+        CountDownLatch latch = mAccountListsLatch;
+        if (latch == null) {
+            return;
+        }
+        while (true) {
+            try {
+                latch.await();
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Serves the account lists from the saved snapshot if nothing they depend on changed since
+     * it was saved. The account types are still loaded afterwards. Called on the background
+     * thread before the first load.
+     */
+    private void loadSnapshot() {
+        final AccountTypeSnapshot snapshot = AccountTypeSnapshot.read(mContext);
+        if (snapshot == null) {
+            return;
+        }
+        final String fingerprint = AccountTypeSnapshot.computeFingerprint(
+                mContext, mAccountManager, snapshot.packages);
+        if (!fingerprint.equals(snapshot.fingerprint)) {
+            Log.i(TAG, "Account type snapshot is out of date");
+            return;
+        }
+        synchronized (this) {
+            mAccounts = snapshot.accounts;
+            mContactWritableAccounts = snapshot.contactWritableAccounts;
+            mGroupWritableAccounts = snapshot.groupWritableAccounts;
+            mSnapshot = snapshot;
+        }
+        if (mAccountListsLatch != null) {
+            mAccountListsLatch.countDown();
+            mAccountListsLatch = null;
+        }
+        Log.i(TAG, "Restored " + snapshot.accounts.size() + " accounts from snapshot");
+    }
+
+    /**
+     * Saves the account lists of the last load, unless they are the ones saved already.
+     */
+    private void saveSnapshot(Set<String> packages, List<AccountWithDataSet> allAccounts,
+            List<AccountWithDataSet> contactWritableAccounts,
+            List<AccountWithDataSet> groupWritableAccounts) {
+        final AccountTypeSnapshot snapshot = new AccountTypeSnapshot(
+                AccountTypeSnapshot.computeFingerprint(mContext, mAccountManager, packages),
+                packages, allAccounts, contactWritableAccounts, groupWritableAccounts);
+        final AccountTypeSnapshot previous = mSnapshot;
+        if (previous != null && previous.fingerprint.equals(snapshot.fingerprint)
+                && previous.packages.equals(packages)
+                && previous.accounts.equals(allAccounts)
+                && previous.contactWritableAccounts.equals(contactWritableAccounts)
+                && previous.groupWritableAccounts.equals(groupWritableAccounts)) {
+            return;
+        }
+        snapshot.write(mContext);
+        mSnapshot = snapshot;
+    }
+
+    /**
+     * Returns the key of an account type in {@link #mLoadedAccountTypes}, or null if the
+     * package providing it is not installed.
+     */
+    private String getAccountTypeKey(String type, String packageName) {
+        try {
+            final PackageInfo info = mContext.getPackageManager().getPackageInfo(packageName, 0);
+            return type + "/" + packageName + "/" + info.versionCode + "/" + info.lastUpdateTime;
+        } catch (NameNotFoundException e) {
+            return null;
+        }
+    }
+
     /**
      * Loads account list and corresponding account types (potentially with data sets). Always
      * called on a background thread.
@@ -401,13 +518,22 @@ class AccountTypeManagerImpl extends AccountTypeManager
         final List<AccountWithDataSet> contactWritableAccounts = Lists.newArrayList();
         final List<AccountWithDataSet> groupWritableAccounts = Lists.newArrayList();
         final Set<String> extensionPackages = Sets.newHashSet();
+        final Set<String> packages = Sets.newHashSet();
+        final Map<String, AccountType> previousAccountTypes = mLoadedAccountTypes;
+        final Map<String, AccountType> loadedAccountTypes = Maps.newHashMap();
 
         final AccountManager am = mAccountManager;
 
         final SyncAdapterType[] syncs = ContentResolver.getSyncAdapterTypes();
         final AuthenticatorDescription[] auths = am.getAuthenticatorTypes();
 
-        // First process sync adapters to find any that provide contact data.
+        // First process sync adapters to find any that provide contact data. External account
+        // types are inflated together afterwards, then all are added in the order of the
+        // sync adapters.
+        final List<AuthenticatorDescription> contactAuths = Lists.newArrayList();
+        final List<String> contactAuthKeys = Lists.newArrayList();
+        final List<AccountType> contactAccountTypes = Lists.newArrayList();
+        final List<String> externalPackages = Lists.newArrayList();
         for (SyncAdapterType sync : syncs) {
             if (!ContactsContract.AUTHORITY.equals(sync.authority)) {
                 // Skip sync adapters that don't provide contact data.
@@ -423,8 +549,12 @@ class AccountTypeManagerImpl extends AccountTypeManager
                 continue;
             }
 
-            AccountType accountType;
-            if (GoogleAccountType.ACCOUNT_TYPE.equals(type)) {
+            packages.add(auth.packageName);
+            final String key = getAccountTypeKey(type, auth.packageName);
+            AccountType accountType = key == null ? null : previousAccountTypes.get(key);
+            if (accountType != null) {
+                // Unchanged since the last load.
+            } else if (GoogleAccountType.ACCOUNT_TYPE.equals(type)) {
                 accountType = new GoogleAccountType(mContext, auth.packageName);
             } else if (ExchangeAccountType.isExchangeType(type)) {
                 accountType = new ExchangeAccountType(mContext, auth.packageName, type);
@@ -438,7 +568,22 @@ class AccountTypeManagerImpl extends AccountTypeManager
             } else {
                 Log.d(TAG, "Registering external account type=" + type
                         + ", packageName=" + auth.packageName);
-                accountType = new ExternalAccountType(mContext, auth.packageName, false);
+                externalPackages.add(auth.packageName);
+            }
+            contactAuths.add(auth);
+            contactAuthKeys.add(key);
+            contactAccountTypes.add(accountType);
+        }
+
+        final List<ExternalAccountType> externalAccountTypes =
+                inflateExternalAccountTypes(externalPackages, false, timings);
+        int nextExternalAccountType = 0;
+        for (int i = 0; i < contactAuths.size(); i++) {
+            final AuthenticatorDescription auth = contactAuths.get(i);
+            final String key = contactAuthKeys.get(i);
+            AccountType accountType = contactAccountTypes.get(i);
+            if (accountType == null) {
+                accountType = externalAccountTypes.get(nextExternalAccountType++);
             }
             if (!accountType.isInitialized()) {
                 if (accountType.isEmbedded()) {
@@ -453,6 +598,9 @@ class AccountTypeManagerImpl extends AccountTypeManager
             accountType.accountType = auth.type;
             accountType.titleRes = auth.labelId;
             accountType.iconRes = auth.iconId;
+            if (key != null) {
+                loadedAccountTypes.put(key, accountType);
+            }
 
             addAccountType(accountType, accountTypesByTypeAndDataSet, accountTypesByType);
 
@@ -474,9 +622,32 @@ class AccountTypeManagerImpl extends AccountTypeManager
         // If any extension packages were specified, process them as well.
         if (!extensionPackages.isEmpty()) {
             Log.d(TAG, "Registering " + extensionPackages.size() + " extension packages");
-            for (String extensionPackage : extensionPackages) {
-                ExternalAccountType accountType =
-                    new ExternalAccountType(mContext, extensionPackage, true);
+            // Sorted, so that the order in which types are added does not depend on hashing.
+            final List<String> sortedExtensionPackages =
+                    Lists.newArrayList(new TreeSet<String>(extensionPackages));
+            final List<String> extensionKeys = Lists.newArrayList();
+            final List<String> inflatedExtensionPackages = Lists.newArrayList();
+            for (String extensionPackage : sortedExtensionPackages) {
+                final String key = getAccountTypeKey("", extensionPackage);
+                extensionKeys.add(key);
+                if (!(previousAccountTypes.get(key) instanceof ExternalAccountType)) {
+                    inflatedExtensionPackages.add(extensionPackage);
+                }
+            }
+            final List<ExternalAccountType> extensionAccountTypes =
+                    inflateExternalAccountTypes(inflatedExtensionPackages, true, timings);
+            int nextExtensionAccountType = 0;
+            for (int i = 0; i < sortedExtensionPackages.size(); i++) {
+                final String extensionPackage = sortedExtensionPackages.get(i);
+                packages.add(extensionPackage);
+                final String key = extensionKeys.get(i);
+                final AccountType previous = previousAccountTypes.get(key);
+                final ExternalAccountType accountType = previous instanceof ExternalAccountType
+                        ? (ExternalAccountType) previous
+                        : extensionAccountTypes.get(nextExtensionAccountType++);
+                if (key != null) {
+                    loadedAccountTypes.put(key, accountType);
+                }
                 if (!accountType.isInitialized()) {
                     // Skip external account types that couldn't be initialized.
                     continue;
@@ -533,6 +704,7 @@ class AccountTypeManagerImpl extends AccountTypeManager
 
         timings.addSplit("Loaded accounts");
 
+        mLoadedAccountTypes = loadedAccountTypes;
         synchronized (this) {
             mAccountTypesWithDataSets = accountTypesByTypeAndDataSet;
             mAccounts = allAccounts;
@@ -550,10 +722,15 @@ class AccountTypeManagerImpl extends AccountTypeManager
                 + mAccounts.size() + " accounts in " + (endTimeWall - startTimeWall) + "ms(wall) "
                 + (endTime - startTime) + "ms(cpu)");
 
+        if (mAccountListsLatch != null) {
+            mAccountListsLatch.countDown();
+            mAccountListsLatch = null;
+        }
         if (mInitializationLatch != null) {
             mInitializationLatch.countDown();
             mInitializationLatch = null;
         }
+        saveSnapshot(packages, allAccounts, contactWritableAccounts, groupWritableAccounts);
         if (Log.isLoggable(Constants.PERFORMANCE_TAG, Log.DEBUG)) {
             Log.d(Constants.PERFORMANCE_TAG, "AccountTypeManager.loadAccountsInBackground finish");
         }
@@ -563,6 +740,85 @@ class AccountTypeManagerImpl extends AccountTypeManager
         mMainThreadHandler.post(mCheckFilterValidityRunnable);
     }
 
+    /**
+     * Inflates the account types of the given packages, which each parse the contacts metadata
+     * of their package, on a bounded pool. Returns them in the order of the packages, and adds
+     * the time each took to the given timings.
+     */
+    private List<ExternalAccountType> inflateExternalAccountTypes(List<String> packageNames,
+            final boolean isExtension, TimingLogger timings) {
+        final int count = packageNames.size();
+        final List<ExternalAccountType> accountTypes = Lists.newArrayListWithCapacity(count);
+        final long[] durations = new long[count];
+        final int threadCount = Math.min(count,
+                Math.min(MAX_INFLATION_THREADS, Runtime.getRuntime().availableProcessors()));
+        if (threadCount <= 1) {
+            for (int i = 0; i < count; i++) {
+                final long start = SystemClock.elapsedRealtime();
+                accountTypes.add(new ExternalAccountType(mContext, packageNames.get(i),
+                        isExtension));
+                durations[i] = SystemClock.elapsedRealtime() - start;
+            }
+        } else {
+            final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+            try {
+                final List<Future<ExternalAccountType>> futures =
+                        Lists.newArrayListWithCapacity(count);
+                for (int i = 0; i < count; i++) {
+                    final String packageName = packageNames.get(i);
+                    final int index = i;
+                    futures.add(executor.submit(new Callable<ExternalAccountType>() {
+                        @Override
+                        public ExternalAccountType call() {
+                            final long start = SystemClock.elapsedRealtime();
+                            try {
+                                return new ExternalAccountType(mContext, packageName,
+                                        isExtension);
+                            } finally {
+                                durations[index] = SystemClock.elapsedRealtime() - start;
+                            }
+                        }
+                    }));
+                }
+                for (Future<ExternalAccountType> future : futures) {
+                    accountTypes.add(getUninterruptibly(future));
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            timings.addSplit("Inflated " + packageNames.get(i) + " in " + durations[i] + "ms");
+        }
+        return accountTypes;
+    }
+
+    private static <T> T getUninterruptibly(Future<T> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     // Bookkeeping method for tracking the known account types in the given maps.
     private void addAccountType(AccountType accountType,
             Map<AccountTypeWithDataSet, AccountType> accountTypesByTypeAndDataSet,
@@ -601,7 +857,7 @@ class AccountTypeManagerImpl extends AccountTypeManager
     @Override
     public List<AccountWithDataSet> getAccounts(boolean contactWritableOnly,
             int flag) {
-        ensureAccountsLoaded();
+        ensureAccountListsLoaded();
 
         switch (flag) {
             case FLAG_ALL_ACCOUNTS:
@@ -660,7 +916,7 @@ class AccountTypeManagerImpl extends AccountTypeManager
      * Return the list of all known, group writable {@link AccountWithDataSet}'s.
      */
     public List<AccountWithDataSet> getGroupWritableAccounts() {
-        ensureAccountsLoaded();
+        ensureAccountListsLoaded();
         return mGroupWritableAccounts;
     }
 
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.model;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.AuthenticatorDescription;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SyncAdapterType;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.provider.ContactsContract;
+import android.text.TextUtils;
+
+import com.android.contacts.common.model.account.AccountWithDataSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The account lists resolved by {@link AccountTypeManager}, persisted so that they can be
+ * served at process start before the account types are loaded.
+ *
+ * <p>A snapshot is only valid for the fingerprint it was saved with, which covers the contacts
+ * sync adapters, the versions of the packages providing account types, the accounts on the
+ * device and the locale.
+ */
+/* package */ final class AccountTypeSnapshot {
+    private static final String PREFERENCES_NAME = "account_type_snapshot";
+
+    /** Incremented whenever the format or what goes into the lists changes. */
+    private static final int VERSION = 1;
+
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_PACKAGES = "packages";
+    private static final String KEY_ACCOUNTS = "accounts";
+    private static final String KEY_CONTACT_WRITABLE_ACCOUNTS = "contactWritableAccounts";
+    private static final String KEY_GROUP_WRITABLE_ACCOUNTS = "groupWritableAccounts";
+
+    public final String fingerprint;
+    /** Packages providing the account types, including extension packages. */
+    public final Set<String> packages;
+    public final List<AccountWithDataSet> accounts;
+    public final List<AccountWithDataSet> contactWritableAccounts;
+    public final List<AccountWithDataSet> groupWritableAccounts;
+
+    public AccountTypeSnapshot(String fingerprint, Set<String> packages,
+            List<AccountWithDataSet> accounts, List<AccountWithDataSet> contactWritableAccounts,
+            List<AccountWithDataSet> groupWritableAccounts) {
+        this.fingerprint = fingerprint;
+        this.packages = packages;
+        this.accounts = accounts;
+        this.contactWritableAccounts = contactWritableAccounts;
+        this.groupWritableAccounts = groupWritableAccounts;
+    }
+
+    /**
+     * Returns the saved snapshot, or null if there is none or it has an older format.
+     */
+    public static AccountTypeSnapshot read(Context context) {
+        final SharedPreferences prefs =
+                context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        if (prefs.getInt(KEY_VERSION, 0) != VERSION) {
+            return null;
+        }
+        final String fingerprint = prefs.getString(KEY_FINGERPRINT, null);
+        if (fingerprint == null) {
+            return null;
+        }
+        try {
+            return new AccountTypeSnapshot(fingerprint,
+                    prefs.getStringSet(KEY_PACKAGES, Collections.<String>emptySet()),
+                    unstringify(prefs.getString(KEY_ACCOUNTS, null)),
+                    unstringify(prefs.getString(KEY_CONTACT_WRITABLE_ACCOUNTS, null)),
+                    unstringify(prefs.getString(KEY_GROUP_WRITABLE_ACCOUNTS, null)));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public void write(Context context) {
+        context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE).edit()
+                .putInt(KEY_VERSION, VERSION)
+                .putString(KEY_FINGERPRINT, fingerprint)
+                .putStringSet(KEY_PACKAGES, packages)
+                .putString(KEY_ACCOUNTS, AccountWithDataSet.stringifyList(accounts))
+                .putString(KEY_CONTACT_WRITABLE_ACCOUNTS,
+                        AccountWithDataSet.stringifyList(contactWritableAccounts))
+                .putString(KEY_GROUP_WRITABLE_ACCOUNTS,
+                        AccountWithDataSet.stringifyList(groupWritableAccounts))
+                .apply();
+    }
+
+    /**
+     * Computes the fingerprint of the current state of the device for account types provided
+     * by the given packages. This is much cheaper than loading the account types, as it does
+     * not parse any metadata.
+     */
+    public static String computeFingerprint(Context context, AccountManager accountManager,
+            Collection<String> packages) {
+        final Set<String> allPackages = Sets.newHashSet(packages);
+        final TreeSet<String> syncAdapters = new TreeSet<String>();
+        for (SyncAdapterType sync : ContentResolver.getSyncAdapterTypes()) {
+            if (ContactsContract.AUTHORITY.equals(sync.authority)) {
+                syncAdapters.add(sync.accountType);
+            }
+        }
+        final TreeSet<String> authenticators = new TreeSet<String>();
+        for (AuthenticatorDescription auth : accountManager.getAuthenticatorTypes()) {
+            if (syncAdapters.contains(auth.type)) {
+                authenticators.add(auth.type + ":" + auth.packageName);
+                allPackages.add(auth.packageName);
+            }
+        }
+        allPackages.add(context.getPackageName());
+
+        final PackageManager pm = context.getPackageManager();
+        final TreeSet<String> packageVersions = new TreeSet<String>();
+        for (String packageName : allPackages) {
+            try {
+                final PackageInfo info = pm.getPackageInfo(packageName, 0);
+                packageVersions.add(packageName + ":" + info.versionCode + ":"
+                        + info.lastUpdateTime);
+            } catch (NameNotFoundException e) {
+                packageVersions.add(packageName + ":-");
+            }
+        }
+
+        final TreeSet<String> accounts = new TreeSet<String>();
+        for (Account account : accountManager.getAccounts()) {
+            accounts.add(account.type + ":" + account.name);
+        }
+
+        return TextUtils.join(",", authenticators) + "|" + TextUtils.join(",", packageVersions)
+                + "|" + TextUtils.join(",", accounts) + "|" + Locale.getDefault();
+    }
+
+    private static List<AccountWithDataSet> unstringify(String s) {
+        if (s == null) {
+            return Lists.newArrayList();
+        }
+        return AccountWithDataSet.unstringifyList(s);
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.model;
+
+import android.content.ContentValues;
+import android.os.Parcel;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact encoding of the {@link ContentValues} of {@link ValuesDelta}s in a {@link Parcel},
+ * used instead of parceling each {@link ContentValues} as a whole.
+ *
+ * <p>Every column name is written once per parcel and referred to by its index after that.
+ * Values are written as a type tag followed by the primitive value. A value of the "after"
+ * state that is the same as in the "before" state is only a tag, and each distinct blob,
+ * such as a photo, is copied into the parcel once and referred to by its index after that.
+ *
+ * <p>A {@link Writer} and the {@link Reader} reading its output must see the same sequence of
+ * calls, so that they assign the same indexes.
+ */
+/* package */ final class CompactValuesParcel {
+    private static final int KEY_NULL = -1;
+    private static final int KEY_NEW = -2;
+
+    private static final int VALUES_NULL = -1;
+
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_STRING = 1;
+    private static final int TYPE_LONG = 2;
+    private static final int TYPE_INTEGER = 3;
+    private static final int TYPE_SHORT = 4;
+    private static final int TYPE_BYTE = 5;
+    private static final int TYPE_DOUBLE = 6;
+    private static final int TYPE_FLOAT = 7;
+    private static final int TYPE_BOOLEAN = 8;
+    private static final int TYPE_BLOB = 9;
+    private static final int TYPE_BLOB_REFERENCE = 10;
+    private static final int TYPE_SAME_AS_BEFORE = 11;
+
+    private CompactValuesParcel() {
+    }
+
+    /**
+     * Writes values to a parcel, remembering the column names and blobs already written.
+     */
+    public static final class Writer {
+        private final Parcel mParcel;
+        private final HashMap<String, Integer> mKeys = Maps.newHashMap();
+        private final HashMap<Blob, Integer> mBlobs = Maps.newHashMap();
+
+        public Writer(Parcel parcel) {
+            mParcel = parcel;
+        }
+
+        public Parcel getParcel() {
+            return mParcel;
+        }
+
+        /**
+         * Writes a string that is likely to repeat in the parcel, such as a column name.
+         */
+        public void writeKey(String key) {
+            if (key == null) {
+                mParcel.writeInt(KEY_NULL);
+                return;
+            }
+            final Integer index = mKeys.get(key);
+            if (index != null) {
+                mParcel.writeInt(index);
+                return;
+            }
+            mKeys.put(key, mKeys.size());
+            mParcel.writeInt(KEY_NEW);
+            mParcel.writeString(key);
+        }
+
+        public void writeValues(ContentValues values) {
+            writeValues(values, null);
+        }
+
+        /**
+         * Writes the given values, writing only a tag for those that are the same in
+         * {@code before}.
+         */
+        public void writeValues(ContentValues values, ContentValues before) {
+            if (values == null) {
+                mParcel.writeInt(VALUES_NULL);
+                return;
+            }
+            mParcel.writeInt(values.size());
+            for (Map.Entry<String, Object> entry : values.valueSet()) {
+                final String key = entry.getKey();
+                final Object value = entry.getValue();
+                writeKey(key);
+                if (before != null && before.containsKey(key)
+                        && isSameValue(value, before.get(key))) {
+                    mParcel.writeInt(TYPE_SAME_AS_BEFORE);
+                } else {
+                    writeValue(value);
+                }
+            }
+        }
+
+        private void writeValue(Object value) {
+            if (value == null) {
+                mParcel.writeInt(TYPE_NULL);
+            } else if (value instanceof String) {
+                mParcel.writeInt(TYPE_STRING);
+                mParcel.writeString((String) value);
+            } else if (value instanceof Long) {
+                mParcel.writeInt(TYPE_LONG);
+                mParcel.writeLong((Long) value);
+            } else if (value instanceof Integer) {
+                mParcel.writeInt(TYPE_INTEGER);
+                mParcel.writeInt((Integer) value);
+            } else if (value instanceof Short) {
+                mParcel.writeInt(TYPE_SHORT);
+                mParcel.writeInt((Short) value);
+            } else if (value instanceof Byte) {
+                mParcel.writeInt(TYPE_BYTE);
+                mParcel.writeInt((Byte) value);
+            } else if (value instanceof Double) {
+                mParcel.writeInt(TYPE_DOUBLE);
+                mParcel.writeDouble((Double) value);
+            } else if (value instanceof Float) {
+                mParcel.writeInt(TYPE_FLOAT);
+                mParcel.writeFloat((Float) value);
+            } else if (value instanceof Boolean) {
+                mParcel.writeInt(TYPE_BOOLEAN);
+                mParcel.writeInt((Boolean) value ? 1 : 0);
+            } else if (value instanceof byte[]) {
+                final Blob blob = new Blob((byte[]) value);
+                final Integer index = mBlobs.get(blob);
+                if (index != null) {
+                    mParcel.writeInt(TYPE_BLOB_REFERENCE);
+                    mParcel.writeInt(index);
+                } else {
+                    mBlobs.put(blob, mBlobs.size());
+                    mParcel.writeInt(TYPE_BLOB);
+                    mParcel.writeByteArray(blob.bytes);
+                }
+            } else {
+                throw new IllegalArgumentException("Unsupported value type "
+                        + value.getClass().getName());
+            }
+        }
+
+        private static boolean isSameValue(Object value, Object before) {
+            if (value instanceof byte[] && before instanceof byte[]) {
+                return Arrays.equals((byte[]) value, (byte[]) before);
+            }
+            return value == null ? before == null : value.equals(before);
+        }
+    }
+
+    /**
+     * Reads values written by a {@link Writer}.
+     */
+    public static final class Reader {
+        private final Parcel mParcel;
+        private final ArrayList<String> mKeys = Lists.newArrayList();
+        private final ArrayList<byte[]> mBlobs = Lists.newArrayList();
+
+        public Reader(Parcel parcel) {
+            mParcel = parcel;
+        }
+
+        public Parcel getParcel() {
+            return mParcel;
+        }
+
+        public String readKey() {
+            final int index = mParcel.readInt();
+            if (index == KEY_NULL) {
+                return null;
+            }
+            if (index != KEY_NEW) {
+                return mKeys.get(index);
+            }
+            final String key = mParcel.readString();
+            mKeys.add(key);
+            return key;
+        }
+
+        public ContentValues readValues() {
+            return readValues(null);
+        }
+
+        /**
+         * Reads values written with {@link Writer#writeValues(ContentValues, ContentValues)},
+         * taking those that were the same from {@code before}.
+         */
+        public ContentValues readValues(ContentValues before) {
+            final int size = mParcel.readInt();
+            if (size == VALUES_NULL) {
+                return null;
+            }
+            final ContentValues values = new ContentValues(size);
+            for (int i = 0; i < size; i++) {
+                final String key = readKey();
+                final int type = mParcel.readInt();
+                switch (type) {
+                    case TYPE_NULL:
+                        values.putNull(key);
+                        break;
+                    case TYPE_STRING:
+                        values.put(key, mParcel.readString());
+                        break;
+                    case TYPE_LONG:
+                        values.put(key, mParcel.readLong());
+                        break;
+                    case TYPE_INTEGER:
+                        values.put(key, mParcel.readInt());
+                        break;
+                    case TYPE_SHORT:
+                        values.put(key, (short) mParcel.readInt());
+                        break;
+                    case TYPE_BYTE:
+                        values.put(key, (byte) mParcel.readInt());
+                        break;
+                    case TYPE_DOUBLE:
+                        values.put(key, mParcel.readDouble());
+                        break;
+                    case TYPE_FLOAT:
+                        values.put(key, mParcel.readFloat());
+                        break;
+                    case TYPE_BOOLEAN:
+                        values.put(key, mParcel.readInt() != 0);
+                        break;
+                    case TYPE_BLOB: {
+                        final byte[] blob = mParcel.createByteArray();
+                        mBlobs.add(blob);
+                        values.put(key, blob);
+                        break;
+                    }
+                    case TYPE_BLOB_REFERENCE:
+                        values.put(key, mBlobs.get(mParcel.readInt()));
+                        break;
+                    case TYPE_SAME_AS_BEFORE:
+                        putValue(values, key, before.get(key));
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown value type " + type);
+                }
+            }
+            return values;
+        }
+
+        private static void putValue(ContentValues values, String key, Object value) {
+            if (value == null) {
+                values.putNull(key);
+            } else if (value instanceof String) {
+                values.put(key, (String) value);
+            } else if (value instanceof Long) {
+                values.put(key, (Long) value);
+            } else if (value instanceof Integer) {
+                values.put(key, (Integer) value);
+            } else if (value instanceof Short) {
+                values.put(key, (Short) value);
+            } else if (value instanceof Byte) {
+                values.put(key, (Byte) value);
+            } else if (value instanceof Double) {
+                values.put(key, (Double) value);
+            } else if (value instanceof Float) {
+                values.put(key, (Float) value);
+            } else if (value instanceof Boolean) {
+                values.put(key, (Boolean) value);
+            } else if (value instanceof byte[]) {
+                values.put(key, (byte[]) value);
+            } else {
+                throw new IllegalArgumentException("Unsupported value type "
+                        + value.getClass().getName());
+            }
+        }
+    }
+
+    /**
+     * A blob compared by its contents.
+     */
+    private static final class Blob {
+        final byte[] bytes;
+        private final int mHashCode;
+
+        Blob(byte[] bytes) {
+            this.bytes = bytes;
+            mHashCode = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            return object instanceof Blob && Arrays.equals(bytes, ((Blob) object).bytes);
+        }
+    }
+}
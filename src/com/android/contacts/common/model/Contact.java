@@ -90,6 +90,7 @@ public class Contact {
      * contact photo is not available yet, then this has the same value as mPhotoBinaryData.
      */
     private byte[] mThumbnailPhotoBinaryData;
+    private boolean mIsPartial;
     private final boolean mSendToVoicemail;
     private final String mCustomRingtone;
     private final boolean mIsUserProfile;
@@ -202,6 +203,8 @@ public class Contact {
         mGroups = from.mGroups;
 
         mPhotoBinaryData = from.mPhotoBinaryData;
+        mThumbnailPhotoBinaryData = from.mThumbnailPhotoBinaryData;
+        // Not copied: whether a copy is an early stage is up to whoever delivers it.
         mSendToVoicemail = from.mSendToVoicemail;
         mCustomRingtone = from.mCustomRingtone;
         mIsUserProfile = from.mIsUserProfile;
@@ -478,6 +481,18 @@ public class Contact {
                 ",uri=" + mUri + ",status=" + mStatus + "}";
     }
 
+    /**
+     * Returns true if this contact is an early stage of a load that delivers its results in
+     * stages. Data that is not loaded yet is empty or null; the complete contact follows.
+     */
+    public boolean isPartial() {
+        return mIsPartial;
+    }
+
+    /* package */ void setPartial(boolean partial) {
+        mIsPartial = partial;
+    }
+
     /* package */ void setRawContacts(ImmutableList<RawContact> rawContacts) {
         mRawContacts = rawContacts;
     }
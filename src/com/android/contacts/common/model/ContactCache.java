@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.contacts.common.model;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Directory;
+import android.util.LruCache;
+
+import com.android.contacts.common.util.Constants;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.List;
+
+/**
+ * Process-wide cache of fully loaded {@link Contact}s, keyed by lookup key, so that opening a
+ * recently viewed contact again does not have to query the provider.  Only contacts of the
+ * local directory are cached: those are the ones whose changes we are notified of.
+ *
+ * <p>Every entry keeps the {@link Contacts#CONTACT_LAST_UPDATED_TIMESTAMP} of its contact as
+ * read before the contact was loaded, and is only returned while the contact still has that
+ * timestamp, so that changes to contacts which are not on screen are noticed without dropping
+ * the whole cache on every change in the provider.  A contact that changed while it was being
+ * loaded is cached with its older timestamp and so is not returned.  A loader observing a
+ * contact also drops its entry through {@link #invalidate} before reloading it.
+ */
+final class ContactCache {
+    /** Share of the heap the cache may use. */
+    private static final int HEAP_FRACTION = 32;
+
+    /** Upper bound for the cache size, in bytes, on devices with a large heap. */
+    private static final int MAX_SIZE_BYTES = 4 * 1024 * 1024;
+
+    /** Rough memory cost of a {@link Contact} and its fields, not counting raw contacts. */
+    private static final int CONTACT_OVERHEAD_BYTES = 2048;
+
+    /** Rough memory cost of a {@link RawContact}, not counting its data items. */
+    private static final int RAW_CONTACT_OVERHEAD_BYTES = 512;
+
+    /** Rough memory cost of a single data item and its {@link android.content.ContentValues}. */
+    private static final int DATA_ITEM_OVERHEAD_BYTES = 384;
+
+    /** Returned by {@link #queryLastUpdated} when the timestamp is not known. */
+    public static final long UNKNOWN_TIMESTAMP = -1;
+
+    private static final String[] LAST_UPDATED_PROJECTION = new String[] {
+            Contacts.CONTACT_LAST_UPDATED_TIMESTAMP
+    };
+
+    private static ContactCache sInstance;
+
+    private final LruCache<String, Entry> mCache;
+    private final Object mLock = new Object();
+    private int mInvalidationCount;
+
+    public static synchronized ContactCache getInstance() {
+        if (sInstance == null) {
+            final long budget = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+            sInstance = new ContactCache((int) Math.min(budget, MAX_SIZE_BYTES));
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    ContactCache(int maxSizeBytes) {
+        mCache = new LruCache<String, Entry>(maxSizeBytes) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                return estimateSize(entry.contact);
+            }
+        };
+    }
+
+    /**
+     * Returns the lookup key in the given Uri if it is a lookup Uri of the local directory,
+     * or null if contacts loaded from it are not cached.
+     */
+    public static String getLookupKey(Uri lookupUri) {
+        if (lookupUri == null || !ContactsContract.AUTHORITY.equals(lookupUri.getAuthority())) {
+            return null;
+        }
+        final String directory =
+                lookupUri.getQueryParameter(ContactsContract.DIRECTORY_PARAM_KEY);
+        if (directory != null && !String.valueOf(Directory.DEFAULT).equals(directory)) {
+            return null;
+        }
+        final List<String> segments = lookupUri.getPathSegments();
+        if (segments.size() < 3
+                || !Contacts.CONTENT_LOOKUP_URI.getPathSegments().equals(segments.subList(0, 2))) {
+            return null;
+        }
+        final String lookupKey = segments.get(2);
+        return Constants.LOOKUP_URI_ENCODED.equals(lookupKey) ? null : lookupKey;
+    }
+
+    /**
+     * Returns the last updated timestamp of the contact with the given lookup Uri, or
+     * {@link #UNKNOWN_TIMESTAMP} if there is no such contact.  Read before loading a contact
+     * and passed to {@link #get} and {@link #put}.
+     */
+    public static long queryLastUpdated(ContentResolver resolver, Uri lookupUri) {
+        final Cursor cursor = resolver.query(lookupUri, LAST_UPDATED_PROJECTION, null, null,
+                null);
+        if (cursor == null) {
+            return UNKNOWN_TIMESTAMP;
+        }
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0)
+                    ? cursor.getLong(0) : UNKNOWN_TIMESTAMP;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the cached contact with the given lookup key, unless the contact was updated
+     * since it was cached.
+     */
+    public Contact get(String lookupKey, long lastUpdated) {
+        if (lookupKey == null || lastUpdated == UNKNOWN_TIMESTAMP) {
+            return null;
+        }
+        final Entry entry = mCache.get(lookupKey);
+        return entry != null && entry.lastUpdated == lastUpdated ? entry.contact : null;
+    }
+
+    /**
+     * Caches a contact that was loaded after its last updated timestamp was read.
+     */
+    public void put(Contact contact, long lastUpdated) {
+        if (!isCacheable(contact) || lastUpdated == UNKNOWN_TIMESTAMP) {
+            return;
+        }
+        mCache.put(contact.getLookupKey(), new Entry(contact, lastUpdated));
+    }
+
+    public void invalidate(String lookupKey) {
+        synchronized (mLock) {
+            mInvalidationCount++;
+            if (lookupKey != null) {
+                mCache.remove(lookupKey);
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (mLock) {
+            mInvalidationCount++;
+            mCache.evictAll();
+        }
+    }
+
+    public static boolean isCacheable(Contact contact) {
+        return contact != null && contact.isLoaded() && !contact.isPartial()
+                && !contact.isDirectoryEntry() && contact.getLookupKey() != null;
+    }
+
+    /**
+     * Returns hit, miss and eviction counts for logging.
+     */
+    public String getStats() {
+        synchronized (mLock) {
+            return mCache.toString() + " size=" + mCache.size() + " evictions="
+                    + mCache.evictionCount() + " invalidations=" + mInvalidationCount;
+        }
+    }
+
+    @VisibleForTesting
+    static int estimateSize(Contact contact) {
+        int size = CONTACT_OVERHEAD_BYTES;
+        final byte[] photo = contact.getPhotoBinaryData();
+        if (photo != null) {
+            size += photo.length;
+        }
+        final byte[] thumbnail = contact.getThumbnailPhotoBinaryData();
+        if (thumbnail != null && thumbnail != photo) {
+            size += thumbnail.length;
+        }
+        final List<RawContact> rawContacts = contact.getRawContacts();
+        if (rawContacts != null) {
+            for (RawContact rawContact : rawContacts) {
+                size += RAW_CONTACT_OVERHEAD_BYTES
+                        + rawContact.getDataItems().size() * DATA_ITEM_OVERHEAD_BYTES;
+            }
+        }
+        return size;
+    }
+
+    private static final class Entry {
+        final Contact contact;
+        final long lastUpdated;
+
+        Entry(Contact contact, long lastUpdated) {
+            this.contact = contact;
+            this.lastUpdated = lastUpdated;
+        }
+    }
+}
@@ -28,6 +28,8 @@ import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
 import android.provider.ContactsContract.Contacts;
@@ -71,6 +73,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Loads a single Contact and all it constituent RawContacts.
@@ -81,7 +84,10 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
 
     private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
 
-    /** A short-lived cache that can be set by {@link #cacheResult()} */
+    /**
+     * A short-lived cache that can be set by {@link #cacheResult()}. Contacts of the local
+     * directory are kept longer by {@link ContactCache}.
+     */
     private static Contact sCachedResult = null;
 
     private final Uri mRequestedUri;
@@ -93,6 +99,9 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
     private Contact mContact;
     private ForceLoadContentObserver mObserver;
     private final Set<Long> mNotifiedRawContactIds = Sets.newHashSet();
+    private boolean mDeliverInStages;
+    private final AtomicInteger mLoadSequence = new AtomicInteger();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
     public ContactLoader(Context context, Uri lookupUri, boolean postViewNotification) {
         this(context, lookupUri, false, false, postViewNotification, false);
@@ -271,6 +280,44 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
         public static final int CARRIER_PRESENCE = 64;
     }
 
+    /**
+     * Projection used for the query that loads the header of a contact, which is delivered
+     * first when loading in stages.
+     */
+    private static class HeaderQuery {
+        static final String[] COLUMNS = new String[] {
+                Contacts._ID,
+                Contacts.LOOKUP_KEY,
+                Contacts.NAME_RAW_CONTACT_ID,
+                Contacts.DISPLAY_NAME_SOURCE,
+                Contacts.DISPLAY_NAME,
+                Contacts.DISPLAY_NAME_ALTERNATIVE,
+                Contacts.PHONETIC_NAME,
+                Contacts.PHOTO_ID,
+                Contacts.PHOTO_URI,
+                Contacts.STARRED,
+                Contacts.CONTACT_PRESENCE,
+                Contacts.SEND_TO_VOICEMAIL,
+                Contacts.CUSTOM_RINGTONE,
+                Contacts.IS_USER_PROFILE,
+        };
+
+        public static final int CONTACT_ID = 0;
+        public static final int LOOKUP_KEY = 1;
+        public static final int NAME_RAW_CONTACT_ID = 2;
+        public static final int DISPLAY_NAME_SOURCE = 3;
+        public static final int DISPLAY_NAME = 4;
+        public static final int ALT_DISPLAY_NAME = 5;
+        public static final int PHONETIC_NAME = 6;
+        public static final int PHOTO_ID = 7;
+        public static final int PHOTO_URI = 8;
+        public static final int STARRED = 9;
+        public static final int CONTACT_PRESENCE = 10;
+        public static final int SEND_TO_VOICEMAIL = 11;
+        public static final int CUSTOM_RINGTONE = 12;
+        public static final int IS_USER_PROFILE = 13;
+    }
+
     /**
      * Projection used for the query that loads all data for the entire contact.
      */
@@ -316,29 +363,77 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
         mLookupUri = lookupUri;
     }
 
+    /**
+     * Sets whether a contact that is not cached is delivered in stages: first its header from
+     * a slim query, then with its raw contacts and data items, and last with group metadata,
+     * formatted phone numbers, invitable account types and the full size photo. Early stages
+     * are marked by {@link Contact#isPartial()}. Only contacts of the local directory are
+     * loaded in stages.
+     */
+    public void setDeliverInStages(boolean deliverInStages) {
+        mDeliverInStages = deliverInStages;
+    }
+
     @Override
     public Contact loadInBackground() {
         Log.e(TAG, "loadInBackground=" + mLookupUri);
+        final int loadSequence = mLoadSequence.incrementAndGet();
         try {
             final ContentResolver resolver = getContext().getContentResolver();
-            final Uri uriCurrentFormat = ContactLoaderUtils.ensureIsContactUri(
-                    resolver, mLookupUri);
-            final Contact cachedResult = sCachedResult;
+            final ContactCache contactCache = ContactCache.getInstance();
+            final String cacheKey = ContactCache.getLookupKey(mLookupUri);
+            final long lastUpdated = cacheKey == null ? ContactCache.UNKNOWN_TIMESTAMP
+                    : ContactCache.queryLastUpdated(resolver, mLookupUri);
+            Contact cachedResult = sCachedResult;
             sCachedResult = null;
+            if (cachedResult == null ||
+                    !UriUtils.areEqual(cachedResult.getLookupUri(), mLookupUri)) {
+                cachedResult = contactCache.get(cacheKey, lastUpdated);
+            }
+            if (cachedResult != null && cachedResult.isPartial()) {
+                // An early stage lacks the data, so it cannot stand in for the contact.
+                cachedResult = null;
+            }
+            if (DEBUG) {
+                Log.d(TAG, "Contact cache: " + contactCache.getStats());
+            }
             // Is this the same Uri as what we had before already? In that case, reuse that result
             final Contact result;
             final boolean resultIsCached;
-            if (cachedResult != null &&
-                    UriUtils.areEqual(cachedResult.getLookupUri(), mLookupUri)) {
+            // Whether the phone numbers were formatted for a stage that was already delivered.
+            // That stage shares the data items with the result, so they are not changed again.
+            boolean phoneNumbersFormatted = false;
+            if (cachedResult != null) {
                 // We are using a cached result from earlier. Below, we should make sure
                 // we are not doing any more network or disc accesses
                 result = new Contact(mRequestedUri, cachedResult);
                 resultIsCached = true;
             } else {
+                final Uri uriCurrentFormat = ContactLoaderUtils.ensureIsContactUri(
+                        resolver, mLookupUri);
                 if (uriCurrentFormat.getLastPathSegment().equals(Constants.LOOKUP_URI_ENCODED)) {
                     result = loadEncodedContactEntity(uriCurrentFormat, mLookupUri);
                 } else {
+                    final boolean staged = mDeliverInStages && uriCurrentFormat
+                            .getQueryParameter(ContactsContract.DIRECTORY_PARAM_KEY) == null;
+                    if (staged) {
+                        final Contact header = loadContactHeader(resolver, uriCurrentFormat);
+                        if (header != null) {
+                            if (!header.isLoaded()) {
+                                return header;
+                            }
+                            deliverStage(header, loadSequence);
+                        }
+                    }
                     result = loadContactEntity(resolver, uriCurrentFormat);
+                    if (staged && result.isLoaded()) {
+                        loadThumbnailBinaryData(result);
+                        if (mComputeFormattedPhoneNumber) {
+                            computeFormattedPhoneNumbers(result);
+                            phoneNumbersFormatted = true;
+                        }
+                        deliverStage(new Contact(mRequestedUri, result), loadSequence);
+                    }
                 }
                 resultIsCached = false;
             }
@@ -352,7 +447,7 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
                         loadGroupMetaData(result);
                     }
                 }
-                if (mComputeFormattedPhoneNumber) {
+                if (mComputeFormattedPhoneNumber && !phoneNumbersFormatted) {
                     computeFormattedPhoneNumbers(result);
                 }
                 if (!resultIsCached) loadPhotoBinaryData(result);
@@ -361,6 +456,7 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
                 if (mLoadInvitableAccountTypes && result.getInvitableAccountTypes() == null) {
                     loadInvitableAccountTypes(result);
                 }
+                contactCache.put(result, lastUpdated);
             }
             return result;
         } catch (Exception e) {
@@ -477,6 +573,63 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
         rawContact.addDataItemValues(itemValues);
     }
 
+    /**
+     * Loads the contact level columns of a contact of the local directory, without any raw
+     * contacts or data. Returns null if the header could not be queried.
+     */
+    private Contact loadContactHeader(ContentResolver resolver, Uri contactUri) {
+        final Cursor cursor = resolver.query(contactUri, HeaderQuery.COLUMNS, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return Contact.forNotFound(mRequestedUri);
+            }
+            final long contactId = cursor.getLong(HeaderQuery.CONTACT_ID);
+            final String lookupKey = cursor.getString(HeaderQuery.LOOKUP_KEY);
+            final Uri lookupUri = ContentUris.withAppendedId(
+                    Uri.withAppendedPath(Contacts.CONTENT_LOOKUP_URI, lookupKey), contactId);
+            final Contact contact = new Contact(mRequestedUri, contactUri, lookupUri,
+                    Directory.DEFAULT, lookupKey, contactId,
+                    cursor.getLong(HeaderQuery.NAME_RAW_CONTACT_ID),
+                    cursor.getInt(HeaderQuery.DISPLAY_NAME_SOURCE),
+                    cursor.getLong(HeaderQuery.PHOTO_ID),
+                    cursor.getString(HeaderQuery.PHOTO_URI),
+                    cursor.getString(HeaderQuery.DISPLAY_NAME),
+                    cursor.getString(HeaderQuery.ALT_DISPLAY_NAME),
+                    cursor.getString(HeaderQuery.PHONETIC_NAME),
+                    cursor.getInt(HeaderQuery.STARRED) != 0,
+                    cursor.isNull(HeaderQuery.CONTACT_PRESENCE)
+                            ? null : cursor.getInt(HeaderQuery.CONTACT_PRESENCE),
+                    cursor.getInt(HeaderQuery.SEND_TO_VOICEMAIL) == 1,
+                    cursor.getString(HeaderQuery.CUSTOM_RINGTONE),
+                    cursor.getInt(HeaderQuery.IS_USER_PROFILE) == 1);
+            contact.setRawContacts(ImmutableList.<RawContact>of());
+            contact.setStatuses(ImmutableMap.<Long, DataStatus>of());
+            return contact;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Hands an early stage of the load that is running to the main thread, where it is
+     * delivered unless the load was superseded or a complete contact is shown already.
+     */
+    private void deliverStage(final Contact partial, final int loadSequence) {
+        partial.setPartial(true);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isStarted() && loadSequence == mLoadSequence.get()
+                        && (mContact == null || mContact.isPartial())) {
+                    deliverResult(partial);
+                }
+            }
+        });
+    }
+
     private Contact loadContactEntity(ContentResolver resolver, Uri contactUri) {
         Uri entityUri = Uri.withAppendedPath(contactUri, Contacts.Entity.CONTENT_DIRECTORY);
         Cursor cursor = resolver.query(entityUri, ContactQuery.COLUMNS, null, null,
@@ -539,7 +692,10 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
      * photo will also be stored if available.
      */
     private void loadPhotoBinaryData(Contact contactData) {
-        loadThumbnailBinaryData(contactData);
+        // Already loaded for a staged delivery.
+        if (contactData.getThumbnailPhotoBinaryData() == null) {
+            loadThumbnailBinaryData(contactData);
+        }
 
         // Try to load the large photo from a file using the photo URI.
         String photoUri = contactData.getPhotoUri();
@@ -934,7 +1090,7 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
                         mLookupUri, true, mObserver);
             }
 
-            if (mPostViewNotification) {
+            if (mPostViewNotification && !result.isPartial()) {
                 // inform the source of the data that this contact is being looked at
                 postViewNotificationToSyncAdapter();
             }
@@ -998,8 +1154,18 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
         cacheResult();
 
         // Our load parameters have changed, so let's pretend the data has changed. Its the same
-        // thing, essentially.
-        onContentChanged();
+        // thing, essentially. The contact itself did not change, so keep it cached.
+        super.onContentChanged();
+    }
+
+    /**
+     * Called by the content observer when the contact changed. Drops the cached copy of the
+     * contact before it is reloaded.
+     */
+    @Override
+    public void onContentChanged() {
+        ContactCache.getInstance().invalidate(ContactCache.getLookupKey(mLookupUri));
+        super.onContentChanged();
     }
 
     public Uri getLookupUri() {
@@ -1032,10 +1198,11 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
 
     /**
      * Caches the result, which is useful when we switch from activity to activity, using the same
-     * contact. If the next load is for a different contact, the cached result will be dropped
+     * contact. If the next load is for a different contact, the cached result will be dropped.
+     * An early stage of a staged load is not cached.
      */
     public void cacheResult() {
-        if (mContact == null || !mContact.isLoaded()) {
+        if (mContact == null || !mContact.isLoaded() || mContact.isPartial()) {
             sCachedResult = null;
         } else {
             sCachedResult = mContact;
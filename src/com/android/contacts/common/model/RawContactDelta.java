@@ -32,6 +32,7 @@ import android.provider.ContactsContract.Profile;
 import android.provider.ContactsContract.RawContacts;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LongSparseArray;
 
 import com.android.contacts.common.compat.CompatUtils;
 import com.android.contacts.common.model.AccountTypeManager;
@@ -83,6 +84,13 @@ public class RawContactDelta implements Parcelable {
      */
     private final HashMap<String, ArrayList<ValuesDelta>> mEntries = Maps.newHashMap();
 
+    /**
+     * Children by their {@link BaseColumns#_ID} when they were added, built on the first
+     * lookup and kept up to date by {@link #addEntry(ValuesDelta)}. An id given to a child
+     * after it was indexed is found by a full scan, which rebuilds the index.
+     */
+    private LongSparseArray<ValuesDelta> mEntryIndex;
+
     public RawContactDelta() {
     }
 
@@ -284,6 +292,9 @@ public class RawContactDelta implements Parcelable {
     public ValuesDelta addEntry(ValuesDelta entry) {
         final String mimeType = entry.getMimetype();
         getMimeEntries(mimeType, true).add(entry);
+        if (mEntryIndex != null) {
+            indexEntry(entry);
+        }
         return entry;
     }
 
@@ -308,17 +319,41 @@ public class RawContactDelta implements Parcelable {
             return null;
         }
 
-        // Search all children for requested entry
+        if (mEntryIndex == null) {
+            buildEntryIndex();
+        }
+        final ValuesDelta entry = mEntryIndex.get(childId);
+        if (entry != null && childId.equals(entry.getId())) {
+            return entry;
+        }
+        // The id of an entry changed since it was indexed
         for (ArrayList<ValuesDelta> mimeEntries : mEntries.values()) {
-            for (ValuesDelta entry : mimeEntries) {
-                if (childId.equals(entry.getId())) {
-                    return entry;
+            for (ValuesDelta child : mimeEntries) {
+                if (childId.equals(child.getId())) {
+                    buildEntryIndex();
+                    return child;
                 }
             }
         }
         return null;
     }
 
+    private void buildEntryIndex() {
+        mEntryIndex = new LongSparseArray<ValuesDelta>();
+        for (ArrayList<ValuesDelta> mimeEntries : mEntries.values()) {
+            for (ValuesDelta entry : mimeEntries) {
+                indexEntry(entry);
+            }
+        }
+    }
+
+    private void indexEntry(ValuesDelta entry) {
+        final Long id = entry.getId();
+        if (id != null && mEntryIndex.indexOfKey(id) < 0) {
+            mEntryIndex.put(id, entry);
+        }
+    }
+
     /**
      * Return the total number of {@link ValuesDelta} contained.
      */
@@ -753,24 +788,47 @@ public class RawContactDelta implements Parcelable {
 
     /** {@inheritDoc} */
     public void writeToParcel(Parcel dest, int flags) {
+        writeTo(new CompactValuesParcel.Writer(dest));
+    }
+
+    /**
+     * Writes this delta with the given writer, sharing its column names and blobs with the
+     * other deltas written with it.
+     */
+    /* package */ void writeTo(CompactValuesParcel.Writer writer) {
+        final Parcel dest = writer.getParcel();
         final int size = this.getEntryCount(false);
         dest.writeInt(size);
-        dest.writeParcelable(mValues, flags);
-        dest.writeParcelable(mContactsQueryUri, flags);
+        dest.writeInt(mValues != null ? 1 : 0);
+        if (mValues != null) {
+            mValues.writeTo(writer);
+        }
+        writer.writeKey(mContactsQueryUri != null ? mContactsQueryUri.toString() : null);
         for (ArrayList<ValuesDelta> mimeEntries : mEntries.values()) {
             for (ValuesDelta child : mimeEntries) {
-                dest.writeParcelable(child, flags);
+                child.writeTo(writer);
             }
         }
     }
 
     public void readFromParcel(Parcel source) {
-        final ClassLoader loader = getClass().getClassLoader();
+        readFrom(new CompactValuesParcel.Reader(source));
+    }
+
+    /* package */ void readFrom(CompactValuesParcel.Reader reader) {
+        final Parcel source = reader.getParcel();
         final int size = source.readInt();
-        mValues = source.<ValuesDelta> readParcelable(loader);
-        mContactsQueryUri = source.<Uri> readParcelable(loader);
+        if (source.readInt() != 0) {
+            mValues = new ValuesDelta();
+            mValues.readFrom(reader);
+        } else {
+            mValues = null;
+        }
+        final String queryUri = reader.readKey();
+        mContactsQueryUri = queryUri != null ? Uri.parse(queryUri) : null;
         for (int i = 0; i < size; i++) {
-            final ValuesDelta child = source.<ValuesDelta> readParcelable(loader);
+            final ValuesDelta child = new ValuesDelta();
+            child.readFrom(reader);
             this.addEntry(child);
         }
     }
@@ -29,6 +29,7 @@ import android.provider.ContactsContract.AggregationExceptions;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.RawContacts;
 import android.util.Log;
+import android.util.LongSparseArray;
 
 import com.android.contacts.common.compat.CompatUtils;
 import com.android.contacts.common.model.CPOWrapper;
@@ -52,6 +53,16 @@ public class RawContactDeltaList extends ArrayList<RawContactDelta> implements P
     private boolean mSplitRawContacts;
     private long[] mJoinWithRawContactIds;
 
+    /**
+     * Visible raw contacts by their {@link RawContacts#_ID}, with their positions in
+     * {@link #mIndexPositions} at the same index. Rebuilt on the first lookup after the list
+     * is modified. An id given to a raw contact after it was indexed is found by a full scan,
+     * which rebuilds the index.
+     */
+    private LongSparseArray<RawContactDelta> mIndex;
+    private int[] mIndexPositions;
+    private int mIndexModCount;
+
     public RawContactDeltaList() {
     }
 
@@ -104,17 +115,34 @@ public class RawContactDeltaList extends ArrayList<RawContactDelta> implements P
             RawContactDeltaList remote) {
         if (local == null) local = new RawContactDeltaList();
 
+        // Index the local set once, and the entities added to it as they are added
+        final LongSparseArray<RawContactDelta> localById = new LongSparseArray<>(
+                local.size() + remote.size());
+        final int localSize = local.size();
+        for (int i = 0; i < localSize; i++) {
+            final Long rawContactId = local.getRawContactId(i);
+            if (rawContactId != null && localById.indexOfKey(rawContactId) < 0) {
+                localById.put(rawContactId, local.get(i));
+            }
+        }
+
         // For each entity in the remote set, try matching over existing
         for (RawContactDelta remoteEntity : remote) {
             final Long rawContactId = remoteEntity.getValues().getId();
 
             // Find or create local match and merge
-            final RawContactDelta localEntity = local.getByRawContactId(rawContactId);
+            final RawContactDelta localEntity =
+                    rawContactId == null ? null : localById.get(rawContactId);
             final RawContactDelta merged = RawContactDelta.mergeAfter(localEntity, remoteEntity);
 
             if (localEntity == null && merged != null) {
                 // No local entry before, so insert
                 local.add(merged);
+                final Long mergedId = merged.getValues().isVisible()
+                        ? merged.getValues().getAsLong(RawContacts._ID) : null;
+                if (mergedId != null && localById.indexOfKey(mergedId) < 0) {
+                    localById.put(mergedId, merged);
+                }
             }
         }
 
@@ -440,16 +468,63 @@ public class RawContactDeltaList extends ArrayList<RawContactDelta> implements P
      */
     public int indexOfRawContactId(Long rawContactId) {
         if (rawContactId == null) return -1;
-        final int size = this.size();
+        if (mIndex == null || mIndexModCount != modCount) {
+            buildIndex();
+        }
+        final int slot = mIndex.indexOfKey(rawContactId);
+        if (slot >= 0 && isIndexed(slot, rawContactId)) {
+            return mIndexPositions[slot];
+        }
+        // A raw contact was replaced or deleted, or its id changed since the list was indexed
+        final int size = size();
         for (int i = 0; i < size; i++) {
-            final Long currentId = getRawContactId(i);
-            if (rawContactId.equals(currentId)) {
+            if (rawContactId.equals(getRawContactId(i))) {
+                buildIndex();
                 return i;
             }
         }
         return -1;
     }
 
+    @Override
+    public RawContactDelta set(int index, RawContactDelta delta) {
+        // Not a structural modification, so modCount does not tell the index about it
+        mIndex = null;
+        return super.set(index, delta);
+    }
+
+    private boolean isIndexed(int slot, Long rawContactId) {
+        final int position = mIndexPositions[slot];
+        return position < size() && get(position) == mIndex.valueAt(slot)
+                && rawContactId.equals(getRawContactId(position));
+    }
+
+    private void buildIndex() {
+        final int size = size();
+        final LongSparseArray<RawContactDelta> index = new LongSparseArray<>(size);
+        for (int i = 0; i < size; i++) {
+            final Long rawContactId = getRawContactId(i);
+            if (rawContactId != null && index.indexOfKey(rawContactId) < 0) {
+                index.put(rawContactId, get(i));
+            }
+        }
+        // The slots are sorted by id once all raw contacts are added, so find them again
+        final int[] positions = new int[index.size()];
+        Arrays.fill(positions, -1);
+        for (int i = 0; i < size; i++) {
+            final Long rawContactId = getRawContactId(i);
+            if (rawContactId != null) {
+                final int slot = index.indexOfKey(rawContactId);
+                if (positions[slot] < 0 && index.valueAt(slot) == get(i)) {
+                    positions[slot] = i;
+                }
+            }
+        }
+        mIndex = index;
+        mIndexPositions = positions;
+        mIndexModCount = modCount;
+    }
+
     /**
      * Return the index of the first RawContactDelta corresponding to a writable raw-contact, or -1.
      * */
@@ -522,10 +597,15 @@ public class RawContactDeltaList extends ArrayList<RawContactDelta> implements P
     /** {@inheritDoc} */
     @Override
     public void writeToParcel(Parcel dest, int flags) {
+        // One writer for all deltas, so that column names and blobs are written once.
+        final CompactValuesParcel.Writer writer = new CompactValuesParcel.Writer(dest);
         final int size = this.size();
         dest.writeInt(size);
         for (RawContactDelta delta : this) {
-            dest.writeParcelable(delta, flags);
+            dest.writeInt(delta != null ? 1 : 0);
+            if (delta != null) {
+                delta.writeTo(writer);
+            }
         }
         dest.writeLongArray(mJoinWithRawContactIds);
         dest.writeInt(mSplitRawContacts ? 1 : 0);
@@ -533,10 +613,15 @@ public class RawContactDeltaList extends ArrayList<RawContactDelta> implements P
 
     @SuppressWarnings("unchecked")
     public void readFromParcel(Parcel source) {
-        final ClassLoader loader = getClass().getClassLoader();
+        final CompactValuesParcel.Reader reader = new CompactValuesParcel.Reader(source);
         final int size = source.readInt();
         for (int i = 0; i < size; i++) {
-            this.add(source.<RawContactDelta> readParcelable(loader));
+            RawContactDelta delta = null;
+            if (source.readInt() != 0) {
+                delta = new RawContactDelta();
+                delta.readFrom(reader);
+            }
+            this.add(delta);
         }
         mJoinWithRawContactIds = source.createLongArray();
         mSplitRawContacts = source.readInt() != 0;
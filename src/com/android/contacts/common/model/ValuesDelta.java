@@ -479,16 +479,28 @@ public class ValuesDelta implements Parcelable {
 
     /** {@inheritDoc} */
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeParcelable(mBefore, flags);
-        dest.writeParcelable(mAfter, flags);
-        dest.writeString(mIdColumn);
+        writeTo(new CompactValuesParcel.Writer(dest));
+    }
+
+    /**
+     * Writes this delta with the given writer, sharing its column names and blobs with the
+     * other deltas written with it. Only the values of {@link #mAfter} that differ from
+     * {@link #mBefore} are written in full.
+     */
+    /* package */ void writeTo(CompactValuesParcel.Writer writer) {
+        writer.writeValues(mBefore);
+        writer.writeValues(mAfter, mBefore);
+        writer.writeKey(mIdColumn);
     }
 
     public void readFromParcel(Parcel source) {
-        final ClassLoader loader = getClass().getClassLoader();
-        mBefore = source.<ContentValues> readParcelable(loader);
-        mAfter = source.<ContentValues> readParcelable(loader);
-        mIdColumn = source.readString();
+        readFrom(new CompactValuesParcel.Reader(source));
+    }
+
+    /* package */ void readFrom(CompactValuesParcel.Reader reader) {
+        mBefore = reader.readValues();
+        mAfter = reader.readValues(mBefore);
+        mIdColumn = reader.readKey();
     }
 
     public static final Creator<ValuesDelta> CREATOR = new Creator<ValuesDelta>() {
@@ -43,7 +43,7 @@ import com.android.contacts.common.model.RawContactModifier;
 /**
  * This is the base class for data items, which represents a row from the Data table.
  */
-public class DataItem implements Collapser.Collapsible<DataItem> {
+public class DataItem implements Collapser.KeyedCollapsible<DataItem> {
 
     private final ContentValues mContentValues;
     protected DataKind mKind;
@@ -249,4 +249,13 @@ public class DataItem implements Collapser.Collapsible<DataItem> {
         return MoreContactUtils.shouldCollapse(getMimeType(), buildDataString(context, mKind),
                 t.getMimeType(), t.buildDataString(context, t.getDataKind()));
     }
+
+    /**
+     * Returns null, data items are only compared pairwise unless a subclass knows how to
+     * normalize its data.
+     */
+    @Override
+    public String getCollapseKey(Context context) {
+        return null;
+    }
 }
@@ -17,8 +17,12 @@
 package com.android.contacts.common.model.dataitem;
 
 import android.content.ContentValues;
+import android.content.Context;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.text.TextUtils;
+
+import java.util.Locale;
 
 /**
  * Represents an email data item, wrapping the columns in
@@ -45,4 +49,16 @@ public class EmailDataItem extends DataItem {
     public String getLabel() {
         return getContentValues().getAsString(Email.LABEL);
     }
+
+    /**
+     * Returns the address in lower case, or null if there is none.
+     */
+    @Override
+    public String getCollapseKey(Context context) {
+        final String address = getAddress();
+        if (getDataKind() == null || TextUtils.isEmpty(address)) {
+            return null;
+        }
+        return Email.CONTENT_ITEM_TYPE + ":" + address.trim().toLowerCase(Locale.ROOT);
+    }
 }
@@ -20,6 +20,8 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
 
 import com.android.contacts.common.compat.PhoneNumberUtilsCompat;
 import com.android.contacts.common.model.dataitem.DataKind;
@@ -77,4 +79,35 @@ public class PhoneDataItem extends DataItem {
             return getNumber();
         }
     }
+
+    /**
+     * Returns the digits of the normalized number, or null if there is none or the number
+     * has characters that the normalized number drops, such as pauses, '#', an extension or
+     * keypad letters.
+     */
+    @Override
+    public String getCollapseKey(Context context) {
+        final String normalizedNumber = getNormalizedNumber();
+        final String number = getNumber();
+        if (getDataKind() == null || TextUtils.isEmpty(normalizedNumber) || number == null) {
+            return null;
+        }
+        for (int i = 0; i < number.length(); i++) {
+            final char c = number.charAt(i);
+            if (c == '#' || c == '*' || c == PhoneNumberUtils.PAUSE
+                    || c == PhoneNumberUtils.WAIT || Character.isLetter(c)) {
+                return null;
+            }
+        }
+        final StringBuilder key = new StringBuilder(Phone.CONTENT_ITEM_TYPE.length()
+                + normalizedNumber.length() + 1);
+        key.append(Phone.CONTENT_ITEM_TYPE).append(':');
+        for (int i = 0; i < normalizedNumber.length(); i++) {
+            final char c = normalizedNumber.charAt(i);
+            if (c >= '0' && c <= '9') {
+                key.append(c);
+            }
+        }
+        return key.toString();
+    }
 }
@@ -38,14 +38,32 @@ public class BitmapUtil {
      * decode the picture, so it is pretty efficient to run.
      */
     public static int getSmallerExtentFromBytes(byte[] bytes) {
+        final BitmapFactory.Options options = decodeBoundsFromBytes(bytes);
+
+        // test what the best sample size is
+        return Math.min(options.outWidth, options.outHeight);
+    }
+
+    /**
+     * Returns options whose {@code outWidth} and {@code outHeight} hold the size of the picture.
+     * Doesn't actually decode the picture, so it is pretty efficient to run.
+     */
+    public static BitmapFactory.Options decodeBoundsFromBytes(byte[] bytes) {
         final BitmapFactory.Options options = new BitmapFactory.Options();
 
         // don't actually decode the picture, just return its bounds
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        return options;
+    }
 
-        // test what the best sample size is
-        return Math.min(options.outWidth, options.outHeight);
+    /**
+     * Returns the number of bytes an ARGB_8888 bitmap of the given size takes once decoded
+     * with the given sample size.
+     */
+    public static int getDecodedByteCount(int width, int height, int sampleSize) {
+        final int sample = Math.max(1, sampleSize);
+        return ((width + sample - 1) / sample) * ((height + sample - 1) / sample) * 4;
     }
 
     /**
@@ -89,6 +107,28 @@ public class BitmapUtil {
         return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
     }
 
+    /**
+     * Decodes the bitmap with the given sample size into {@code reusable}, which must be
+     * mutable and large enough to hold the result. If {@code reusable} is null or cannot be
+     * used, a new bitmap is allocated instead. The result is always mutable, so that it can be
+     * reused in turn.
+     */
+    public static Bitmap decodeBitmapFromBytes(byte[] bytes, int sampleSize, Bitmap reusable) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = Math.max(1, sampleSize);
+        options.inMutable = true;
+        if (reusable != null) {
+            options.inBitmap = reusable;
+            try {
+                return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+            } catch (IllegalArgumentException e) {
+                // The bitmap could not be reused, fall back to a fresh allocation.
+                options.inBitmap = null;
+            }
+        }
+        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+    }
+
     /**
      * Retrieves a copy of the specified drawable resource, rotated by a specified angle.
      *
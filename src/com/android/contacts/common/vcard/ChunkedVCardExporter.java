@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts.common.vcard;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Process;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContactsEntity;
+import android.util.Log;
+
+import com.android.vcard.VCardComposer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Exports contacts to a vCard file in chunks of contacts.
+ *
+ * Each chunk is loaded with a single {@link RawContactsEntity} query, instead of one query per
+ * contact, and composed and encoded to UTF-8 on a pool of worker threads. The chunks are
+ * written in order through one large direct buffer, to the file channel when exporting to a
+ * file.
+ */
+/* package */ final class ChunkedVCardExporter {
+    private static final String LOG_TAG = "VCardExport";
+
+    /** Notified of the progress of an export. */
+    public interface Callback {
+        boolean isCancelled();
+
+        /** Called after {@code current} of {@code total} contacts were written. */
+        void onProgress(int total, int current);
+    }
+
+    private static final int CONTACTS_PER_CHUNK = 100;
+    private static final int MAX_WORKER_THREADS = 4;
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final int mVCardType;
+    private final int mWorkerCount;
+
+    public ChunkedVCardExporter(Context context, int vcardType) {
+        mContext = context;
+        mResolver = context.getContentResolver();
+        mVCardType = vcardType;
+        mWorkerCount = Math.max(1,
+                Math.min(MAX_WORKER_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Returns the ids of the contacts matching the given selection, in ascending order, or
+     * null if the contacts could not be queried.
+     */
+    public long[] queryContactIds(String selection) {
+        final Cursor cursor = mResolver.query(Contacts.CONTENT_URI, new String[] {Contacts._ID},
+                selection, null, Contacts._ID);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            final long[] ids = new long[cursor.getCount()];
+            int count = 0;
+            while (cursor.moveToNext() && count < ids.length) {
+                ids[count++] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Writes the vCards of the given contacts to {@code outputStream}. Returns false if the
+     * export was cancelled.
+     */
+    public boolean export(long[] contactIds, OutputStream outputStream, Callback callback)
+            throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(mWorkerCount,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "VCardExportWorker");
+                    }
+                });
+        final WritableByteChannel channel = outputStream instanceof FileOutputStream
+                ? ((FileOutputStream) outputStream).getChannel()
+                : Channels.newChannel(outputStream);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        // Keep a few chunks ahead of the writer, but not the whole export, in memory.
+        final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        final int total = contactIds.length;
+        int nextChunkStart = 0;
+        int written = 0;
+        try {
+            while (written < total) {
+                if (callback.isCancelled()) {
+                    return false;
+                }
+                while (nextChunkStart < total && pending.size() < mWorkerCount * 2) {
+                    final int end = Math.min(total, nextChunkStart + CONTACTS_PER_CHUNK);
+                    pending.add(executor.submit(
+                            new ComposeChunkTask(contactIds, nextChunkStart, end)));
+                    nextChunkStart = end;
+                }
+                write(channel, buffer, getChunk(pending.remove()));
+
+                written = Math.min(total, written + CONTACTS_PER_CHUNK);
+                callback.onProgress(total, written);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            return true;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static byte[] getChunk(Future<byte[]> future) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void write(WritableByteChannel channel, ByteBuffer buffer, byte[] bytes)
+            throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.clear();
+            }
+            final int count = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, count);
+            offset += count;
+        }
+    }
+
+    /**
+     * Loads the data of a range of contacts with one query and composes their vCards.
+     */
+    private final class ComposeChunkTask implements Callable<byte[]> {
+        private final long[] mContactIds;
+        private final int mStart;
+        private final int mEnd;
+
+        public ComposeChunkTask(long[] contactIds, int start, int end) {
+            mContactIds = contactIds;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            final StringBuilder selection = new StringBuilder(RawContactsEntity.CONTACT_ID)
+                    .append(" IN (");
+            for (int i = mStart; i < mEnd; i++) {
+                if (i > mStart) {
+                    selection.append(',');
+                }
+                selection.append(mContactIds[i]);
+            }
+            selection.append(')');
+
+            final Cursor cursor = mResolver.query(RawContactsEntity.CONTENT_URI, null,
+                    selection.toString(), null, RawContactsEntity.CONTACT_ID);
+            if (cursor == null) {
+                throw new IOException(VCardComposer.FAILURE_REASON_FAILED_TO_GET_DATABASE_INFO);
+            }
+
+            // The composer keeps no state between entries it builds, but is not documented
+            // to be thread-safe, so every chunk gets its own.
+            final VCardComposer composer = new VCardComposer(mContext, mVCardType, true);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                final int contactIdColumn = cursor.getColumnIndexOrThrow(
+                        RawContactsEntity.CONTACT_ID);
+                final int mimeTypeColumn = cursor.getColumnIndexOrThrow(Data.MIMETYPE);
+                long currentContactId = -1;
+                Map<String, List<ContentValues>> entry = null;
+                while (cursor.moveToNext()) {
+                    final long contactId = cursor.getLong(contactIdColumn);
+                    if (contactId != currentContactId) {
+                        appendEntry(composer, entry, out);
+                        currentContactId = contactId;
+                        entry = new HashMap<String, List<ContentValues>>();
+                    }
+                    final String mimeType = cursor.getString(mimeTypeColumn);
+                    if (mimeType == null) {
+                        // A raw contact without any data.
+                        continue;
+                    }
+                    List<ContentValues> values = entry.get(mimeType);
+                    if (values == null) {
+                        values = new ArrayList<ContentValues>();
+                        entry.put(mimeType, values);
+                    }
+                    values.add(getRowValues(cursor));
+                }
+                appendEntry(composer, entry, out);
+            } finally {
+                cursor.close();
+            }
+            return out.toByteArray();
+        }
+
+        /**
+         * Copies the current row the way {@link android.provider.ContactsContract.RawContacts
+         * #newEntityIterator} does, keeping blobs such as photos intact.
+         */
+        private ContentValues getRowValues(Cursor cursor) {
+            final ContentValues values = new ContentValues();
+            final String[] columns = cursor.getColumnNames();
+            for (int i = 0; i < columns.length; i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_NULL:
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        values.put(columns[i], cursor.getBlob(i));
+                        break;
+                    default:
+                        values.put(columns[i], cursor.getString(i));
+                        break;
+                }
+            }
+            return values;
+        }
+
+        private void appendEntry(VCardComposer composer, Map<String, List<ContentValues>> entry,
+                ByteArrayOutputStream out) {
+            if (entry == null || entry.isEmpty()) {
+                return;
+            }
+            final String vcard = composer.buildVCard(entry);
+            if (vcard == null) {
+                Log.w(LOG_TAG, "Failed to compose a vCard");
+                return;
+            }
+            final byte[] bytes = vcard.getBytes(StandardCharsets.UTF_8);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+}
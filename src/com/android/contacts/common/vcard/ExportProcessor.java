@@ -40,6 +40,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Class for processing one export request from a user. Dropped after exporting requested Uri(s).
@@ -113,8 +114,7 @@ public class ExportProcessor extends ProcessorBase {
     private void runInternal() {
         if (DEBUG) Log.d(LOG_TAG, String.format("vCard export (id: %d) has started.", mJobId));
         final ExportRequest request = mExportRequest;
-        VCardComposer composer = null;
-        Writer writer = null;
+        OutputStream outputStream = null;
         boolean successful = false;
         try {
             if (isCancelled()) {
@@ -122,7 +122,6 @@ public class ExportProcessor extends ProcessorBase {
                 return;
             }
             final Uri uri = request.destUri;
-            final OutputStream outputStream;
             try {
                 outputStream = mResolver.openOutputStream(uri);
             } catch (FileNotFoundException e) {
@@ -145,6 +144,112 @@ public class ExportProcessor extends ProcessorBase {
                 vcardType = VCardConfig.getVCardTypeFromString(exportType);
             }
 
+            final boolean exported;
+            if (VCardConfig.isDoCoMo(vcardType)) {
+                // DoCoMo vCards start with a dummy entry that only the composer's own
+                // iteration emits.
+                exported = exportWithComposer(outputStream, vcardType, uri);
+            } else {
+                exported = exportInChunks(outputStream, vcardType, uri);
+            }
+            if (!exported) {
+                return;
+            }
+            Log.i(LOG_TAG, "Successfully finished exporting vCard " + request.destUri);
+
+            if (DEBUG) {
+                Log.d(LOG_TAG, "Ask MediaScanner to scan the file: " + request.destUri.getPath());
+            }
+            mService.updateMediaScanner(request.destUri.getPath());
+
+            successful = true;
+            final String filename = ExportVCardActivity.getOpenableUriDisplayName(mService, uri);
+            // If it is a local file (i.e. not a file from Drive), we need to allow user to share
+            // the file by pressing the notification; otherwise, it would be a file in Drive, we
+            // don't need to enable this action in notification since the file is already uploaded.
+            if (isLocalFile(uri)) {
+                final Message msg = handler.obtainMessage();
+                msg.arg1 = SHOW_READY_TOAST;
+                handler.sendMessage(msg);
+                doFinishNotificationWithShareAction(
+                        mService.getString(R.string.exporting_vcard_finished_title_fallback),
+                        mService.getString(R.string.touch_to_share_contacts), uri);
+            } else {
+                final String title = filename == null
+                        ? mService.getString(R.string.exporting_vcard_finished_title_fallback)
+                        : mService.getString(R.string.exporting_vcard_finished_title, filename);
+                doFinishNotification(title, null);
+            }
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "IOException is thrown during close(). Ignored. " + e);
+                }
+            }
+            mService.handleFinishExportNotification(mJobId, successful);
+        }
+    }
+
+    /**
+     * Exports the contacts in chunks that are composed in parallel, see
+     * {@link ChunkedVCardExporter}. Returns false if the export failed or was cancelled.
+     */
+    private boolean exportInChunks(OutputStream outputStream, int vcardType, final Uri uri) {
+        final ChunkedVCardExporter exporter = new ChunkedVCardExporter(mService, vcardType);
+        final long[] contactIds = exporter.queryContactIds(selExport);
+        if (contactIds == null) {
+            final String errorReason = VCardComposer.FAILURE_REASON_FAILED_TO_GET_DATABASE_INFO;
+            Log.e(LOG_TAG, "initialization of vCard exporter failed: " + errorReason);
+            final String title =
+                    mService.getString(R.string.fail_reason_could_not_initialize_exporter,
+                            translateComposerError(errorReason));
+            doFinishNotification(title, null);
+            return false;
+        }
+        if (contactIds.length == 0) {
+            final String title =
+                    mService.getString(R.string.fail_reason_no_exportable_contact);
+            doFinishNotification(title, null);
+            return false;
+        }
+
+        try {
+            final boolean finished = exporter.export(contactIds, outputStream,
+                    new ChunkedVCardExporter.Callback() {
+                        @Override
+                        public boolean isCancelled() {
+                            return ExportProcessor.this.isCancelled();
+                        }
+
+                        @Override
+                        public void onProgress(int total, int current) {
+                            doProgressNotification(uri, total, current);
+                        }
+                    });
+            if (!finished) {
+                Log.i(LOG_TAG, "Export request is cancelled during composing vCard");
+            }
+            return finished;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to export contacts", e);
+            final String title =
+                    mService.getString(R.string.fail_reason_error_occurred_during_export,
+                            translateComposerError(e.getMessage()));
+            doFinishNotification(title, null);
+            return false;
+        }
+    }
+
+    /**
+     * Exports the contacts one by one with {@link VCardComposer}. Returns false if the export
+     * failed or was cancelled.
+     */
+    private boolean exportWithComposer(OutputStream outputStream, int vcardType, Uri uri) {
+        VCardComposer composer = null;
+        Writer writer = null;
+        try {
             composer = new VCardComposer(mService, vcardType, true);
 
             // for test
@@ -152,7 +257,8 @@ public class ExportProcessor extends ProcessorBase {
             //     VCardConfig.FLAG_USE_QP_TO_PRIMARY_PROPERTIES);
             // composer = new VCardComposer(ExportVCardActivity.this, vcardType, true);
 
-            writer = new BufferedWriter(new OutputStreamWriter(outputStream));
+            writer = new BufferedWriter(
+                    new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
             final Uri contentUriForRawContactsEntity = RawContactsEntity.CONTENT_URI;
             // TODO: should provide better selection.
             if (!composer.init(Contacts.CONTENT_URI, new String[] {Contacts._ID},
@@ -166,7 +272,7 @@ public class ExportProcessor extends ProcessorBase {
                         mService.getString(R.string.fail_reason_could_not_initialize_exporter,
                                 translatedErrorReason);
                 doFinishNotification(title, null);
-                return;
+                return false;
             }
 
             final int total = composer.getCount();
@@ -174,14 +280,14 @@ public class ExportProcessor extends ProcessorBase {
                 final String title =
                         mService.getString(R.string.fail_reason_no_exportable_contact);
                 doFinishNotification(title, null);
-                return;
+                return false;
             }
 
             int current = 1;  // 1-origin
             while (!composer.isAfterLast()) {
                 if (isCancelled()) {
                     Log.i(LOG_TAG, "Export request is cancelled during composing vCard");
-                    return;
+                    return false;
                 }
                 try {
                     writer.write(composer.createOneEntry());
@@ -194,7 +300,7 @@ public class ExportProcessor extends ProcessorBase {
                             mService.getString(R.string.fail_reason_error_occurred_during_export,
                                     translatedErrorReason);
                     doFinishNotification(title, null);
-                    return;
+                    return false;
                 }
 
                 // vCard export is quite fast (compared to import), and frequent notifications
@@ -204,43 +310,18 @@ public class ExportProcessor extends ProcessorBase {
                 }
                 current++;
             }
-            Log.i(LOG_TAG, "Successfully finished exporting vCard " + request.destUri);
-
-            if (DEBUG) {
-                Log.d(LOG_TAG, "Ask MediaScanner to scan the file: " + request.destUri.getPath());
-            }
-            mService.updateMediaScanner(request.destUri.getPath());
-
-            successful = true;
-            final String filename = ExportVCardActivity.getOpenableUriDisplayName(mService, uri);
-            // If it is a local file (i.e. not a file from Drive), we need to allow user to share
-            // the file by pressing the notification; otherwise, it would be a file in Drive, we
-            // don't need to enable this action in notification since the file is already uploaded.
-            if (isLocalFile(uri)) {
-                final Message msg = handler.obtainMessage();
-                msg.arg1 = SHOW_READY_TOAST;
-                handler.sendMessage(msg);
-                doFinishNotificationWithShareAction(
-                        mService.getString(R.string.exporting_vcard_finished_title_fallback),
-                        mService.getString(R.string.touch_to_share_contacts), uri);
-            } else {
-                final String title = filename == null
-                        ? mService.getString(R.string.exporting_vcard_finished_title_fallback)
-                        : mService.getString(R.string.exporting_vcard_finished_title, filename);
-                doFinishNotification(title, null);
-            }
+            return true;
         } finally {
             if (composer != null) {
                 composer.terminate();
             }
             if (writer != null) {
                 try {
-                    writer.close();
+                    writer.flush();
                 } catch (IOException e) {
-                    Log.w(LOG_TAG, "IOException is thrown during close(). Ignored. " + e);
+                    Log.w(LOG_TAG, "IOException is thrown during flush(). Ignored. " + e);
                 }
             }
-            mService.handleFinishExportNotification(mJobId, successful);
         }
     }
 
@@ -21,9 +21,7 @@ import android.net.Uri;
 import android.util.Log;
 
 import com.android.vcard.VCardEntry;
-import com.android.vcard.VCardEntryCommitter;
 import com.android.vcard.VCardEntryConstructor;
-import com.android.vcard.VCardEntryHandler;
 import com.android.vcard.VCardInterpreter;
 import com.android.vcard.VCardParser;
 import com.android.vcard.VCardParser_V21;
@@ -33,6 +31,7 @@ import com.android.vcard.exception.VCardNestedException;
 import com.android.vcard.exception.VCardNotSupportedException;
 import com.android.vcard.exception.VCardVersionException;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -43,7 +42,7 @@ import java.util.List;
  * Class for processing one import request from a user. Dropped after importing requested Uri(s).
  * {@link VCardService} will create another object when there is another import request.
  */
-public class ImportProcessor extends ProcessorBase implements VCardEntryHandler {
+public class ImportProcessor extends ProcessorBase implements VCardImportPipeline.Listener {
     private static final String LOG_TAG = "VCardImport";
     private static final boolean DEBUG = VCardService.DEBUG;
 
@@ -57,11 +56,13 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
     private final List<Uri> mFailedUris = new ArrayList<Uri>();
 
     private VCardParser mVCardParser;
+    private VCardImportPipeline mPipeline;
 
     private volatile boolean mCanceled;
     private volatile boolean mDone;
 
     private int mCurrentCount = 0;
+    private int mFailedCount = 0;
     private int mTotalCount = 0;
 
     public ImportProcessor(final VCardService service, final VCardImportExportListener listener,
@@ -74,24 +75,23 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
         mJobId = jobId;
     }
 
+    /**
+     * Counts entries once they are committed rather than when they are parsed, as parsing
+     * runs ahead of the commits.
+     */
     @Override
-    public void onStart() {
-        // do nothing
-    }
-
-    @Override
-    public void onEnd() {
-        // do nothing
-    }
-
-    @Override
-    public void onEntryCreated(VCardEntry entry) {
+    public void onEntryCommitted(VCardEntry entry) {
         mCurrentCount++;
         if (mListener != null) {
             mListener.onImportParsed(mImportRequest, mJobId, entry, mCurrentCount, mTotalCount);
         }
     }
 
+    @Override
+    public void onEntryFailed(VCardEntry entry) {
+        mFailedCount++;
+    }
+
     @Override
     public final int getType() {
         return VCardService.TYPE_IMPORT;
@@ -126,22 +126,6 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
             Log.i(LOG_TAG, "Canceled before actually handling parameter (" + request.uri + ")");
             return;
         }
-        final int[] possibleVCardVersions;
-        if (request.vcardVersion == ImportVCardActivity.VCARD_VERSION_AUTO_DETECT) {
-            /**
-             * Note: this code assumes that a given Uri is able to be opened more than once,
-             * which may not be true in certain conditions.
-             */
-            possibleVCardVersions = new int[] {
-                    ImportVCardActivity.VCARD_VERSION_V21,
-                    ImportVCardActivity.VCARD_VERSION_V30
-            };
-        } else {
-            possibleVCardVersions = new int[] {
-                    request.vcardVersion
-            };
-        }
-
         final Uri uri = request.uri;
         final Account account = request.account;
         final int estimatedVCardType = request.estimatedVCardType;
@@ -151,24 +135,28 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
 
         final VCardEntryConstructor constructor =
                 new VCardEntryConstructor(estimatedVCardType, account, estimatedCharset);
-        final VCardEntryCommitter committer = new VCardEntryCommitter(mResolver);
-        constructor.addEntryHandler(committer);
-        constructor.addEntryHandler(this);
+        final VCardImportPipeline pipeline = new VCardImportPipeline(mResolver, this);
+        synchronized (this) {
+            mPipeline = pipeline;
+            if (isCancelled()) {
+                pipeline.cancel();
+            }
+        }
+        constructor.addEntryHandler(pipeline);
 
         InputStream is = null;
         boolean successful = false;
         try {
             if (uri != null) {
                 Log.i(LOG_TAG, "start importing one vCard (Uri: " + uri + ")");
-                is = mResolver.openInputStream(uri);
             } else if (request.data != null){
                 Log.i(LOG_TAG, "start importing one vCard (byte[])");
-                is = new ByteArrayInputStream(request.data);
             }
+            is = openInputStream(request);
 
             if (is != null) {
                 successful = readOneVCard(is, estimatedVCardType, estimatedCharset, constructor,
-                        possibleVCardVersions);
+                        getPossibleVCardVersions(request, is));
             }
         } catch (IOException e) {
             successful = false;
@@ -180,6 +168,11 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
                     // ignore
                 }
             }
+            // Wait for the entries parsed so far to be committed.
+            pipeline.finish();
+        }
+        if (mFailedCount > 0) {
+            Log.w(LOG_TAG, mFailedCount + " entries could not be imported from " + uri);
         }
 
         mService.handleFinishImportNotification(mJobId, successful);
@@ -192,7 +185,7 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
                 // Cancel notification will be done outside this method.
             } else {
                 Log.i(LOG_TAG, "Successfully finished importing one vCard file: " + uri);
-                List<Uri> uris = committer.getCreatedUris();
+                List<Uri> uris = pipeline.getCreatedUris();
                 if (mListener != null) {
                     if (uris != null && uris.size() == 1) {
                         mListener.onImportFinished(mImportRequest, mJobId, uris.get(0));
@@ -212,6 +205,45 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
         }
     }
 
+    /**
+     * Opens the vCard of the request as a stream that supports {@link InputStream#mark},
+     * or returns null if the request has no vCard.
+     */
+    private InputStream openInputStream(ImportRequest request) throws IOException {
+        final InputStream is;
+        if (request.uri != null) {
+            is = mResolver.openInputStream(request.uri);
+        } else if (request.data != null) {
+            return new ByteArrayInputStream(request.data);
+        } else {
+            return null;
+        }
+        return is == null ? null : new BufferedInputStream(is);
+    }
+
+    /**
+     * Returns the vCard versions to try, in order. When the version is to be auto-detected,
+     * it is read from the start of the stream so that the vCard is parsed only once.
+     * Only if that fails are both versions tried, re-opening the vCard for the second try.
+     */
+    private int[] getPossibleVCardVersions(ImportRequest request, InputStream is)
+            throws IOException {
+        int vcardVersion = request.vcardVersion;
+        if (vcardVersion == ImportVCardActivity.VCARD_VERSION_AUTO_DETECT) {
+            vcardVersion = VCardVersionDetector.detectVersion(is);
+            if (DEBUG) Log.d(LOG_TAG, "Detected vCard version: " + vcardVersion);
+        }
+        if (vcardVersion == ImportVCardActivity.VCARD_VERSION_AUTO_DETECT) {
+            return new int[] {
+                    ImportVCardActivity.VCARD_VERSION_V21,
+                    ImportVCardActivity.VCARD_VERSION_V30
+            };
+        }
+        return new int[] {
+                vcardVersion
+        };
+    }
+
     private boolean readOneVCard(InputStream is, int vcardType, String charset,
             final VCardInterpreter interpreter,
             final int[] possibleVCardVersions) {
@@ -220,9 +252,16 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
         for (int i = 0; i < length; i++) {
             final int vcardVersion = possibleVCardVersions[i];
             try {
-                if (i > 0 && (interpreter instanceof VCardEntryConstructor)) {
-                    // Let the object clean up internal temporary objects,
-                    ((VCardEntryConstructor) interpreter).clear();
+                if (i > 0) {
+                    if (interpreter instanceof VCardEntryConstructor) {
+                        // Let the object clean up internal temporary objects,
+                        ((VCardEntryConstructor) interpreter).clear();
+                    }
+                    // The previous try consumed and closed the stream.
+                    is = openInputStream(mImportRequest);
+                    if (is == null) {
+                        break;
+                    }
                 }
 
                 // We need synchronized block here,
@@ -288,6 +327,9 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
             if (mVCardParser != null) {
                 mVCardParser.cancel();
             }
+            if (mPipeline != null) {
+                mPipeline.cancel();
+            }
         }
         return true;
     }
@@ -53,6 +53,7 @@ import com.android.vcard.exception.VCardException;
 import com.android.vcard.exception.VCardNestedException;
 import com.android.vcard.exception.VCardVersionException;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
@@ -321,9 +322,17 @@ public class ImportVCardActivity extends Activity implements ImportVCardDialogFr
                 if (data != null) {
                     is = new ByteArrayInputStream(data);
                 } else {
-                    is = resolver.openInputStream(localDataUri);
+                    final InputStream in = resolver.openInputStream(localDataUri);
+                    if (in == null) {
+                        throw new IOException("Cannot open " + localDataUri);
+                    }
+                    is = new BufferedInputStream(in);
                 }
-                mVCardParser = new VCardParser_V21();
+                // Start with the parser for the version the vCard declares, so that it is
+                // only parsed twice if the declared version cannot be found.
+                shouldUseV30 =
+                        VCardVersionDetector.detectVersion(is) == VCARD_VERSION_V30;
+                mVCardParser = shouldUseV30 ? new VCardParser_V30() : new VCardParser_V21();
                 try {
                     counter = new VCardEntryCounter();
                     detector = new VCardSourceDetector();
@@ -331,6 +340,9 @@ public class ImportVCardActivity extends Activity implements ImportVCardDialogFr
                     mVCardParser.addInterpreter(detector);
                     mVCardParser.parse(is);
                 } catch (VCardVersionException e1) {
+                    if (shouldUseV30) {
+                        throw new VCardException("vCard with unspported version.");
+                    }
                     try {
                         is.close();
                     } catch (IOException e) {
@@ -341,6 +353,9 @@ public class ImportVCardActivity extends Activity implements ImportVCardDialogFr
                         is = new ByteArrayInputStream(data);
                     } else {
                         is = resolver.openInputStream(localDataUri);
+                        if (is == null) {
+                            throw new IOException("Cannot open " + localDataUri);
+                        }
                     }
                     mVCardParser = new VCardParser_V30();
                     try {
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts.common.vcard;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
+import android.provider.ContactsContract;
+import android.util.Log;
+
+import com.android.vcard.VCardEntry;
+import com.android.vcard.VCardEntryHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Commits the {@link VCardEntry}s created while parsing a vCard to the contacts provider.
+ *
+ * The parser thread only queues the entries it creates. Worker threads turn them into insert
+ * operations and group those into batches, and a single committer thread applies each batch
+ * in one provider transaction. Batches are capped by operation count, to stay below the
+ * provider's limit between yield points, and by photo size, to stay below the binder
+ * transaction limit. A batch that was rejected before any of it was stored is committed again
+ * one entry at a time.
+ */
+/* package */ final class VCardImportPipeline implements VCardEntryHandler {
+    private static final String LOG_TAG = "VCardImport";
+
+    /**
+     * Notified of the progress of an import. Both methods are called on the committer thread,
+     * in the order the batches are committed. With several workers that is not the order of
+     * the entries in the file.
+     */
+    public interface Listener {
+        /** Called for every entry once it was committed. */
+        void onEntryCommitted(VCardEntry entry);
+
+        /** Called for every entry that could not be committed, or may only partly be. */
+        void onEntryFailed(VCardEntry entry);
+    }
+
+    private static final int MAX_WORKER_THREADS = 3;
+    private static final int ENTRY_QUEUE_CAPACITY = 256;
+    private static final int BATCH_QUEUE_CAPACITY = 4;
+    private static final int MAX_OPERATIONS_PER_BATCH = 300;
+    private static final int MAX_PHOTO_BYTES_PER_BATCH = 256 * 1024;
+
+    private static final VCardEntry END_OF_ENTRIES = new VCardEntry();
+    private static final Batch END_OF_BATCHES = new Batch();
+
+    private final ContentResolver mResolver;
+    private final Listener mListener;
+    private final int mWorkerCount;
+    private final BlockingQueue<VCardEntry> mEntries =
+            new ArrayBlockingQueue<VCardEntry>(ENTRY_QUEUE_CAPACITY);
+    private final BlockingQueue<Batch> mBatches =
+            new ArrayBlockingQueue<Batch>(BATCH_QUEUE_CAPACITY);
+    private final AtomicInteger mRunningWorkers;
+    private final CountDownLatch mCommitterDone = new CountDownLatch(1);
+    private final List<Uri> mCreatedUris = new ArrayList<Uri>();
+    private ExecutorService mExecutor;
+
+    private volatile boolean mCanceled;
+
+    public VCardImportPipeline(ContentResolver resolver, Listener listener) {
+        mResolver = resolver;
+        mListener = listener;
+        mWorkerCount = Math.max(1,
+                Math.min(MAX_WORKER_THREADS, Runtime.getRuntime().availableProcessors() - 1));
+        mRunningWorkers = new AtomicInteger(mWorkerCount);
+    }
+
+    /**
+     * Starts the worker and committer threads. Entries can be handed over from then on.
+     */
+    @Override
+    public void onStart() {
+        if (mExecutor != null) {
+            return;
+        }
+        mExecutor = Executors.newFixedThreadPool(mWorkerCount + 1);
+        for (int i = 0; i < mWorkerCount; i++) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    buildBatches();
+                }
+            });
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                commitBatches();
+            }
+        });
+    }
+
+    @Override
+    public void onEntryCreated(VCardEntry entry) {
+        if (!mCanceled) {
+            putUninterruptibly(mEntries, entry);
+        }
+    }
+
+    @Override
+    public void onEnd() {
+        // The parser calls this once per vCard, and a file may contain several. The pipeline
+        // is drained by finish() instead.
+    }
+
+    /**
+     * Stops committing entries. Batches that are being applied are allowed to finish.
+     */
+    public void cancel() {
+        mCanceled = true;
+    }
+
+    /**
+     * Waits until all entries handed over so far were committed, or dropped after
+     * {@link #cancel()}, and stops the threads of this pipeline.
+     */
+    public void finish() {
+        if (mExecutor == null) {
+            return;
+        }
+        putUninterruptibly(mEntries, END_OF_ENTRIES);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mCommitterDone.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        mExecutor.shutdown();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the Uris of the raw contacts created so far, one per committed entry.
+     */
+    public synchronized List<Uri> getCreatedUris() {
+        return new ArrayList<Uri>(mCreatedUris);
+    }
+
+    private void buildBatches() {
+        Batch batch = new Batch();
+        try {
+            while (true) {
+                final VCardEntry entry = takeUninterruptibly(mEntries);
+                if (entry == END_OF_ENTRIES) {
+                    // Let the other workers see the end, too.
+                    putUninterruptibly(mEntries, END_OF_ENTRIES);
+                    break;
+                }
+                if (mCanceled) {
+                    continue;
+                }
+                try {
+                    batch.add(entry, mResolver);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to construct insert operations for an entry", e);
+                    continue;
+                }
+                if (batch.isFull()) {
+                    putUninterruptibly(mBatches, batch);
+                    batch = new Batch();
+                }
+            }
+            if (!batch.entries.isEmpty() && !mCanceled) {
+                putUninterruptibly(mBatches, batch);
+            }
+        } finally {
+            if (mRunningWorkers.decrementAndGet() == 0) {
+                putUninterruptibly(mBatches, END_OF_BATCHES);
+            }
+        }
+    }
+
+    private void commitBatches() {
+        try {
+            // Drain the queue until its end even after a failure, so that the workers are
+            // never left blocked on a full queue.
+            while (true) {
+                final Batch batch = takeUninterruptibly(mBatches);
+                if (batch == END_OF_BATCHES) {
+                    break;
+                }
+                if (mCanceled) {
+                    continue;
+                }
+                try {
+                    commit(batch);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to commit " + batch.entries.size() + " entries", e);
+                }
+            }
+        } finally {
+            mCommitterDone.countDown();
+        }
+    }
+
+    private void commit(Batch batch) {
+        ContentProviderResult[] results = null;
+        boolean nothingApplied = false;
+        try {
+            results = applyBatch(batch.operations);
+        } catch (TransactionTooLargeException e) {
+            // Rejected by the binder before it reached the provider.
+            Log.e(LOG_TAG, "Batch of " + batch.operations.size() + " operations is too large", e);
+            nothingApplied = true;
+        } catch (OperationApplicationException e) {
+            // The raw contact insert of each entry allows the provider to yield, and the
+            // provider commits what was applied so far at every yield. Unless it never did,
+            // some entries of the batch are already stored.
+            Log.e(LOG_TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            nothingApplied = e.getNumSuccessfulYieldPoints() == 0;
+        } catch (RemoteException | RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to apply batch of " + batch.operations.size()
+                    + " operations", e);
+        }
+
+        if (results == null && nothingApplied && batch.entries.size() > 1) {
+            Log.w(LOG_TAG, "Committing " + batch.entries.size() + " entries one by one");
+            for (VCardEntry entry : batch.entries) {
+                if (mCanceled) {
+                    return;
+                }
+                try {
+                    final Batch single = new Batch();
+                    single.add(entry, mResolver);
+                    commit(single);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to commit an entry", e);
+                }
+            }
+            return;
+        }
+        if (results == null && !nothingApplied) {
+            // Inserting the entries again could duplicate those that were stored.
+            Log.e(LOG_TAG, "Not retrying " + batch.entries.size()
+                    + " entries, part of them may have been imported");
+        }
+
+        for (int i = 0; i < batch.entries.size(); i++) {
+            final VCardEntry entry = batch.entries.get(i);
+            if (results == null) {
+                if (mListener != null) {
+                    mListener.onEntryFailed(entry);
+                }
+                continue;
+            }
+            final int rawContactIndex = batch.rawContactIndexes.get(i);
+            if (rawContactIndex >= 0 && rawContactIndex < results.length
+                    && results[rawContactIndex] != null) {
+                synchronized (this) {
+                    mCreatedUris.add(results[rawContactIndex].uri);
+                }
+            }
+            if (mListener != null) {
+                mListener.onEntryCommitted(entry);
+            }
+        }
+    }
+
+    private ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws RemoteException, OperationApplicationException {
+        if (operations.isEmpty()) {
+            return new ContentProviderResult[0];
+        }
+        return mResolver.applyBatch(ContactsContract.AUTHORITY, operations);
+    }
+
+    private static <T> void putUninterruptibly(BlockingQueue<T> queue, T item) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(item);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static <T> T takeUninterruptibly(BlockingQueue<T> queue) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Insert operations of a group of entries that are applied in one transaction.
+     */
+    private static final class Batch {
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        final List<VCardEntry> entries = new ArrayList<VCardEntry>();
+        /** Index of the raw contact insert of each entry in {@link #operations}, or -1. */
+        final List<Integer> rawContactIndexes = new ArrayList<Integer>();
+        int photoBytes;
+
+        void add(VCardEntry entry, ContentResolver resolver) {
+            final int start = operations.size();
+            entry.constructInsertOperations(resolver, operations);
+            entries.add(entry);
+            rawContactIndexes.add(operations.size() > start ? start : -1);
+            final List<VCardEntry.PhotoData> photos = entry.getPhotoList();
+            if (photos != null) {
+                for (VCardEntry.PhotoData photo : photos) {
+                    final byte[] bytes = photo.getBytes();
+                    photoBytes += bytes == null ? 0 : bytes.length;
+                }
+            }
+        }
+
+        boolean isFull() {
+            return operations.size() >= MAX_OPERATIONS_PER_BATCH
+                    || photoBytes >= MAX_PHOTO_BYTES_PER_BATCH;
+        }
+    }
+}
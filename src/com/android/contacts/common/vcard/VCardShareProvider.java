@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.provider.ContactsContract.Contacts;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import com.android.contacts.common.R;
+import com.android.vcard.VCardConfig;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Shares the vCards of any number of contacts as one stream. Only the ids of the shared
+ * contacts are kept, in a small file in the cache directory; the vCards are composed with
+ * {@link ChunkedVCardExporter} and written to a pipe as the receiving app reads it, so
+ * neither the size of the URI nor the memory used grows with the vCards.
+ *
+ * <p>The provider is optional. An app that wants it declares it, not exported and granting URI
+ * permissions, with the authority {@code <package name>.vcardshare}, for example
+ * {@code ${applicationId}.vcardshare}. Check {@link #isAvailable(Context)} before using it.
+ */
+public class VCardShareProvider extends ContentProvider {
+    private static final String LOG_TAG = "VCardShare";
+
+    private static final String AUTHORITY_SUFFIX = ".vcardshare";
+    private static final String SHARE_DIRECTORY = "vcard_share";
+    private static final long A_DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    private static final Pattern TOKEN_PATTERN = Pattern.compile("[0-9a-f\\-]+");
+
+    private static final String[] OPENABLE_COLUMNS = new String[] {
+            OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE
+    };
+
+    /**
+     * Returns the authority of this provider in the given app.
+     */
+    public static String getAuthority(Context context) {
+        return context.getPackageName() + AUTHORITY_SUFFIX;
+    }
+
+    /**
+     * Returns whether the app declares this provider.
+     */
+    public static boolean isAvailable(Context context) {
+        final ProviderInfo info = context.getPackageManager().resolveContentProvider(
+                getAuthority(context), 0);
+        return info != null && VCardShareProvider.class.getName().equals(info.name);
+    }
+
+    /**
+     * Returns a URI from which the vCards of the given contacts can be read, in the given
+     * order. The URI stays valid for about a day. Only use when {@link #isAvailable(Context)}.
+     */
+    public static Uri createShareUri(Context context, long[] contactIds) throws IOException {
+        final File directory = new File(context.getCacheDir(), SHARE_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        clearShareFiles(directory);
+
+        final String token = UUID.randomUUID().toString();
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(directory, token))));
+        try {
+            out.writeInt(contactIds.length);
+            for (long contactId : contactIds) {
+                out.writeLong(contactId);
+            }
+        } finally {
+            out.close();
+        }
+        return new Uri.Builder()
+                .scheme("content")
+                .authority(getAuthority(context))
+                .appendPath(token)
+                .build();
+    }
+
+    /**
+     * Returns an {@link Intent#ACTION_SEND} intent sharing the vCards of the given contacts.
+     */
+    public static Intent createShareIntent(Context context, long[] contactIds)
+            throws IOException {
+        final Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType(Contacts.CONTENT_VCARD_TYPE);
+        intent.putExtra(Intent.EXTRA_STREAM, createShareUri(context, contactIds));
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        return intent;
+    }
+
+    /**
+     * Deletes the files of shares older than a day. The files cannot be deleted once read,
+     * since a receiving app may read a share more than once.
+     */
+    private static void clearShareFiles(File directory) {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final long ageInMillis = System.currentTimeMillis() - file.lastModified();
+            if (ageInMillis > A_DAY_IN_MILLIS) {
+                file.delete();
+            }
+        }
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return Contacts.CONTENT_VCARD_TYPE;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        if (projection == null) {
+            projection = OPENABLE_COLUMNS;
+        }
+        final MatrixCursor cursor = new MatrixCursor(projection, 1);
+        final Object[] row = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            if (OpenableColumns.DISPLAY_NAME.equals(projection[i])) {
+                row[i] = getContext().getString(R.string.exporting_vcard_filename);
+            }
+            // The size is not known until the vCards are composed.
+        }
+        cursor.addRow(row);
+        return cursor;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Cannot open " + uri + " in mode " + mode);
+        }
+        final long[] contactIds = readContactIds(uri);
+        return openPipeHelper(uri, Contacts.CONTENT_VCARD_TYPE, null, contactIds,
+                new PipeDataWriter<long[]>() {
+                    @Override
+                    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri,
+                            String mimeType, Bundle opts, long[] contactIds) {
+                        writeVCards(output, contactIds);
+                    }
+                });
+    }
+
+    private long[] readContactIds(Uri uri) throws FileNotFoundException {
+        final String token = uri.getLastPathSegment();
+        if (token == null || !TOKEN_PATTERN.matcher(token).matches()) {
+            throw new FileNotFoundException("Unknown share " + uri);
+        }
+        final File file = new File(new File(getContext().getCacheDir(), SHARE_DIRECTORY), token);
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                final int count = in.readInt();
+                if (count < 0 || count > file.length() / 8) {
+                    throw new IOException("Corrupt share file " + file);
+                }
+                final long[] contactIds = new long[count];
+                for (int i = 0; i < count; i++) {
+                    contactIds[i] = in.readLong();
+                }
+                return contactIds;
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to read " + file, e);
+            throw new FileNotFoundException("Cannot read share " + uri);
+        }
+    }
+
+    private void writeVCards(ParcelFileDescriptor output, long[] contactIds) {
+        final int vcardType = VCardConfig.getVCardTypeFromString(
+                getContext().getString(R.string.config_export_vcard_type));
+        final ChunkedVCardExporter exporter = new ChunkedVCardExporter(getContext(), vcardType);
+        // Not closed here, openPipeHelper() closes the pipe once this returns.
+        final FileOutputStream out = new FileOutputStream(output.getFileDescriptor());
+        try {
+            exporter.export(contactIds, out, new ChunkedVCardExporter.Callback() {
+                @Override
+                public boolean isCancelled() {
+                    return false;
+                }
+
+                @Override
+                public void onProgress(int total, int current) {
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            // Usually the receiving app closing the pipe before reading everything.
+            Log.w(LOG_TAG, "Failed to write the shared vCards", e);
+        }
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+}
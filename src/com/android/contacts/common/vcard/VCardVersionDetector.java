@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts.common.vcard;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Picks the vCard parser for a stream from the VERSION property of its first vCard, so that
+ * the stream does not have to be parsed once per supported version.
+ */
+/* package */ final class VCardVersionDetector {
+    /** Number of bytes read ahead to find the version. */
+    /* package */ static final int READ_LIMIT = 16 * 1024;
+
+    private static final Pattern VERSION_PATTERN =
+            Pattern.compile("^VERSION[ \\t]*:[ \\t]*([0-9.]+)", Pattern.CASE_INSENSITIVE
+                    | Pattern.MULTILINE);
+    private static final Pattern END_PATTERN =
+            Pattern.compile("^END[ \\t]*:[ \\t]*VCARD", Pattern.CASE_INSENSITIVE
+                    | Pattern.MULTILINE);
+
+    /** Static helper, not instantiable. */
+    private VCardVersionDetector() {}
+
+    /**
+     * Reads ahead in the given stream, which must support {@link InputStream#mark}, and
+     * returns {@link ImportVCardActivity#VCARD_VERSION_V21} or
+     * {@link ImportVCardActivity#VCARD_VERSION_V30}, or
+     * {@link ImportVCardActivity#VCARD_VERSION_AUTO_DETECT} if the version is unknown.
+     * The stream is reset to where it was before.
+     */
+    public static int detectVersion(InputStream is) throws IOException {
+        final byte[] buffer = new byte[READ_LIMIT];
+        int length = 0;
+        is.mark(READ_LIMIT);
+        try {
+            int count;
+            while (length < READ_LIMIT
+                    && (count = is.read(buffer, length, READ_LIMIT - length)) != -1) {
+                length += count;
+            }
+        } finally {
+            is.reset();
+        }
+        // Property names and the version are plain ASCII in every supported charset but
+        // UTF-16, which the parsers do not support either.
+        return detectVersion(new String(buffer, 0, length, StandardCharsets.ISO_8859_1));
+    }
+
+    /* package */ static int detectVersion(String header) {
+        final Matcher end = END_PATTERN.matcher(header);
+        final Matcher version = VERSION_PATTERN.matcher(
+                end.find() ? header.substring(0, end.start()) : header);
+        if (version.find()) {
+            final String value = version.group(1);
+            if ("2.1".equals(value)) {
+                return ImportVCardActivity.VCARD_VERSION_V21;
+            } else if ("3.0".equals(value)) {
+                return ImportVCardActivity.VCARD_VERSION_V30;
+            }
+        }
+        return ImportVCardActivity.VCARD_VERSION_AUTO_DETECT;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.content.Context;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.contacts.common.Collapser.KeyedCollapsible;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link Collapser}.
+ */
+@SmallTest
+public class CollapserTest extends TestCase {
+
+    public void testCollapseKeyedItems() {
+        final List<Item> list = createList(new Item("a", "1"), new Item("b", "2"),
+                new Item("A", "1"), new Item("c", "3"), new Item("B", "2"));
+        Collapser.collapseList(list, null);
+        assertEquals(3, list.size());
+        assertEquals("a", list.get(0).mValue);
+        assertEquals(2, list.get(0).mCount);
+        assertEquals("b", list.get(1).mValue);
+        assertEquals(2, list.get(1).mCount);
+        assertEquals("c", list.get(2).mValue);
+        assertEquals(1, list.get(2).mCount);
+    }
+
+    public void testCollapseKeyedItemsKeepsPreferredItem() {
+        final Item preferred = new Item("A", "1");
+        preferred.mPreferred = true;
+        final List<Item> list = createList(new Item("a", "1"), new Item("b", "2"), preferred,
+                new Item("a", "1"));
+        Collapser.collapseList(list, null);
+        assertEquals(2, list.size());
+        assertEquals("b", list.get(0).mValue);
+        assertSame(preferred, list.get(1));
+        assertEquals(3, preferred.mCount);
+    }
+
+    public void testCollapseLongList() {
+        final List<Item> list = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            list.add(new Item("item" + i, String.valueOf(i % 10)));
+        }
+        Collapser.collapseList(list, null);
+        assertEquals(10, list.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("item" + i, list.get(i).mValue);
+            assertEquals(10, list.get(i).mCount);
+        }
+    }
+
+    public void testCollapseUnkeyedItems() {
+        final List<Item> list = createList(new Item("a", null), new Item("b", "2"),
+                new Item("a", "1"), new Item("b", null));
+        Collapser.collapseList(list, null);
+        assertEquals(2, list.size());
+        assertEquals("a", list.get(0).mValue);
+        assertEquals(2, list.get(0).mCount);
+        assertEquals("b", list.get(1).mValue);
+        assertEquals(2, list.get(1).mCount);
+    }
+
+    public void testUnkeyedItemsOfLongListAreNotCompared() {
+        final List<Item> list = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            list.add(new Item("a", null));
+        }
+        Collapser.collapseList(list, null);
+        assertEquals(30, list.size());
+    }
+
+    private static List<Item> createList(Item... items) {
+        final List<Item> list = new ArrayList<>(items.length);
+        for (Item item : items) {
+            list.add(item);
+        }
+        return list;
+    }
+
+    /**
+     * Item that collapses with items with the same value, ignoring case. A preferred item is
+     * only collapsed into another preferred item.
+     */
+    private static final class Item implements KeyedCollapsible<Item> {
+        final String mValue;
+        final String mKey;
+        int mCount = 1;
+        boolean mPreferred;
+
+        Item(String value, String key) {
+            mValue = value;
+            mKey = key;
+        }
+
+        @Override
+        public void collapseWith(Item t) {
+            mCount += t.mCount;
+        }
+
+        @Override
+        public boolean shouldCollapseWith(Item t, Context context) {
+            return mValue.equalsIgnoreCase(t.mValue) && (mPreferred || !t.mPreferred);
+        }
+
+        @Override
+        public String getCollapseKey(Context context) {
+            return mKey;
+        }
+    }
+}
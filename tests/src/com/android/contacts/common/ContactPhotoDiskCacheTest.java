@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link ContactPhotoDiskCache}.
+ */
+@SmallTest
+public class ContactPhotoDiskCacheTest extends AndroidTestCase {
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "ContactPhotoDiskCacheTest");
+        new ContactPhotoDiskCache(mDirectory, 1024).clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new ContactPhotoDiskCache(mDirectory, 1024).clear();
+        super.tearDown();
+    }
+
+    public void testPutAndGet() {
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mDirectory, 1024);
+        final String key = ContactPhotoDiskCache.keyForPhotoId(1);
+        cache.put(key, 3, bytes(10, 'a'));
+
+        assertTrue(cache.contains(key));
+        assertEquals(3, cache.getVersion(key));
+        assertTrue(Arrays.equals(bytes(10, 'a'), cache.get(key, 3)));
+    }
+
+    public void testGet_versionMismatchRemovesEntry() {
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mDirectory, 1024);
+        final String key = ContactPhotoDiskCache.keyForPhotoId(1);
+        cache.put(key, 3, bytes(10, 'a'));
+
+        assertNull(cache.get(key, 4));
+        assertFalse(cache.contains(key));
+    }
+
+    public void testEntriesSurviveReopen() {
+        final String key = ContactPhotoDiskCache.keyForUri(Uri.parse("http://example.com/a"));
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mDirectory, 1024);
+        cache.put(key, 5, bytes(20, 'b'));
+        cache.flushJournal();
+
+        final ContactPhotoDiskCache reopened = new ContactPhotoDiskCache(mDirectory, 1024);
+        assertEquals(5, reopened.getVersion(key));
+        assertTrue(Arrays.equals(bytes(20, 'b'), reopened.get(key, 5)));
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mDirectory, 100);
+        final String first = ContactPhotoDiskCache.keyForPhotoId(1);
+        final String second = ContactPhotoDiskCache.keyForPhotoId(2);
+        final String third = ContactPhotoDiskCache.keyForPhotoId(3);
+        cache.put(first, 1, bytes(40, 'a'));
+        cache.put(second, 1, bytes(40, 'b'));
+        cache.get(first, 1);
+        cache.put(third, 1, bytes(40, 'c'));
+
+        assertTrue(cache.contains(first));
+        assertFalse(cache.contains(second));
+        assertTrue(cache.contains(third));
+    }
+
+    public void testRemoveOlderThan() {
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mDirectory, 1024);
+        final String photo = ContactPhotoDiskCache.keyForPhotoId(1);
+        final String oldUri = ContactPhotoDiskCache.keyForUri(Uri.parse("http://example.com/a"));
+        final String newUri = ContactPhotoDiskCache.keyForUri(Uri.parse("http://example.com/b"));
+        cache.put(photo, 1, bytes(10, 'a'));
+        cache.put(oldUri, 100, bytes(10, 'b'));
+        cache.put(newUri, 300, bytes(10, 'c'));
+
+        cache.removeOlderThan(ContactPhotoDiskCache.URI_KEY_PREFIX, 200);
+
+        assertTrue(cache.contains(photo));
+        assertFalse(cache.contains(oldUri));
+        assertTrue(cache.contains(newUri));
+    }
+
+    private static byte[] bytes(int length, char value) {
+        final byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+}
@@ -20,6 +20,7 @@ import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.net.Uri;
+import android.os.Parcel;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract.AggregationExceptions;
 import android.provider.ContactsContract.CommonDataKinds.Email;
@@ -605,4 +606,83 @@ public class RawContactDeltaListTests extends AndroidTestCase {
         final RawContactDeltaList merged = RawContactDeltaList.mergeAfter(second, first);
         assertDiffPattern(merged);
     }
+
+    public void testIndexOfRawContactIdAfterChanges() {
+        final RawContactDeltaList set = buildSet(
+                buildBeforeEntity(mContext, CONTACT_BOB, VER_FIRST, buildPhone(PHONE_RED)),
+                buildBeforeEntity(mContext, CONTACT_MARY, VER_FIRST, buildPhone(PHONE_GREEN)));
+        assertEquals(0, set.indexOfRawContactId(CONTACT_BOB));
+        assertEquals(1, set.indexOfRawContactId(CONTACT_MARY));
+        assertEquals(-1, set.indexOfRawContactId(CONTACT_FIRST));
+
+        set.remove(0);
+        assertEquals(-1, set.indexOfRawContactId(CONTACT_BOB));
+        assertEquals(0, set.indexOfRawContactId(CONTACT_MARY));
+
+        set.get(0).markDeleted();
+        assertEquals(-1, set.indexOfRawContactId(CONTACT_MARY));
+    }
+
+    public void testIndexOfRawContactIdAfterSetAndIdChange() {
+        final RawContactDeltaList set = buildSet(
+                buildBeforeEntity(mContext, CONTACT_BOB, VER_FIRST, buildPhone(PHONE_RED)),
+                buildBeforeEntity(mContext, CONTACT_MARY, VER_FIRST, buildPhone(PHONE_GREEN)));
+        assertEquals(0, set.indexOfRawContactId(CONTACT_BOB));
+
+        set.set(0, buildBeforeEntity(mContext, CONTACT_FIRST, VER_FIRST, buildPhone(PHONE_BLUE)));
+        assertEquals(0, set.indexOfRawContactId(CONTACT_FIRST));
+        assertEquals(-1, set.indexOfRawContactId(CONTACT_BOB));
+
+        set.get(1).getValues().put(RawContacts._ID, CONTACT_SECOND);
+        assertEquals(1, set.indexOfRawContactId(CONTACT_SECOND));
+        assertEquals(-1, set.indexOfRawContactId(CONTACT_MARY));
+    }
+
+    public void testGetEntryAfterIdChange() {
+        final RawContactDelta bob = buildBeforeEntity(mContext, CONTACT_BOB, VER_FIRST,
+                buildPhone(PHONE_RED), buildEmail(EMAIL_YELLOW));
+        assertEquals(PHONE_RED, (long) bob.getEntry(PHONE_RED).getId());
+
+        bob.getEntry(PHONE_RED).put(Data._ID, PHONE_BLUE);
+        assertEquals(PHONE_BLUE, (long) bob.getEntry(PHONE_BLUE).getId());
+        assertNull(bob.getEntry(PHONE_RED));
+    }
+
+    public void testGetEntryAfterAddEntry() {
+        final RawContactDelta bob = buildBeforeEntity(mContext, CONTACT_BOB, VER_FIRST,
+                buildPhone(PHONE_RED), buildEmail(EMAIL_YELLOW));
+        assertEquals(EMAIL_YELLOW, (long) bob.getEntry(EMAIL_YELLOW).getId());
+        assertNull(bob.getEntry(PHONE_BLUE));
+
+        bob.addEntry(ValuesDelta.fromBefore(buildPhone(PHONE_BLUE)));
+        assertEquals(PHONE_BLUE, (long) bob.getEntry(PHONE_BLUE).getId());
+        assertEquals(PHONE_RED, (long) bob.getEntry(PHONE_RED).getId());
+    }
+
+    public void testParcelRoundTrip() {
+        final RawContactDelta bob = buildBeforeEntity(mContext, CONTACT_BOB, VER_FIRST,
+                buildPhone(PHONE_RED), buildEmail(EMAIL_YELLOW));
+        bob.getEntry(PHONE_RED).put(Phone.NUMBER, "555-1212");
+        insertPhone(buildSet(bob), CONTACT_BOB, buildPhone(PHONE_BLUE));
+        final RawContactDelta mary = buildBeforeEntity(mContext, CONTACT_MARY, VER_SECOND,
+                buildPhone(PHONE_GREEN));
+        final RawContactDeltaList set = buildSet(bob, mary, getInsert());
+        set.markRawContactsForSplitting();
+
+        final Parcel parcel = Parcel.obtain();
+        final RawContactDeltaList read;
+        try {
+            set.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            read = RawContactDeltaList.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+
+        assertEquals(set, read);
+        assertTrue(read.isMarkedForSplitting());
+        assertEquals("555-1212", getPhone(read, CONTACT_BOB, PHONE_RED)
+                .getAsString(Phone.NUMBER));
+        assertEquals(3, read.getByRawContactId(CONTACT_BOB).getEntryCount(false));
+    }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import android.app.LoaderManager;
+import android.content.Loader;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Bundle;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Directory;
+import android.test.InstrumentationTestCase;
+import android.test.UiThreadTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.SparseArray;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * Unit tests for the remote directory searches of {@link ContactEntryListFragment}.
+ */
+@SmallTest
+public class ContactEntryListFragmentTest extends InstrumentationTestCase {
+    private static final long REMOTE_DIRECTORY_ID = 5;
+
+    private TestFragment mFragment;
+    private TestLoaderManager mLoaderManager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLoaderManager = new TestLoaderManager();
+    }
+
+    @UiThreadTest
+    public void testRefinedQueryDoesNotSearchDirectoryAgain() {
+        mFragment = new TestFragment();
+        mFragment.setContext(getInstrumentation().getTargetContext());
+        mFragment.setLoaderManager(mLoaderManager);
+        mFragment.onCreate(null);
+        mFragment.setDirectorySearchMode(DirectoryListLoader.SEARCH_MODE_DEFAULT);
+
+        mFragment.setQueryString("jo", false);
+        mFragment.getAdapter().changeDirectories(createDirectories());
+        final int partition =
+                mFragment.getAdapter().getPartitionByDirectoryId(REMOTE_DIRECTORY_ID);
+
+        // The directory is searched for "jo".
+        final Loader<Cursor> search = mFragment.onCreateLoader(partition,
+                createArgs(REMOTE_DIRECTORY_ID));
+        assertFalse(search instanceof DirectorySearchCache.ResultLoader);
+        search.registerListener(partition, null);
+        mFragment.onLoadFinished(search, createResult());
+
+        // "john" is answered from the result of "jo" once the default directory is loaded.
+        mFragment.setQueryString("john", false);
+        final Loader<Cursor> local = mLoaderManager.getLoader(0);
+        assertNotNull(local);
+        mFragment.onLoadFinished(local, new MatrixCursor(new String[] {Contacts._ID}));
+
+        assertTrue(mLoaderManager.getLoader(partition)
+                instanceof DirectorySearchCache.ResultLoader);
+    }
+
+    private static Bundle createArgs(long directoryId) {
+        final Bundle args = new Bundle();
+        args.putLong("directoryId", directoryId);
+        return args;
+    }
+
+    private static Cursor createDirectories() {
+        final MatrixCursor cursor = new MatrixCursor(new String[] {Directory._ID,
+                DirectoryListLoader.DIRECTORY_TYPE, Directory.DISPLAY_NAME,
+                Directory.PHOTO_SUPPORT});
+        cursor.addRow(new Object[] {Directory.DEFAULT, null, null, 0});
+        cursor.addRow(new Object[] {REMOTE_DIRECTORY_ID, "Corporate", "Directory", 0});
+        return cursor;
+    }
+
+    private static Cursor createResult() {
+        final MatrixCursor cursor = new MatrixCursor(
+                new String[] {Contacts._ID, Contacts.DISPLAY_NAME});
+        cursor.addRow(new Object[] {1L, "John Smith"});
+        cursor.addRow(new Object[] {2L, "Joanna Brown"});
+        return cursor;
+    }
+
+    public static class TestFragment extends ContactEntryListFragment<ContactEntryListAdapter> {
+        @Override
+        protected View inflateView(LayoutInflater inflater, ViewGroup container) {
+            return null;
+        }
+
+        @Override
+        protected ContactEntryListAdapter createListAdapter() {
+            return new DefaultContactListAdapter(getContext());
+        }
+
+        @Override
+        protected void onItemClick(int position, long id) {
+        }
+    }
+
+    /**
+     * Creates the loaders it is asked for, without starting them.
+     */
+    private static class TestLoaderManager extends LoaderManager {
+        private final SparseArray<Loader<?>> mLoaders = new SparseArray<Loader<?>>();
+
+        @Override
+        public <D> Loader<D> initLoader(int id, Bundle args, LoaderCallbacks<D> callback) {
+            @SuppressWarnings("unchecked")
+            final Loader<D> loader = (Loader<D>) mLoaders.get(id);
+            return loader != null ? loader : restartLoader(id, args, callback);
+        }
+
+        @Override
+        public <D> Loader<D> restartLoader(int id, Bundle args, LoaderCallbacks<D> callback) {
+            final Loader<D> loader = callback.onCreateLoader(id, args);
+            loader.registerListener(id, null);
+            mLoaders.put(id, loader);
+            return loader;
+        }
+
+        @Override
+        public void destroyLoader(int id) {
+            mLoaders.remove(id);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <D> Loader<D> getLoader(int id) {
+            return (Loader<D>) mLoaders.get(id);
+        }
+
+        @Override
+        public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        }
+    }
+}
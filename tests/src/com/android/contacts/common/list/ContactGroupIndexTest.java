@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import android.database.MatrixCursor;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link ContactGroupIndex}.
+ */
+@SmallTest
+public class ContactGroupIndexTest extends TestCase {
+
+    public void testEmpty() {
+        final ContactGroupIndex index = ContactGroupIndex.build(createCursor(), 0);
+        assertEquals(0, index.getGroupCount());
+    }
+
+    public void testGroups() {
+        final MatrixCursor cursor = createCursor(1, 1, 1, 2, 3, 3);
+        final ContactGroupIndex index = ContactGroupIndex.build(cursor, 0);
+        assertTrue(index.isFor(cursor));
+        assertEquals(3, index.getGroupCount());
+        assertEquals(-1, cursor.getPosition());
+
+        assertTrue(index.isFirstInGroup(0));
+        assertFalse(index.isLastInGroup(0));
+        assertFalse(index.isFirstInGroup(1));
+        assertFalse(index.isLastInGroup(1));
+        assertTrue(index.isLastInGroup(2));
+        assertTrue(index.isFirstInGroup(3));
+        assertTrue(index.isLastInGroup(3));
+        assertTrue(index.isFirstInGroup(4));
+        assertTrue(index.isLastInGroup(5));
+    }
+
+    public void testManyGroups() {
+        final long[] ids = new long[100];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i / 2;
+        }
+        final ContactGroupIndex index = ContactGroupIndex.build(createCursor(ids), 0);
+        assertEquals(50, index.getGroupCount());
+        assertTrue(index.isFirstInGroup(98));
+        assertTrue(index.isLastInGroup(99));
+    }
+
+    private static MatrixCursor createCursor(long... contactIds) {
+        final MatrixCursor cursor = new MatrixCursor(new String[] {"contact_id"});
+        for (long contactId : contactIds) {
+            cursor.addRow(new Object[] {contactId});
+        }
+        return cursor;
+    }
+}
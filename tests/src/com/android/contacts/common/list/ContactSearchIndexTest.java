@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link ContactSearchIndex}.
+ */
+@SmallTest
+public class ContactSearchIndexTest extends TestCase {
+
+    private ContactSearchIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIndex = new ContactSearchIndex(null);
+        mIndex.putContact(1, "John Smith", null, Arrays.asList("(650) 555-1234", "+16505551234"),
+                Arrays.asList("jsmith@example.com"));
+        mIndex.putContact(2, "Zo\u00eb Johnson", null, null, null);
+        mIndex.putContact(3, "Adam Smithers", null, null, null);
+        mIndex.setReady(true);
+    }
+
+    public void testNormalize() {
+        assertEquals("zoe", ContactSearchIndex.normalize("Zo\u00eb"));
+        assertEquals("", ContactSearchIndex.normalize(null));
+    }
+
+    public void testNotReady() {
+        mIndex.setReady(false);
+        assertNull(mIndex.query("john"));
+    }
+
+    public void testPrefixMatchesAllTokens() {
+        assertIds(mIndex.queryIndex("john"), 1, 2);
+        assertIds(mIndex.queryIndex("smith"), 1, 3);
+        assertIds(mIndex.queryIndex("jo smi"), 1);
+        assertIds(mIndex.queryIndex("zoe"), 2);
+    }
+
+    public void testPhoneNumber() {
+        final ContactSearchIndex.Result result = mIndex.queryIndex("650-555");
+        assertIds(result, 1);
+        assertEquals("(650) 555-1234", result.snippets.get(1L));
+        assertIds(mIndex.queryIndex("+1650"), 1);
+    }
+
+    public void testEmailSnippet() {
+        final ContactSearchIndex.Result result = mIndex.queryIndex("jsmith");
+        assertIds(result, 1);
+        assertEquals("jsmith@example.com", result.snippets.get(1L));
+        assertTrue(mIndex.queryIndex("smith").snippets.isEmpty());
+    }
+
+    public void testRemoveAndReplace() {
+        mIndex.removeContact(1);
+        assertIds(mIndex.queryIndex("john"), 2);
+        mIndex.putContact(2, "Zoe Brown", null, null, Collections.<String>emptyList());
+        assertIds(mIndex.queryIndex("john"));
+        assertIds(mIndex.queryIndex("bro"), 2);
+    }
+
+    public void testT9() {
+        // "smith" is 76484.
+        assertTrue(Arrays.equals(new long[] {1, 3}, mIndex.queryT9("7648")));
+    }
+
+    public void testNonLatinFallsBack() {
+        assertNull(mIndex.queryIndex("\u5f20"));
+    }
+
+    private static void assertIds(ContactSearchIndex.Result result, long... ids) {
+        assertNotNull(result);
+        assertEquals(Arrays.toString(ids), Arrays.toString(result.contactIds));
+    }
+}
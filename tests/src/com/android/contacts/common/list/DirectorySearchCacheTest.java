@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.Contacts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link DirectorySearchCache}.
+ */
+@SmallTest
+public class DirectorySearchCacheTest extends TestCase {
+    private static final long DIRECTORY_ID = 5;
+    private static final int SNIPPET_LENGTH = 40;
+
+    private DirectorySearchCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new DirectorySearchCache(2, 60 * 1000);
+    }
+
+    public void testExactQuery() {
+        mCache.put(DIRECTORY_ID, "Jo", createResult(), 0);
+        assertNotNull(mCache.lookup(DIRECTORY_ID, " jo "));
+        assertNull(mCache.lookup(DIRECTORY_ID + 1, "jo"));
+        assertEquals(3, createCursor("jo").getCount());
+    }
+
+    public void testRefinesPrefix() {
+        mCache.put(DIRECTORY_ID, "jo", createResult(), 0);
+        final Cursor cursor = createCursor("john");
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("John Smith", cursor.getString(1));
+
+        assertEquals(1, createCursor("jo bro").getCount());
+    }
+
+    public void testRefinesOnlyOnSearchedColumns() {
+        final MatrixCursor result = new MatrixCursor(new String[] {Contacts._ID,
+                Contacts.DISPLAY_NAME, Contacts.LOOKUP_KEY, Contacts.PHOTO_THUMBNAIL_URI});
+        result.addRow(new Object[] {1L, "Colin Hart", "0r1-com", "content://com.example/1"});
+        result.addRow(new Object[] {2L, "Comfort Ode", "0r2-abc", null});
+        mCache.put(DIRECTORY_ID, "co", result, 0);
+
+        final Cursor cursor = createCursor("com");
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Comfort Ode", cursor.getString(1));
+    }
+
+    public void testRefinesOnEmailAddress() {
+        final MatrixCursor result = new MatrixCursor(new String[] {Contacts._ID,
+                Contacts.DISPLAY_NAME, Email.ADDRESS});
+        result.addRow(new Object[] {1L, "Ann Lee", "jo.lee@example.com"});
+        result.addRow(new Object[] {2L, "John Smith", "smith@example.com"});
+        mCache.put(DIRECTORY_ID, "jo", result, 0);
+
+        final Cursor cursor = createCursor("jo.l");
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Ann Lee", cursor.getString(1));
+    }
+
+    public void testResultMatchedOnOtherFieldsIsNotRefined() {
+        final MatrixCursor result = new MatrixCursor(new String[] {Contacts._ID,
+                Contacts.DISPLAY_NAME});
+        result.addRow(new Object[] {1L, "John Smith"});
+        // Matched by the directory on a field that is not in the result.
+        result.addRow(new Object[] {2L, "Ann Lee"});
+        mCache.put(DIRECTORY_ID, "jo", result, 0);
+        assertNotNull(mCache.lookup(DIRECTORY_ID, "jo"));
+        assertNull(mCache.lookup(DIRECTORY_ID, "john"));
+    }
+
+    public void testTruncatedResultIsNotRefined() {
+        mCache.put(DIRECTORY_ID, "jo", createResult(), 3);
+        assertNotNull(mCache.lookup(DIRECTORY_ID, "jo"));
+        assertNull(mCache.lookup(DIRECTORY_ID, "john"));
+    }
+
+    public void testEviction() {
+        mCache.put(DIRECTORY_ID, "a", createResult(), 0);
+        mCache.put(DIRECTORY_ID, "b", createResult(), 0);
+        mCache.put(DIRECTORY_ID, "c", createResult(), 0);
+        assertNull(mCache.lookup(DIRECTORY_ID, "a"));
+        assertNotNull(mCache.lookup(DIRECTORY_ID, "c"));
+    }
+
+    public void testExpiry() {
+        mCache = new DirectorySearchCache(2, -1);
+        mCache.put(DIRECTORY_ID, "jo", createResult(), 0);
+        assertNull(mCache.lookup(DIRECTORY_ID, "jo"));
+    }
+
+    private Cursor createCursor(String query) {
+        return DirectorySearchCache.createCursor(mCache.lookup(DIRECTORY_ID, query), query,
+                SNIPPET_LENGTH);
+    }
+
+    private static Cursor createResult() {
+        final MatrixCursor cursor = new MatrixCursor(
+                new String[] {Contacts._ID, Contacts.DISPLAY_NAME});
+        cursor.addRow(new Object[] {1L, "John Smith"});
+        cursor.addRow(new Object[] {2L, "Joanna Brown"});
+        cursor.addRow(new Object[] {3L, "Mary Johnson"});
+        return cursor;
+    }
+}
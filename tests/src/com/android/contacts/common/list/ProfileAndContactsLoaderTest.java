@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Profile;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the concurrent sub-queries of {@link ProfileAndContactsLoader}.
+ */
+@SmallTest
+public class ProfileAndContactsLoaderTest extends AndroidTestCase {
+    private static final String[] PROJECTION = new String[] {
+            Contacts._ID, Contacts.DISPLAY_NAME
+    };
+
+    private TestProvider mProvider;
+    private ProfileAndContactsLoader mLoader;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new TestProvider();
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ContactsContract.AUTHORITY, mProvider);
+        mLoader = new ProfileAndContactsLoader(new ContextWrapper(getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        });
+        mLoader.setUri(Contacts.CONTENT_URI);
+        mLoader.setProjection(PROJECTION);
+        mLoader.setLoadProfile(true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mProvider.mProfileLatch.countDown();
+        super.tearDown();
+    }
+
+    public void testProfileIsMergedFirst() {
+        mProvider.mProfileLatch.countDown();
+        final Cursor cursor = mLoader.loadInBackground();
+        try {
+            assertEquals(3, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Me", cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testStreamedProfileIsNotWaitedFor() {
+        mLoader.setStreamProfile(true);
+        final Cursor cursor = mLoader.loadInBackground();
+        try {
+            assertEquals(2, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Ann", cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns two contacts at once, and the profile once {@link #mProfileLatch} is released.
+     */
+    private static final class TestProvider extends MockContentProvider {
+        final CountDownLatch mProfileLatch = new CountDownLatch(1);
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            final MatrixCursor cursor = new MatrixCursor(projection);
+            if (Profile.CONTENT_URI.equals(uri)) {
+                try {
+                    mProfileLatch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                cursor.addRow(new Object[] {1L, "Me"});
+            } else {
+                cursor.addRow(new Object[] {2L, "Ann"});
+                cursor.addRow(new Object[] {3L, "Bob"});
+            }
+            return cursor;
+        }
+    }
+}
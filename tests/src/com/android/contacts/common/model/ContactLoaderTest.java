@@ -57,6 +57,7 @@ public class ContactLoaderTest extends LoaderTestCase {
     private static final long RAW_CONTACT_ID = 11;
     private static final long DATA_ID = 21;
     private static final String LOOKUP_KEY = "aa%12%@!";
+    private static final long LAST_UPDATED = 1000;
 
     private ContactsMockContext mMockContext;
     private MockContentProvider mContactsProvider;
@@ -64,6 +65,7 @@ public class ContactLoaderTest extends LoaderTestCase {
     @Override
     protected void setUp() throws Exception {
         super.setUp();
+        ContactCache.getInstance().invalidateAll();
         mMockContext = new ContactsMockContext(getContext());
         mContactsProvider = mMockContext.getContactsProvider();
 
@@ -203,6 +205,7 @@ public class ContactLoaderTest extends LoaderTestCase {
                 lookupNoIdUri, Contacts.Entity.CONTENT_DIRECTORY);
 
         ContactQueries queries = new ContactQueries();
+        queries.fetchLastUpdated(lookupNoIdUri, LAST_UPDATED);
         mContactsProvider.expectTypeQuery(lookupNoIdUri, Contacts.CONTENT_ITEM_TYPE);
         queries.fetchAllData(entityUri, CONTACT_ID, RAW_CONTACT_ID, DATA_ID, LOOKUP_KEY);
 
@@ -227,6 +230,7 @@ public class ContactLoaderTest extends LoaderTestCase {
         final Uri entityUri = Uri.withAppendedPath(lookupUri, Contacts.Entity.CONTENT_DIRECTORY);
 
         ContactQueries queries = new ContactQueries();
+        queries.fetchLastUpdated(lookupUri, LAST_UPDATED);
         mContactsProvider.expectTypeQuery(lookupUri, Contacts.CONTENT_ITEM_TYPE);
         queries.fetchAllData(entityUri, CONTACT_ID, RAW_CONTACT_ID, DATA_ID, LOOKUP_KEY);
 
@@ -242,6 +246,53 @@ public class ContactLoaderTest extends LoaderTestCase {
         mContactsProvider.verify();
     }
 
+    public void testLoadContactTwiceIsServedFromCache() {
+        final Uri lookupUri = ContentUris.withAppendedId(
+                Uri.withAppendedPath(Contacts.CONTENT_LOOKUP_URI, LOOKUP_KEY),
+                CONTACT_ID);
+        final Uri entityUri = Uri.withAppendedPath(lookupUri, Contacts.Entity.CONTENT_DIRECTORY);
+
+        ContactQueries queries = new ContactQueries();
+        queries.fetchLastUpdated(lookupUri, LAST_UPDATED);
+        mContactsProvider.expectTypeQuery(lookupUri, Contacts.CONTENT_ITEM_TYPE);
+        queries.fetchAllData(entityUri, CONTACT_ID, RAW_CONTACT_ID, DATA_ID, LOOKUP_KEY);
+
+        assertEquals(CONTACT_ID, assertLoadContact(lookupUri).getId());
+        mContactsProvider.verify();
+
+        // Only the timestamp is queried: the contact is in the cache now.
+        queries.fetchLastUpdated(lookupUri, LAST_UPDATED);
+        Contact contact = assertLoadContact(lookupUri);
+
+        assertTrue(contact.isLoaded());
+        assertEquals(CONTACT_ID, contact.getId());
+        assertEquals(LOOKUP_KEY, contact.getLookupKey());
+        assertEquals(1, contact.getRawContacts().size());
+        mContactsProvider.verify();
+    }
+
+    public void testLoadContactUpdatedSinceCachedIsLoadedAgain() {
+        final Uri lookupUri = ContentUris.withAppendedId(
+                Uri.withAppendedPath(Contacts.CONTENT_LOOKUP_URI, LOOKUP_KEY),
+                CONTACT_ID);
+        final Uri entityUri = Uri.withAppendedPath(lookupUri, Contacts.Entity.CONTENT_DIRECTORY);
+
+        ContactQueries queries = new ContactQueries();
+        queries.fetchLastUpdated(lookupUri, LAST_UPDATED);
+        mContactsProvider.expectTypeQuery(lookupUri, Contacts.CONTENT_ITEM_TYPE);
+        queries.fetchAllData(entityUri, CONTACT_ID, RAW_CONTACT_ID, DATA_ID, LOOKUP_KEY);
+
+        assertEquals(CONTACT_ID, assertLoadContact(lookupUri).getId());
+        mContactsProvider.verify();
+
+        queries.fetchLastUpdated(lookupUri, LAST_UPDATED + 1);
+        mContactsProvider.expectTypeQuery(lookupUri, Contacts.CONTENT_ITEM_TYPE);
+        queries.fetchAllData(entityUri, CONTACT_ID, RAW_CONTACT_ID, DATA_ID, LOOKUP_KEY);
+
+        assertEquals(CONTACT_ID, assertLoadContact(lookupUri).getId());
+        mContactsProvider.verify();
+    }
+
     public void testLoadContactWithContactLookupWithIncorrectIdUri() {
         // Use lookup-style Uris that contain incorrect Contact-ID
         // (we want to ensure that still the correct contact is chosen)
@@ -261,6 +312,7 @@ public class ContactLoaderTest extends LoaderTestCase {
                 Contacts.Entity.CONTENT_DIRECTORY);
 
         ContactQueries queries = new ContactQueries();
+        queries.fetchLastUpdated(lookupWithWrongIdUri, LAST_UPDATED);
         mContactsProvider.expectTypeQuery(lookupWithWrongIdUri, Contacts.CONTENT_ITEM_TYPE);
         queries.fetchAllData(entityUri, CONTACT_ID, RAW_CONTACT_ID, DATA_ID, LOOKUP_KEY);
 
@@ -412,6 +464,12 @@ public class ContactLoaderTest extends LoaderTestCase {
                     .returnRow(ROWS);
         }
 
+        void fetchLastUpdated(final Uri lookupUri, final long lastUpdated) {
+            mContactsProvider.expectQuery(lookupUri)
+                    .withProjection(Contacts.CONTACT_LAST_UPDATED_TIMESTAMP)
+                    .returnRow(lastUpdated);
+        }
+
         void fetchLookupAndId(final Uri sourceUri, final long expectedContactId,
                 final String expectedEncodedLookup) {
             mContactsProvider.expectQuery(sourceUri)
@@ -19,7 +19,9 @@ package com.android.contacts.common.model;
 import android.content.ContentProviderOperation.Builder;
 import android.content.ContentValues;
 import android.os.Build;
+import android.os.Parcel;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
 import android.provider.ContactsContract.Data;
 import android.test.suitebuilder.annotation.SmallTest;
 
@@ -28,6 +30,8 @@ import com.android.contacts.common.model.BuilderWrapper;
 
 import junit.framework.TestCase;
 
+import java.util.Arrays;
+
 /**
  * Tests for  {@link ValuesDelta}. These tests
  * focus on passing changes across {@link android.os.Parcel}, and verifying that they
@@ -87,4 +91,38 @@ public class ValuesDeltaTests extends TestCase {
                 : builderWrapper.getType() == CompatUtils.TYPE_UPDATE;
         assertTrue("Didn't produce update action", isUpdate);
     }
+
+    public void testParcelKeepsValueTypes() {
+        final byte[] photo = new byte[] {1, 2, 3, 4};
+        final ContentValues before = new ContentValues();
+        before.put(Data._ID, TEST_PHONE_ID);
+        before.put(Phone.NUMBER, TEST_PHONE_NUMBER_1);
+        before.put(Phone.TYPE, Phone.TYPE_HOME);
+        before.put(Data.IS_PRIMARY, true);
+        before.putNull(Phone.LABEL);
+        before.put(Photo.PHOTO, photo);
+
+        final ValuesDelta values = ValuesDelta.fromBefore(before);
+        values.put(Phone.NUMBER, TEST_PHONE_NUMBER_2);
+        values.put(Photo.PHOTO, Arrays.copyOf(photo, photo.length));
+
+        final Parcel parcel = Parcel.obtain();
+        final ValuesDelta read;
+        try {
+            values.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            read = ValuesDelta.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+
+        assertEquals(values, read);
+        assertEquals(Long.valueOf(TEST_PHONE_ID), read.getBefore().get(Data._ID));
+        assertEquals(Integer.valueOf(Phone.TYPE_HOME), read.getBefore().get(Phone.TYPE));
+        assertEquals(Boolean.TRUE, read.getBefore().get(Data.IS_PRIMARY));
+        assertTrue(read.getBefore().containsKey(Phone.LABEL));
+        assertEquals(TEST_PHONE_NUMBER_2, read.getAfter().getAsString(Phone.NUMBER));
+        assertTrue(Arrays.equals(photo, read.getAfter().getAsByteArray(Photo.PHOTO)));
+        assertEquals(values.getId(), read.getId());
+    }
 }
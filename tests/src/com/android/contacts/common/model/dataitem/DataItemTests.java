@@ -322,6 +322,26 @@ public class DataItemTests extends AndroidTestCase {
                 ((PhoneDataItem) dataList.get(0)).getKindTypeColumn(kind));
     }
 
+    public void testDataItemCollapsing_phoneExtensions() {
+        final String phone1 = "650-555-0000 x12";
+        final String phone2 = "650-555-0000 x34";
+
+        mValues1.put(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
+        mValues2.put(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
+
+        mValues1.put(Phone.NUMBER, phone1);
+        mValues2.put(Phone.NUMBER, phone2);
+        mValues1.put(Phone.NORMALIZED_NUMBER, "+16505550000");
+        mValues2.put(Phone.NORMALIZED_NUMBER, "+16505550000");
+
+        final DataKind kind = mGoogleAccountType.getKindForMimetype(Phone.CONTENT_ITEM_TYPE);
+
+        final List<DataItem> dataList = createDataItemsAndCollapse(kind, mValues1, mValues2);
+        assertEquals(2, dataList.size());
+        assertEquals(phone1, ((PhoneDataItem) dataList.get(0)).getNumber());
+        assertEquals(phone2, ((PhoneDataItem) dataList.get(1)).getNumber());
+    }
+
     public void testDataItemCollapsing_relation() {
         final String name1 = "name1";
         final String name2 = "name2";
@@ -97,6 +97,28 @@ public class BitmapUtilTests extends AndroidTestCase {
         assertBitmapSize(32, 16, BitmapUtil.decodeBitmapFromBytes(createPngRawData(128, 64), 4));
     }
 
+    public void testDecodeIntoReusableBitmap() throws IOException {
+        final Bitmap reusable = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+        final Bitmap bitmap = BitmapUtil.decodeBitmapFromBytes(
+                createPngRawData(128, 64), 2, reusable);
+        assertSame(reusable, bitmap);
+        assertBitmapSize(64, 32, bitmap);
+        assertTrue(bitmap.isMutable());
+    }
+
+    public void testDecodeIntoTooSmallBitmapAllocates() throws IOException {
+        final Bitmap reusable = Bitmap.createBitmap(8, 8, Bitmap.Config.ARGB_8888);
+        final Bitmap bitmap = BitmapUtil.decodeBitmapFromBytes(
+                createPngRawData(128, 64), 2, reusable);
+        assertNotSame(reusable, bitmap);
+        assertBitmapSize(64, 32, bitmap);
+    }
+
+    public void testGetDecodedByteCount() {
+        assertEquals(128 * 64 * 4, BitmapUtil.getDecodedByteCount(128, 64, 1));
+        assertEquals(25 * 20 * 4, BitmapUtil.getDecodedByteCount(50, 40, 2));
+    }
+
     private void assertBitmapSize(int expectedWidth, int expectedHeight, Bitmap bitmap) {
         assertEquals(expectedWidth, bitmap.getWidth());
         assertEquals(expectedHeight, bitmap.getHeight());
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * Tests for {@link VCardVersionDetector}.
+ */
+@SmallTest
+public class VCardVersionDetectorTest extends TestCase {
+
+    public void testDetectsV21() {
+        assertEquals(ImportVCardActivity.VCARD_VERSION_V21, VCardVersionDetector.detectVersion(
+                "BEGIN:VCARD\r\nVERSION:2.1\r\nN:Doe;John\r\nEND:VCARD\r\n"));
+    }
+
+    public void testDetectsV30() {
+        assertEquals(ImportVCardActivity.VCARD_VERSION_V30, VCardVersionDetector.detectVersion(
+                "BEGIN:VCARD\r\nN:Doe;John\r\nversion : 3.0\r\nEND:VCARD\r\n"));
+    }
+
+    public void testOnlyLooksAtFirstVCard() {
+        assertEquals(ImportVCardActivity.VCARD_VERSION_AUTO_DETECT,
+                VCardVersionDetector.detectVersion("BEGIN:VCARD\r\nN:Doe;John\r\nEND:VCARD\r\n"
+                        + "BEGIN:VCARD\r\nVERSION:3.0\r\nEND:VCARD\r\n"));
+    }
+
+    public void testUnsupportedVersion() {
+        assertEquals(ImportVCardActivity.VCARD_VERSION_AUTO_DETECT,
+                VCardVersionDetector.detectVersion("BEGIN:VCARD\r\nVERSION:4.0\r\nEND:VCARD\r\n"));
+    }
+
+    public void testStreamIsReset() throws Exception {
+        final byte[] vcard = "BEGIN:VCARD\r\nVERSION:3.0\r\nEND:VCARD\r\n".getBytes("US-ASCII");
+        final InputStream is = new BufferedInputStream(new ByteArrayInputStream(vcard));
+
+        assertEquals(ImportVCardActivity.VCARD_VERSION_V30,
+                VCardVersionDetector.detectVersion(is));
+        assertEquals('B', is.read());
+    }
+}